@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+    Measures how long forecast list queries take from several threads while sync-sized upserts
+    run on the same database, with and without write-ahead logging.  Results are only logged,
+    under the LOG_TAG below.
+ */
+public class TestDatabaseContention extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestDatabaseContention.class.getSimpleName();
+
+    private static final int READER_THREADS = 4;
+    private static final int SYNCS = 50;
+    private static final int DAYS_PER_SYNC = 14;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testDefaultsEnableWriteAheadLogging() {
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        Cursor cursor = db.rawQuery("PRAGMA journal_mode", null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Error: the weather database isn't in WAL mode",
+                    "wal", cursor.getString(0).toLowerCase(Locale.US));
+        } finally {
+            cursor.close();
+        }
+        cursor = db.rawQuery("PRAGMA wal_autocheckpoint", null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(WeatherDbHelper.DEFAULT_WAL_AUTOCHECKPOINT_PAGES, cursor.getInt(0));
+        } finally {
+            cursor.close();
+        }
+        dbHelper.close();
+    }
+
+    public void testBenchmarkReadLatencyDuringSync() throws Exception {
+        logReadLatency("rollback journal", new WeatherDbHelper(mContext, false, 0,
+                WeatherDbHelper.SYNCHRONOUS_FULL));
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        logReadLatency("WAL", new WeatherDbHelper(mContext));
+    }
+
+    private void logReadLatency(String name, WeatherDbHelper dbHelper) throws Exception {
+        final SQLiteDatabase db = dbHelper.getWritableDatabase();
+        final long locationRowId = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null,
+                TestUtilities.createNorthPoleLocationValues());
+        sync(db, locationRowId, 0);
+
+        final AtomicBoolean syncing = new AtomicBoolean(true);
+        final CountDownLatch readersDone = new CountDownLatch(READER_THREADS);
+        final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+        for (int i = 0; i < READER_THREADS; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (syncing.get()) {
+                            long start = System.nanoTime();
+                            queryForecast(db);
+                            latencies.add(System.nanoTime() - start);
+                        }
+                    } finally {
+                        readersDone.countDown();
+                    }
+                }
+            }, "ContentionReader" + i).start();
+        }
+
+        for (int i = 1; i <= SYNCS; i++) {
+            sync(db, locationRowId, i);
+        }
+        syncing.set(false);
+        readersDone.await();
+        dbHelper.close();
+
+        List<Long> sorted = new ArrayList<Long>(latencies);
+        Collections.sort(sorted);
+        assertFalse("Error: no reads completed during the syncs", sorted.isEmpty());
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "%s: %d reads during %d syncs, p50 %.2f ms, p99 %.2f ms, max %.2f ms",
+                name, sorted.size(), SYNCS,
+                percentile(sorted, 50) / 1e6, percentile(sorted, 99) / 1e6,
+                sorted.get(sorted.size() - 1) / 1e6));
+    }
+
+    private static long percentile(List<Long> sorted, int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index));
+    }
+
+    // What a sync writes: every day of the forecast, changed, in one transaction.
+    private static void sync(SQLiteDatabase db, long locationRowId, int generation) {
+        ContentValues[] values = new ContentValues[DAYS_PER_SYNC];
+        for (int i = 0; i < DAYS_PER_SYNC; i++) {
+            values[i] = TestUtilities.createWeatherValues(locationRowId);
+            values[i].put(WeatherEntry.COLUMN_DATE, WeatherContract.normalizeDate(
+                    TestUtilities.TEST_DATE + i * 1000L * 60 * 60 * 24));
+            values[i].put(WeatherEntry.COLUMN_MAX_TEMP, 75 + generation);
+        }
+        WeatherBulkWriter writer = new WeatherBulkWriter(db);
+        db.beginTransaction();
+        try {
+            WeatherUpserter.upsert(db, writer, values);
+            db.setTransactionSuccessful();
+        } finally {
+            writer.close();
+            db.endTransaction();
+        }
+    }
+
+    // What the forecast list asks the provider for.
+    private static void queryForecast(SQLiteDatabase db) {
+        Cursor cursor = WeatherProvider.sWeatherByLocationSettingQueryBuilder.query(db,
+                null,
+                WeatherProvider.sLocationSettingSelection,
+                new String[]{TestUtilities.TEST_LOCATION},
+                null,
+                null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+        try {
+            while (cursor.moveToNext()) {
+                cursor.getDouble(cursor.getColumnIndex(WeatherEntry.COLUMN_MAX_TEMP));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -20,6 +20,7 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.test.AndroidTestCase;
 
+import java.io.File;
 import java.util.HashSet;
 
 public class TestDb extends AndroidTestCase {
@@ -234,4 +235,106 @@ public class TestDb extends AndroidTestCase {
         db.close();
         return locationRowId;
     }
+
+    // The schema as of database version 2, the oldest one with a migration.
+    private static final String SQL_CREATE_LOCATION_TABLE_V2 = "CREATE TABLE location (" +
+            "_id INTEGER PRIMARY KEY," +
+            "location_setting TEXT UNIQUE NOT NULL, " +
+            "city_name TEXT NOT NULL, " +
+            "coord_lat REAL NOT NULL, " +
+            "coord_long REAL NOT NULL );";
+    private static final String SQL_CREATE_WEATHER_TABLE_V2 = "CREATE TABLE weather (" +
+            "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+            "location_id INTEGER NOT NULL, " +
+            "date INTEGER NOT NULL, " +
+            "short_desc TEXT NOT NULL, " +
+            "weather_id INTEGER NOT NULL," +
+            "min REAL NOT NULL, " +
+            "max REAL NOT NULL, " +
+            "humidity REAL NOT NULL, " +
+            "pressure REAL NOT NULL, " +
+            "wind REAL NOT NULL, " +
+            "degrees REAL NOT NULL, " +
+            " FOREIGN KEY (location_id) REFERENCES location (_id), " +
+            " UNIQUE (date, location_id) ON CONFLICT REPLACE);";
+
+    /*
+        Creates the database file the way an older version of the app left it: with the version 2
+        schema, the given user_version, and a location with one day of weather.
+     */
+    private SQLiteDatabase createVersion2Database(int userVersion) {
+        File path = mContext.getDatabasePath(WeatherDbHelper.DATABASE_NAME);
+        path.getParentFile().mkdirs();
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(path, null);
+        db.execSQL(SQL_CREATE_LOCATION_TABLE_V2);
+        db.execSQL(SQL_CREATE_WEATHER_TABLE_V2);
+        long locationRowId = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null,
+                TestUtilities.createNorthPoleLocationValues());
+        assertTrue(locationRowId != -1);
+        assertTrue(db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null,
+                TestUtilities.createWeatherValues(locationRowId)) != -1);
+        db.setVersion(userVersion);
+        return db;
+    }
+
+    private void assertCachedForecastKept(SQLiteDatabase db) {
+        Cursor location = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                null, null, null, null, null, null);
+        TestUtilities.validateCursor("Error: the upgrade lost the cached location",
+                location, TestUtilities.createNorthPoleLocationValues());
+
+        Cursor weather = db.query(WeatherContract.WeatherEntry.TABLE_NAME,
+                null, null, null, null, null, null);
+        assertTrue("Error: the upgrade lost the cached forecast", weather.moveToFirst());
+        TestUtilities.validateCurrentRecord("Error: the upgrade changed the cached forecast",
+                weather, TestUtilities.createWeatherValues(
+                        weather.getLong(weather.getColumnIndex(
+                                WeatherContract.WeatherEntry.COLUMN_LOC_KEY))));
+        weather.close();
+    }
+
+    private boolean hasIndex(SQLiteDatabase db, String name) {
+        Cursor c = db.rawQuery("SELECT name FROM sqlite_master WHERE type='index' AND name=?",
+                new String[]{name});
+        try {
+            return c.moveToFirst();
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testMigrationFromVersion2() {
+        SQLiteDatabase db = createVersion2Database(2);
+        WeatherDbHelper.migrateStep(db, 2);
+
+        assertTrue("Error: migrating from version 2 didn't add the location/date index",
+                hasIndex(db, WeatherDbHelper.INDEX_WEATHER_LOCATION_DATE));
+        assertCachedForecastKept(db);
+        db.close();
+    }
+
+    public void testUpgradeKeepsCachedForecast() {
+        createVersion2Database(WeatherDbHelper.OLDEST_MIGRATABLE_VERSION).close();
+
+        // Runs every step from the oldest migratable version up to the current one.
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getWritableDatabase();
+        assertEquals(WeatherDbHelper.DATABASE_VERSION, db.getVersion());
+        assertCachedForecastKept(db);
+        assertTrue("Error: the upgraded database is missing the location/date index",
+                hasIndex(db, WeatherDbHelper.INDEX_WEATHER_LOCATION_DATE));
+        db.close();
+    }
+
+    public void testUpgradeFromUnmigratableVersionStartsOver() {
+        createVersion2Database(WeatherDbHelper.OLDEST_MIGRATABLE_VERSION - 1).close();
+
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getWritableDatabase();
+        assertEquals(WeatherDbHelper.DATABASE_VERSION, db.getVersion());
+        Cursor c = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                null, null, null, null, null, null);
+        assertFalse("Error: a database without a migration should have been recreated empty",
+                c.moveToFirst());
+        c.close();
+        db.close();
+    }
 }
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+public class TestForecastSnapshot extends AndroidTestCase {
+
+    private static final String LOG_TAG = TestForecastSnapshot.class.getSimpleName();
+
+    private static final String TEST_LOCATION = "99705";
+    private static final String[] DESCRIPTIONS = {"Clear", "Clouds", "Rain", "Snow"};
+    private static final int DAYS = 16;
+
+    private static ContentValues[] createForecast(int days) {
+        Time dayTime = new Time();
+        dayTime.setToNow();
+        int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+        Time utcTime = new Time();
+
+        ContentValues[] forecast = new ContentValues[days];
+        for (int i = 0; i < days; i++) {
+            ContentValues values = new ContentValues();
+            values.put(WeatherEntry.COLUMN_DATE, utcTime.setJulianDay(julianStartDay + i));
+            values.put(WeatherEntry.COLUMN_HUMIDITY, 40 + i);
+            values.put(WeatherEntry.COLUMN_PRESSURE, 1013.25 - i);
+            values.put(WeatherEntry.COLUMN_WIND_SPEED, 3.5 + i / 4.0);
+            values.put(WeatherEntry.COLUMN_DEGREES, 22.5 * i);
+            values.put(WeatherEntry.COLUMN_MAX_TEMP, 21.5 - i / 2.0);
+            values.put(WeatherEntry.COLUMN_MIN_TEMP, -4.25 + i / 4.0);
+            values.put(WeatherEntry.COLUMN_SHORT_DESC, DESCRIPTIONS[i % DESCRIPTIONS.length]);
+            values.put(WeatherEntry.COLUMN_WEATHER_ID, 800 - 100 * (i % DESCRIPTIONS.length));
+            forecast[i] = values;
+        }
+        return forecast;
+    }
+
+    private static byte[] encode(ContentValues[] forecast, long version) {
+        ForecastSnapshot.Writer writer = new ForecastSnapshot.Writer(TEST_LOCATION, version);
+        for (ContentValues day : forecast) {
+            writer.addDay(day);
+        }
+        return writer.toByteArray();
+    }
+
+    public void testRoundTrip() {
+        ContentValues[] forecast = createForecast(DAYS);
+        byte[] snapshot = encode(forecast, 42);
+
+        ForecastSnapshot.Reader reader = new ForecastSnapshot.Reader(snapshot);
+        assertEquals(42, reader.getVersion());
+        assertEquals(TEST_LOCATION, reader.getLocationSetting());
+        assertEquals(DAYS, reader.getCount());
+        for (int i = 0; i < DAYS; i++) {
+            assertTrue("Error: the snapshot ended after " + i + " days", reader.moveToNext());
+            assertEquals("Error: day " + i + " didn't survive the round trip",
+                    forecast[i], reader.toContentValues());
+        }
+        assertFalse(reader.moveToNext());
+    }
+
+    public void testValuesAreExact() {
+        // None of these is exact as a float, or in binary at all.
+        ContentValues[] forecast = createForecast(1);
+        forecast[0].put(WeatherEntry.COLUMN_PRESSURE, 1013.37);
+        forecast[0].put(WeatherEntry.COLUMN_WIND_SPEED, 0.1);
+        forecast[0].put(WeatherEntry.COLUMN_DEGREES, 123.45);
+        forecast[0].put(WeatherEntry.COLUMN_MAX_TEMP, 21.93);
+        forecast[0].put(WeatherEntry.COLUMN_MIN_TEMP, -3.07);
+
+        ForecastSnapshot.Reader reader = new ForecastSnapshot.Reader(encode(forecast, 1));
+        assertTrue(reader.moveToNext());
+        assertEquals("Error: a value changed on the way through the snapshot, so storing it"
+                + " would rewrite the row", forecast[0], reader.toContentValues());
+    }
+
+    public void testSnapshotIsCompact() {
+        byte[] snapshot = encode(createForecast(DAYS), 1);
+        Log.d(LOG_TAG, DAYS + " days in " + snapshot.length + " bytes");
+        assertTrue("Error: a " + DAYS + " day forecast took " + snapshot.length + " bytes",
+                snapshot.length < 512);
+    }
+
+    public void testValuesFinerThanHundredthsAreRejected() {
+        ContentValues[] forecast = createForecast(1);
+        forecast[0].put(WeatherEntry.COLUMN_MAX_TEMP, 21.934);
+        try {
+            encode(forecast, 1);
+            fail("Error: a value that wouldn't read back the same should not be written");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testDescriptionsComeFromDictionary() {
+        ForecastSnapshot.Reader reader =
+                new ForecastSnapshot.Reader(encode(createForecast(DAYS), 1));
+        reader.moveToNext();
+        String first = reader.getDescription();
+        for (int i = 1; i < DESCRIPTIONS.length; i++) {
+            reader.moveToNext();
+        }
+        reader.moveToNext();
+        assertSame("Error: days with the same description should share one String",
+                first, reader.getDescription());
+
+        reader.rewind();
+        assertTrue(reader.moveToNext());
+        assertSame(first, reader.getDescription());
+    }
+
+    public void testDatesNeedNotStartAUtcDay() {
+        // Local midnights, as the sync stores them, an hour short across a change of DST.
+        long hour = 1000 * 60 * 60;
+        ContentValues[] forecast = createForecast(2);
+        forecast[0].put(WeatherEntry.COLUMN_DATE,
+                forecast[0].getAsLong(WeatherEntry.COLUMN_DATE) + 7 * hour);
+        forecast[1].put(WeatherEntry.COLUMN_DATE,
+                forecast[0].getAsLong(WeatherEntry.COLUMN_DATE) + 23 * hour);
+
+        ForecastSnapshot.Reader reader = new ForecastSnapshot.Reader(encode(forecast, 1));
+        for (ContentValues values : forecast) {
+            reader.moveToNext();
+            assertEquals(values.getAsLong(WeatherEntry.COLUMN_DATE).longValue(),
+                    reader.getDate());
+        }
+    }
+
+    public void testDatesNeedNotBeConsecutive() {
+        long day = 1000 * 60 * 60 * 24;
+        ContentValues[] forecast = createForecast(3);
+        forecast[1].put(WeatherEntry.COLUMN_DATE, forecast[0].getAsLong(WeatherEntry.COLUMN_DATE)
+                + 10 * day);
+        forecast[2].put(WeatherEntry.COLUMN_DATE, forecast[0].getAsLong(WeatherEntry.COLUMN_DATE)
+                - 3 * day);
+
+        ForecastSnapshot.Reader reader = new ForecastSnapshot.Reader(encode(forecast, 1));
+        for (ContentValues values : forecast) {
+            reader.moveToNext();
+            assertEquals(values.getAsLong(WeatherEntry.COLUMN_DATE).longValue(),
+                    reader.getDate());
+        }
+    }
+
+    public void testUnknownFormatIsRejected() {
+        byte[] snapshot = encode(createForecast(1), 1);
+        snapshot[0] = ForecastSnapshot.FORMAT_VERSION + 1;
+        try {
+            new ForecastSnapshot.Reader(snapshot);
+            fail("Error: a snapshot of another format should not be read");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testThroughput() {
+        final int iterations = 10000;
+        ContentValues[] forecast = createForecast(DAYS);
+
+        long start = SystemClock.elapsedRealtime();
+        byte[] snapshot = null;
+        for (int i = 0; i < iterations; i++) {
+            snapshot = encode(forecast, i);
+        }
+        long encodeMillis = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        double sum = 0;
+        for (int i = 0; i < iterations; i++) {
+            ForecastSnapshot.Reader reader = new ForecastSnapshot.Reader(snapshot);
+            while (reader.moveToNext()) {
+                sum += reader.getMaxTemp() + reader.getWeatherId();
+            }
+        }
+        long decodeMillis = SystemClock.elapsedRealtime() - start;
+
+        Log.d(LOG_TAG, iterations + " snapshots encoded in " + encodeMillis + " ms, decoded in "
+                + decodeMillis + " ms (" + sum + ")");
+        // Loose enough for a slow emulator; a phone decodes these in a few tens of ms.
+        assertTrue("Error: decoding " + iterations + " snapshots took " + decodeMillis + " ms",
+                decodeMillis < 5000);
+    }
+}
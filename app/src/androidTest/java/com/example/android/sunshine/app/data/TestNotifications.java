@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+
+/*
+    Counts the change callbacks that the observers of a typical screen setup receive for the
+    kinds of writes a sync makes: the forecast list of two locations, two detail views, and the
+    whole table, which is what the widgets watch.  The observers are registered the way
+    Cursor.setNotificationUri registers them, that is, for descendants too.
+ */
+public class TestNotifications extends AndroidTestCase {
+
+    private static final String OTHER_LOCATION = "94043";
+
+    // How long to give a (wrong) notification to show up before deciding there was none.
+    private static final long QUIET_PERIOD_MS = 1000;
+
+    private long mLocationId;
+    private long mOtherLocationId;
+    private ContentValues[] mForecast;
+
+    private CountingObserver mListObserver;
+    private CountingObserver mDay3Observer;
+    private CountingObserver mDay5Observer;
+    private CountingObserver mOtherListObserver;
+    private CountingObserver mTableObserver;
+
+    static class CountingObserver extends ContentObserver {
+        final HandlerThread mHT;
+        volatile int mChangeCount;
+
+        static CountingObserver create() {
+            HandlerThread ht = new HandlerThread("CountingObserverThread");
+            ht.start();
+            return new CountingObserver(ht);
+        }
+
+        private CountingObserver(HandlerThread ht) {
+            super(new Handler(ht.getLooper()));
+            mHT = ht;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            mChangeCount++;
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+
+        mLocationId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        ContentValues otherLocation = TestUtilities.createNorthPoleLocationValues();
+        otherLocation.put(LocationEntry.COLUMN_LOCATION_SETTING, OTHER_LOCATION);
+        mOtherLocationId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, otherLocation));
+
+        mForecast = TestProvider.createBulkInsertWeatherValues(mLocationId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, mForecast);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                TestProvider.createBulkInsertWeatherValues(mOtherLocationId));
+
+        mListObserver = register(WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION));
+        mDay3Observer = register(WeatherEntry.buildWeatherLocationWithDate(
+                TestUtilities.TEST_LOCATION, dateOf(3)));
+        mDay5Observer = register(WeatherEntry.buildWeatherLocationWithDate(
+                TestUtilities.TEST_LOCATION, dateOf(5)));
+        mOtherListObserver = register(WeatherEntry.buildWeatherLocation(OTHER_LOCATION));
+        mTableObserver = register(WeatherEntry.CONTENT_URI);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (CountingObserver observer : new CountingObserver[]{mListObserver, mDay3Observer,
+                mDay5Observer, mOtherListObserver, mTableObserver}) {
+            mContext.getContentResolver().unregisterContentObserver(observer);
+            observer.mHT.quit();
+        }
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        super.tearDown();
+    }
+
+    private CountingObserver register(Uri uri) {
+        CountingObserver observer = CountingObserver.create();
+        mContext.getContentResolver().registerContentObserver(uri, true, observer);
+        return observer;
+    }
+
+    // The date of a day as the provider stores it.
+    private long dateOf(int day) {
+        return WeatherContract.normalizeDate(mForecast[day].getAsLong(WeatherEntry.COLUMN_DATE));
+    }
+
+    private void assertChangeCounts(String error, int list, int day3, int day5, int otherList,
+                                    int table) throws InterruptedException {
+        Thread.sleep(QUIET_PERIOD_MS);
+        assertEquals(error + ": forecast list", list, mListObserver.mChangeCount);
+        assertEquals(error + ": detail view of day 3", day3, mDay3Observer.mChangeCount);
+        assertEquals(error + ": detail view of day 5", day5, mDay5Observer.mChangeCount);
+        assertEquals(error + ": other location's forecast list",
+                otherList, mOtherListObserver.mChangeCount);
+        assertEquals(error + ": widgets", table, mTableObserver.mChangeCount);
+    }
+
+    public void testResyncWithOneChangedDay() throws InterruptedException {
+        ContentValues[] forecast = TestProvider.createBulkInsertWeatherValues(mLocationId);
+        forecast[3].put(WeatherEntry.COLUMN_SHORT_DESC, "Meteors");
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, forecast);
+
+        assertChangeCounts("Error: one changed day", 1, 1, 0, 0, 1);
+    }
+
+    public void testResyncWithSeveralChangedDays() throws InterruptedException {
+        ContentValues[] forecast = TestProvider.createBulkInsertWeatherValues(mLocationId);
+        for (ContentValues day : forecast) {
+            day.put(WeatherEntry.COLUMN_SHORT_DESC, "Meteors");
+        }
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, forecast);
+
+        // One notification for the whole location, not one per day.
+        assertChangeCounts("Error: every day changed", 1, 1, 1, 0, 1);
+    }
+
+    public void testUnchangedResync() throws InterruptedException {
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                TestProvider.createBulkInsertWeatherValues(mLocationId));
+
+        assertChangeCounts("Error: nothing changed", 0, 0, 0, 0, 0);
+    }
+
+    public void testUpdateOfOneDay() throws InterruptedException {
+        ContentValues values = new ContentValues();
+        values.put(WeatherEntry.COLUMN_SHORT_DESC, "Meteors");
+        mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, values,
+                WeatherEntry.COLUMN_LOC_KEY + " = ? AND " + WeatherEntry.COLUMN_DATE + " = ?",
+                new String[]{Long.toString(mLocationId), Long.toString(dateOf(5))});
+
+        assertChangeCounts("Error: one updated day", 1, 0, 1, 0, 1);
+    }
+
+    public void testUpdateMovingADay() throws InterruptedException {
+        // Makes room for day 5 on day 3, and forgets the notifications that made.
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI,
+                WeatherEntry.COLUMN_LOC_KEY + " = ? AND " + WeatherEntry.COLUMN_DATE + " = ?",
+                new String[]{Long.toString(mLocationId), Long.toString(dateOf(3))});
+        Thread.sleep(QUIET_PERIOD_MS);
+        for (CountingObserver observer : new CountingObserver[]{mListObserver, mDay3Observer,
+                mDay5Observer, mOtherListObserver, mTableObserver}) {
+            observer.mChangeCount = 0;
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(WeatherEntry.COLUMN_DATE, dateOf(3));
+        mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, values,
+                WeatherEntry.COLUMN_LOC_KEY + " = ? AND " + WeatherEntry.COLUMN_DATE + " = ?",
+                new String[]{Long.toString(mLocationId), Long.toString(dateOf(5))});
+
+        // The day the row left and the day it landed on both changed.
+        assertChangeCounts("Error: moved day", 1, 1, 1, 0, 1);
+    }
+
+    public void testDeleteOfOldDay() throws InterruptedException {
+        // Like WeatherRetention, which drops yesterday.
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI,
+                WeatherEntry.COLUMN_LOC_KEY + " = ? AND " + WeatherEntry.COLUMN_DATE + " <= ?",
+                new String[]{Long.toString(mLocationId), Long.toString(dateOf(0))});
+
+        assertChangeCounts("Error: deleted day", 1, 0, 0, 0, 1);
+    }
+
+    // The operations of a sync, as SunshineSyncAdapter builds them, and a delete of the first
+    // day, so the batch mixes every kind of weather write.
+    private ArrayList<ContentProviderOperation> buildSyncOperations(ContentValues[] forecast) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(LocationEntry.CONTENT_URI)
+                .withValues(TestUtilities.createNorthPoleLocationValues())
+                .build());
+        for (ContentValues day : forecast) {
+            day.remove(WeatherEntry.COLUMN_LOC_KEY);
+            operations.add(ContentProviderOperation.newInsert(WeatherEntry.CONTENT_URI)
+                    .withValues(day)
+                    .withValueBackReference(WeatherEntry.COLUMN_LOC_KEY, 0)
+                    .build());
+        }
+        operations.add(ContentProviderOperation.newDelete(WeatherEntry.CONTENT_URI)
+                .withSelection(WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                                WeatherEntry.COLUMN_DATE + " <= ?",
+                        new String[]{Long.toString(mLocationId), Long.toString(dateOf(0))})
+                .build());
+        return operations;
+    }
+
+    public void testSyncBatchNotifiesOnce() throws Exception {
+        ContentValues[] forecast = TestProvider.createBulkInsertWeatherValues(mLocationId);
+        for (ContentValues day : forecast) {
+            day.put(WeatherEntry.COLUMN_SHORT_DESC, "Meteors");
+        }
+        mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY,
+                buildSyncOperations(forecast));
+
+        // The location was already stored and unchanged, the days were updated and the first
+        // one deleted: one notification for the location's forecast, none for the location.
+        assertChangeCounts("Error: sync batch", 1, 1, 1, 0, 1);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                null, null, null, null);
+        assertEquals("Error: the batch should have left every day but the first",
+                forecast.length - 1, cursor.getCount());
+        cursor.close();
+    }
+
+    public void testFailedBatchWritesAndNotifiesNothing() throws Exception {
+        ContentValues[] forecast = TestProvider.createBulkInsertWeatherValues(mLocationId);
+        for (ContentValues day : forecast) {
+            day.put(WeatherEntry.COLUMN_SHORT_DESC, "Meteors");
+        }
+        ArrayList<ContentProviderOperation> operations = buildSyncOperations(forecast);
+        operations.add(ContentProviderOperation.newDelete(WeatherEntry.CONTENT_URI)
+                .withSelection(WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                        new String[]{Long.toString(mOtherLocationId)})
+                .withExpectedCount(0)
+                .build());
+        try {
+            mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY,
+                    operations);
+            fail("Error: the batch should have failed its expected count");
+        } catch (OperationApplicationException expected) {
+        }
+
+        assertChangeCounts("Error: failed batch", 0, 0, 0, 0, 0);
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null,
+                WeatherEntry.COLUMN_SHORT_DESC + " = ?", new String[]{"Meteors"}, null);
+        assertEquals("Error: a failed batch should have been rolled back", 0, cursor.getCount());
+        cursor.close();
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/*
+    Runs EXPLAIN QUERY PLAN on the queries behind each URI the provider serves, with the
+    projections and sort orders the app uses, and fails if any of them reads a whole table.
+ */
+public class TestQueryPlans extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestQueryPlans.class.getSimpleName();
+
+    // "SCAN TABLE weather" on older SQLite versions, "SCAN weather" on newer ones, in both cases
+    // possibly followed by "USING [COVERING] INDEX", which still reads every entry.
+    private static final Pattern FULL_SCAN = Pattern.compile(
+            "^SCAN (TABLE )?(" + WeatherEntry.TABLE_NAME + "|" + LocationEntry.TABLE_NAME + ")\\b");
+
+    private static final String SORT_BY_DATE = WeatherEntry.COLUMN_DATE + " ASC";
+
+    // Same as ForecastFragment.FORECAST_COLUMNS.
+    private static final String[] FORECAST_COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            LocationEntry.COLUMN_COORD_LAT,
+            LocationEntry.COLUMN_COORD_LONG
+    };
+
+    // Same as ForecastChangeNotifier.NOTIFY_WEATHER_PROJECTION.
+    private static final String[] NOTIFY_WEATHER_PROJECTION = {
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_SHORT_DESC
+    };
+
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        mDb = new WeatherDbHelper(mContext).getReadableDatabase();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    /**
+     * @return the detail column of each step of the plan for {@code sql}.
+     */
+    private List<String> explain(String sql, String... args) {
+        Cursor cursor = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        List<String> steps = new ArrayList<String>();
+        try {
+            int detailIndex = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                steps.add(cursor.getString(detailIndex));
+            }
+        } finally {
+            cursor.close();
+        }
+        return steps;
+    }
+
+    private void assertNoFullScan(String name, String sql, String... args) {
+        List<String> steps = explain(sql, args);
+        Log.i(LOG_TAG, name + ": " + steps);
+        assertFalse("Error: no plan for " + name, steps.isEmpty());
+        for (String step : steps) {
+            assertFalse("Error: " + name + " reads a whole table: " + step,
+                    FULL_SCAN.matcher(step).find());
+        }
+    }
+
+    private String buildJoinQuery(String[] projection, String selection, String sortOrder) {
+        return WeatherProvider.sWeatherByLocationSettingQueryBuilder.buildQuery(
+                projection, selection, null, null, sortOrder, null);
+    }
+
+    public void testIndexExists() {
+        Cursor cursor = mDb.query("sqlite_master", new String[]{"name"},
+                "type = 'index' AND name = ?",
+                new String[]{WeatherDbHelper.INDEX_WEATHER_LOCATION_DATE},
+                null, null, null);
+        try {
+            assertTrue("Error: the database was created without the location/date index",
+                    cursor.moveToFirst());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // weather/*, the forecast list, the widgets and Muzei.
+    public void testWeatherWithLocation() {
+        assertNoFullScan("weather/* (forecast list)",
+                buildJoinQuery(FORECAST_COLUMNS,
+                        WeatherProvider.sLocationSettingSelection, SORT_BY_DATE),
+                TestUtilities.TEST_LOCATION);
+    }
+
+    // weather/*?date=, the forecast list from today on.
+    public void testWeatherWithLocationAndStartDate() {
+        assertNoFullScan("weather/*?date= (forecast list)",
+                buildJoinQuery(FORECAST_COLUMNS,
+                        WeatherProvider.sLocationSettingWithStartDateSelection, SORT_BY_DATE),
+                TestUtilities.TEST_LOCATION, Long.toString(TestUtilities.TEST_DATE));
+    }
+
+    // weather/*/#, the detail view and the sync adapter's notification.
+    public void testWeatherWithLocationAndDate() {
+        assertNoFullScan("weather/*/# (notification)",
+                buildJoinQuery(NOTIFY_WEATHER_PROJECTION,
+                        WeatherProvider.sLocationSettingAndDaySelection, null),
+                TestUtilities.TEST_LOCATION, Long.toString(TestUtilities.TEST_DATE));
+        assertNoFullScan("weather/*/# (detail)",
+                buildJoinQuery(null, WeatherProvider.sLocationSettingAndDaySelection, null),
+                TestUtilities.TEST_LOCATION, Long.toString(TestUtilities.TEST_DATE));
+    }
+
+    // weather, as the provider itself reads it to upsert a forecast and to find what changed.
+    public void testWeather() {
+        assertNoFullScan("weather (upsert)",
+                "SELECT * FROM " + WeatherEntry.TABLE_NAME + " WHERE " +
+                        WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                        WeatherEntry.COLUMN_DATE + " BETWEEN ? AND ?",
+                "1", Long.toString(TestUtilities.TEST_DATE),
+                Long.toString(TestUtilities.TEST_DATE));
+        assertNoFullScan("weather (cleanup)",
+                "SELECT " + WeatherEntry.COLUMN_LOC_KEY + ", " + WeatherEntry.COLUMN_DATE +
+                        " FROM " + WeatherEntry.TABLE_NAME + " WHERE " +
+                        WeatherEntry.COLUMN_DATE + " <= ?",
+                Long.toString(TestUtilities.TEST_DATE));
+    }
+
+    // weather, as WeatherRetention picks the chunks it deletes.
+    public void testRetention() {
+        assertNoFullScan("weather (retention, past days)",
+                "SELECT " + WeatherEntry._ID + " FROM " + WeatherEntry.TABLE_NAME + " WHERE " +
+                        WeatherRetention.buildChunkSelection(WeatherEntry.COLUMN_DATE + " < ?"),
+                Long.toString(TestUtilities.TEST_DATE), "64");
+        assertNoFullScan("weather (retention, location cap)",
+                "SELECT " + WeatherEntry._ID + " FROM " + WeatherEntry.TABLE_NAME + " WHERE " +
+                        WeatherRetention.buildChunkSelection(WeatherEntry.COLUMN_LOC_KEY + " = ?"),
+                "1", "64");
+    }
+
+    // location, as the sync adapter looks up the row of a location setting.
+    public void testLocation() {
+        assertNoFullScan("location",
+                "SELECT " + LocationEntry._ID + " FROM " + LocationEntry.TABLE_NAME + " WHERE " +
+                        LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                TestUtilities.TEST_LOCATION);
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Checks that the retention policy deletes the oldest days first, enforces each of its caps,
+    and leaves no free pages behind in the database file.
+ */
+public class TestRetention extends AndroidTestCase {
+
+    private static final String OTHER_LOCATION = "94043";
+
+    private long mToday;
+    private long mLocationId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mToday = WeatherContract.normalizeDate(System.currentTimeMillis());
+        mLocationId = TestUtilities.insertNorthPoleLocationValues(mContext);
+    }
+
+    private long dateOf(int day) {
+        return mToday + day * WeatherRetention.DAY_IN_MILLIS;
+    }
+
+    // Stores the days from firstDay up to, but not including, lastDay.
+    private void insertDays(long locationId, int firstDay, int lastDay) {
+        ContentValues[] days = new ContentValues[lastDay - firstDay];
+        for (int i = 0; i < days.length; i++) {
+            days[i] = TestUtilities.createWeatherValues(locationId);
+            days[i].put(WeatherEntry.COLUMN_DATE, dateOf(firstDay + i));
+        }
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, days);
+    }
+
+    private Bundle applyRetention(Bundle extras) {
+        return mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_APPLY_RETENTION, null, extras);
+    }
+
+    private long[] readDates(String selection, String[] selectionArgs) {
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry.COLUMN_DATE}, selection, selectionArgs,
+                WeatherEntry.COLUMN_DATE + " ASC");
+        long[] dates = new long[cursor.getCount()];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            dates[i] = cursor.getLong(0);
+        }
+        cursor.close();
+        return dates;
+    }
+
+    public void testDeletesPastDays() {
+        insertDays(mLocationId, -5, 14);
+
+        Bundle result = applyRetention(null);
+
+        assertEquals("Error: every past day should have been deleted",
+                5, result.getInt("past_deleted"));
+        long[] dates = readDates(null, null);
+        assertEquals(14, dates.length);
+        assertEquals("Error: today should have been kept", dateOf(0), dates[0]);
+    }
+
+    public void testKeepsRequestedPastDays() {
+        insertDays(mLocationId, -5, 14);
+
+        Bundle extras = new Bundle();
+        extras.putInt(WeatherRetention.EXTRA_KEEP_PAST_DAYS, 2);
+        applyRetention(extras);
+
+        long[] dates = readDates(null, null);
+        assertEquals(16, dates.length);
+        assertEquals("Error: the two days before today should have been kept",
+                dateOf(-2), dates[0]);
+    }
+
+    public void testLocationCapKeepsLatestDays() {
+        insertDays(mLocationId, 0, 20);
+
+        Bundle extras = new Bundle();
+        extras.putInt(WeatherRetention.EXTRA_MAX_DAYS_PER_LOCATION, 10);
+        Bundle result = applyRetention(extras);
+
+        assertEquals(10, result.getInt("location_cap_deleted"));
+        long[] dates = readDates(null, null);
+        assertEquals(10, dates.length);
+        assertEquals("Error: the earliest days should have gone first", dateOf(10), dates[0]);
+    }
+
+    public void testRowCapSpansLocations() {
+        ContentValues otherLocation = TestUtilities.createNorthPoleLocationValues();
+        otherLocation.put(LocationEntry.COLUMN_LOCATION_SETTING, OTHER_LOCATION);
+        long otherLocationId = Long.parseLong(mContext.getContentResolver()
+                .insert(LocationEntry.CONTENT_URI, otherLocation).getLastPathSegment());
+        insertDays(mLocationId, 0, 10);
+        insertDays(otherLocationId, 5, 15);
+
+        Bundle extras = new Bundle();
+        extras.putInt(WeatherRetention.EXTRA_MAX_ROWS, 10);
+        Bundle result = applyRetention(extras);
+
+        assertEquals(10, result.getInt("row_cap_deleted"));
+        long[] dates = readDates(null, null);
+        assertEquals(10, dates.length);
+        for (long date : dates) {
+            assertTrue("Error: a day before the cutoff survived the row cap",
+                    date >= dateOf(5));
+        }
+    }
+
+    public void testSizeCapIsCountedApart() {
+        insertDays(mLocationId, 0, 10);
+
+        // Smaller than any database, so the size cap deletes every row.
+        Bundle extras = new Bundle();
+        extras.putLong(WeatherRetention.EXTRA_MAX_BYTES, 1);
+        Bundle result = applyRetention(extras);
+
+        assertEquals(10, result.getInt("size_cap_deleted"));
+        assertEquals("Error: the size cap's deletions were counted against the row cap",
+                0, result.getInt("row_cap_deleted"));
+        assertEquals(10, result.getInt(WeatherContract.RESULT_ROWS_DELETED));
+    }
+
+    public void testSmallChunksDeleteEverything() {
+        insertDays(mLocationId, -20, 3);
+
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        try {
+            WeatherRetention.Result result = new WeatherRetention(db,
+                    WeatherRetention.DEFAULT_POLICY, 3).run(System.currentTimeMillis());
+            assertEquals("Error: a backlog larger than a chunk should be deleted in full",
+                    20, result.pastDeleted);
+            assertEquals(1, result.changes.getLocationIds().size());
+            assertEquals(20, result.changes.getDates(mLocationId).size());
+        } finally {
+            dbHelper.close();
+        }
+        assertEquals(3, readDates(null, null).length);
+    }
+
+    public void testFreePagesAreReclaimed() {
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        try {
+            assertEquals("Error: a new database should use incremental auto_vacuum",
+                    WeatherRetention.AUTO_VACUUM_INCREMENTAL, queryLong(db, "PRAGMA auto_vacuum"));
+
+            long locationId = db.insert(LocationEntry.TABLE_NAME, null,
+                    TestUtilities.createNorthPoleLocationValues());
+            ContentValues values = TestUtilities.createWeatherValues(locationId);
+            // Long descriptions, so the rows fill a good number of pages.
+            values.put(WeatherEntry.COLUMN_SHORT_DESC, new String(new char[500]).replace('\0', 'x'));
+            for (int day = -400; day < 0; day++) {
+                values.put(WeatherEntry.COLUMN_DATE, dateOf(day));
+                db.insert(WeatherEntry.TABLE_NAME, null, values);
+            }
+            long pagesBefore = queryLong(db, "PRAGMA page_count");
+
+            WeatherRetention.Result result = new WeatherRetention(db,
+                    WeatherRetention.DEFAULT_POLICY).run(System.currentTimeMillis());
+
+            assertEquals(400, result.pastDeleted);
+            assertTrue("Error: deleting every row should have reclaimed pages",
+                    result.pagesReclaimed > 0);
+            assertEquals("Error: free pages were left in the file",
+                    0, queryLong(db, "PRAGMA freelist_count"));
+            assertTrue("Error: the file should have shrunk",
+                    queryLong(db, "PRAGMA page_count") < pagesBefore);
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    private static long queryLong(SQLiteDatabase db, String sql) {
+        Cursor cursor = db.rawQuery(sql, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Locale;
+
+/*
+    Checks that the compiled statement writer stores the same rows SQLiteDatabase.insert does, and
+    compares the two for batches of 14, 140 and 1,400 rows.  Benchmark results are only logged,
+    under the LOG_TAG below.
+ */
+public class TestWeatherBulkWriter extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestWeatherBulkWriter.class.getSimpleName();
+
+    private static final int BENCHMARK_ITERATIONS = 10;
+    private static final long MILLISECONDS_IN_A_DAY = 1000 * 60 * 60 * 24;
+
+    private SQLiteDatabase mDb;
+    private long mLocationId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        mDb = new WeatherDbHelper(mContext).getWritableDatabase();
+        mLocationId = mDb.insert(WeatherContract.LocationEntry.TABLE_NAME, null,
+                TestUtilities.createNorthPoleLocationValues());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    public void testNormalizeDateMatchesContract() {
+        WeatherBulkWriter writer = new WeatherBulkWriter(mDb);
+        for (int i = 0; i < 48; i++) {
+            long date = TestUtilities.TEST_DATE + i * MILLISECONDS_IN_A_DAY / 7;
+            assertEquals("Error: the writer normalized " + date + " differently",
+                    WeatherContract.normalizeDate(date), writer.normalizeDate(date));
+        }
+    }
+
+    public void testInsertAndUpdate() {
+        ContentValues expected = TestUtilities.createWeatherValues(mLocationId);
+        assertTrue(WeatherBulkWriter.canBind(expected));
+
+        WeatherBulkWriter writer = new WeatherBulkWriter(mDb);
+        mDb.beginTransaction();
+        long _id;
+        try {
+            _id = writer.insert(expected);
+            mDb.setTransactionSuccessful();
+        } finally {
+            writer.close();
+            mDb.endTransaction();
+        }
+        assertTrue("Error: the writer failed to insert a row", _id != -1);
+        TestUtilities.validateCursor("Error: the writer stored a different row",
+                queryWeather(_id), expected);
+
+        expected.put(WeatherEntry.COLUMN_SHORT_DESC, "Meteors");
+        expected.put(WeatherEntry.COLUMN_MAX_TEMP, 80);
+        writer = new WeatherBulkWriter(mDb);
+        mDb.beginTransaction();
+        try {
+            writer.update(_id, expected);
+            mDb.setTransactionSuccessful();
+        } finally {
+            writer.close();
+            mDb.endTransaction();
+        }
+        TestUtilities.validateCursor("Error: the writer updated the row incorrectly",
+                queryWeather(_id), expected);
+    }
+
+    public void testCanBindRejectsIncompleteRows() {
+        ContentValues values = TestUtilities.createWeatherValues(mLocationId);
+        values.remove(WeatherEntry.COLUMN_DEGREES);
+        assertFalse(WeatherBulkWriter.canBind(values));
+
+        values = TestUtilities.createWeatherValues(mLocationId);
+        values.put(WeatherEntry._ID, 1L);
+        assertFalse(WeatherBulkWriter.canBind(values));
+    }
+
+    public void testBenchmarkAgainstContentValues() {
+        for (int rows : new int[]{14, 140, 1400}) {
+            long contentValuesNanos = 0;
+            long writerNanos = 0;
+            for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+                mDb.delete(WeatherEntry.TABLE_NAME, null, null);
+                contentValuesNanos += insertWithContentValues(rows);
+                assertEquals(rows, countWeather());
+
+                mDb.delete(WeatherEntry.TABLE_NAME, null, null);
+                writerNanos += insertWithWriter(rows);
+                assertEquals(rows, countWeather());
+            }
+
+            Log.i(LOG_TAG, String.format(Locale.US,
+                    "%d rows: SQLiteDatabase.insert %.0f rows/s / WeatherBulkWriter %.0f rows/s",
+                    rows,
+                    rows * BENCHMARK_ITERATIONS * 1e9 / contentValuesNanos,
+                    rows * BENCHMARK_ITERATIONS * 1e9 / writerNanos));
+        }
+    }
+
+    // The way bulkInsert used to write: a ContentValues and a normalizeDate per row.
+    private long insertWithContentValues(int rows) {
+        long start = System.nanoTime();
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < rows; i++) {
+                ContentValues values = new ContentValues();
+                values.put(WeatherEntry.COLUMN_LOC_KEY, mLocationId);
+                values.put(WeatherEntry.COLUMN_DATE, WeatherContract.normalizeDate(dateOf(i)));
+                values.put(WeatherEntry.COLUMN_WEATHER_ID, 321);
+                values.put(WeatherEntry.COLUMN_SHORT_DESC, "Asteroids");
+                values.put(WeatherEntry.COLUMN_MIN_TEMP, 65.0 - i);
+                values.put(WeatherEntry.COLUMN_MAX_TEMP, 75.0 + i);
+                values.put(WeatherEntry.COLUMN_HUMIDITY, 1.2);
+                values.put(WeatherEntry.COLUMN_PRESSURE, 1.3);
+                values.put(WeatherEntry.COLUMN_WIND_SPEED, 5.5);
+                values.put(WeatherEntry.COLUMN_DEGREES, 1.1);
+                mDb.insert(WeatherEntry.TABLE_NAME, null, values);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private long insertWithWriter(int rows) {
+        long start = System.nanoTime();
+        WeatherBulkWriter writer = new WeatherBulkWriter(mDb);
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < rows; i++) {
+                writer.insert(mLocationId, writer.normalizeDate(dateOf(i)), 321, "Asteroids",
+                        65.0 - i, 75.0 + i, 1.2, 1.3, 5.5, 1.1);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            writer.close();
+            mDb.endTransaction();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private long dateOf(int day) {
+        return TestUtilities.TEST_DATE + day * MILLISECONDS_IN_A_DAY;
+    }
+
+    private Cursor queryWeather(long _id) {
+        return mDb.query(WeatherEntry.TABLE_NAME, null, WeatherEntry._ID + " = ?",
+                new String[]{Long.toString(_id)}, null, null, null);
+    }
+
+    private int countWeather() {
+        Cursor cursor = mDb.rawQuery("SELECT COUNT(*) FROM " + WeatherEntry.TABLE_NAME, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+/*
+    Feeds the scheduler runs of changed and unchanged syncs and checks the intervals it picks,
+    their bounds, and that what it learned survives a new instance, as it would a reboot.
+ */
+public class TestAdaptiveSyncScheduler extends AndroidTestCase {
+
+    private static final AdaptiveSyncScheduler.DeviceState CHEAP =
+            new AdaptiveSyncScheduler.DeviceState(true, true);
+    private static final AdaptiveSyncScheduler.DeviceState EXPENSIVE =
+            new AdaptiveSyncScheduler.DeviceState(false, false);
+
+    private AdaptiveSyncScheduler mScheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mScheduler = new AdaptiveSyncScheduler(mContext);
+        mScheduler.reset();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mScheduler.reset();
+        super.tearDown();
+    }
+
+    public void testStartsAtDefault() {
+        assertEquals(SunshineSyncAdapter.SYNC_INTERVAL, mScheduler.getInterval());
+        assertEquals(SunshineSyncAdapter.SYNC_FLEXTIME, mScheduler.getFlex());
+    }
+
+    public void testUnchangedSyncsStretchToMax() {
+        assertTrue("Error: an unchanged sync should reschedule",
+                mScheduler.onSyncFinished(false, CHEAP));
+        assertEquals(AdaptiveSyncScheduler.DEFAULT_INTERVAL
+                * AdaptiveSyncScheduler.STRETCH_PERCENT / 100, mScheduler.getInterval());
+
+        for (int i = 0; i < 10; i++) {
+            mScheduler.onSyncFinished(false, CHEAP);
+        }
+        assertEquals(AdaptiveSyncScheduler.MAX_INTERVAL, mScheduler.getInterval());
+        assertFalse("Error: nothing to reschedule once at the maximum",
+                mScheduler.onSyncFinished(false, CHEAP));
+    }
+
+    public void testExpensiveStateStretchesFurtherAndWidensFlex() {
+        mScheduler.onSyncFinished(false, EXPENSIVE);
+        int interval = mScheduler.getInterval();
+        assertEquals(AdaptiveSyncScheduler.DEFAULT_INTERVAL
+                * AdaptiveSyncScheduler.EXPENSIVE_STRETCH_PERCENT / 100, interval);
+        assertEquals(interval / AdaptiveSyncScheduler.EXPENSIVE_FLEX_DIVISOR,
+                mScheduler.getFlex());
+    }
+
+    public void testChangesNarrowToMin() {
+        // One change after a stretch goes back to the default pace.
+        mScheduler.onSyncFinished(false, CHEAP);
+        mScheduler.onSyncFinished(true, CHEAP);
+        assertEquals(AdaptiveSyncScheduler.DEFAULT_INTERVAL, mScheduler.getInterval());
+
+        // Changes back to back halve it each time.
+        mScheduler.onSyncFinished(true, CHEAP);
+        assertEquals(AdaptiveSyncScheduler.DEFAULT_INTERVAL / 2, mScheduler.getInterval());
+        for (int i = 0; i < 10; i++) {
+            mScheduler.onSyncFinished(true, CHEAP);
+        }
+        assertEquals(AdaptiveSyncScheduler.MIN_INTERVAL, mScheduler.getInterval());
+    }
+
+    public void testStatsSurviveNewInstance() {
+        mScheduler.onSyncFinished(false, CHEAP);
+        mScheduler.onSyncFinished(false, CHEAP);
+        mScheduler.onSyncFinished(true, CHEAP);
+        mScheduler.onSyncFinished(true, CHEAP);
+
+        AdaptiveSyncScheduler.Stats stats = new AdaptiveSyncScheduler(mContext).getStats();
+        assertEquals(mScheduler.getInterval(), stats.interval);
+        assertEquals(4, stats.syncs);
+        assertEquals(2, stats.unchangedSyncs);
+        assertEquals(0.5f, stats.getHitRate());
+        assertEquals(AdaptiveSyncScheduler.DEFAULT_INTERVAL
+                * AdaptiveSyncScheduler.STRETCH_PERCENT / 100
+                * AdaptiveSyncScheduler.STRETCH_PERCENT / 100, stats.longestInterval);
+        assertEquals(AdaptiveSyncScheduler.DEFAULT_INTERVAL / 2, stats.shortestInterval);
+    }
+}
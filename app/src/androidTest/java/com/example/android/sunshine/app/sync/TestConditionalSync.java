@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/*
+    Runs the sync adapter's fetch against a tiny HTTP server on the loopback interface to check
+    that a forecast which hasn't changed, whether the server says so with a 304 or just sends the
+    same body again, leaves the database and its observers alone.
+ */
+public class TestConditionalSync extends AndroidTestCase {
+
+    private static final String TEST_LOCATION = "99705";
+    private static final String TEST_ETAG = "\"forecast-v1\"";
+
+    // How long to give a (wrong) notification to show up before deciding there was none.
+    private static final long QUIET_PERIOD_MS = 1000;
+
+    private MockForecastServer mServer;
+    private SunshineSyncAdapter mSyncAdapter;
+
+    /*
+        Serves one canned forecast.  Answers 304 when the request carries the ETag it would send,
+        unless told not to send validators at all.
+     */
+    static class MockForecastServer implements Runnable {
+        private final ServerSocket mServerSocket;
+        private final Thread mThread;
+        final List<Map<String, String>> requests =
+                Collections.synchronizedList(new ArrayList<Map<String, String>>());
+        volatile String body;
+        volatile boolean sendValidators = true;
+
+        MockForecastServer() throws IOException {
+            mServerSocket = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+            mThread = new Thread(this, "MockForecastServer");
+            mThread.start();
+        }
+
+        URL getUrl() throws IOException {
+            return new URL("http://127.0.0.1:" + mServerSocket.getLocalPort()
+                    + "/data/2.5/forecast/daily?q=" + TEST_LOCATION);
+        }
+
+        @Override
+        public void run() {
+            while (!mServerSocket.isClosed()) {
+                try {
+                    Socket socket = mServerSocket.accept();
+                    try {
+                        serve(socket);
+                    } finally {
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    // Closed by shutdown(), or the client went away; either way keep going.
+                }
+            }
+        }
+
+        private void serve(Socket socket) throws IOException {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            Map<String, String> headers = new HashMap<String, String>();
+            String line = in.readLine();
+            while ((line = in.readLine()) != null && line.length() > 0) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                            line.substring(colon + 1).trim());
+                }
+            }
+            requests.add(headers);
+
+            StringBuilder response = new StringBuilder();
+            byte[] content = new byte[0];
+            if (sendValidators && TEST_ETAG.equals(headers.get("if-none-match"))) {
+                response.append("HTTP/1.1 304 Not Modified\r\n");
+            } else {
+                content = body.getBytes("UTF-8");
+                response.append("HTTP/1.1 200 OK\r\n")
+                        .append("Content-Type: application/json; charset=utf-8\r\n")
+                        .append("Content-Length: ").append(content.length).append("\r\n");
+                if (sendValidators) {
+                    response.append("ETag: ").append(TEST_ETAG).append("\r\n");
+                }
+            }
+            response.append("Connection: close\r\n\r\n");
+
+            OutputStream out = socket.getOutputStream();
+            out.write(response.toString().getBytes("UTF-8"));
+            out.write(content);
+            out.flush();
+        }
+
+        void shutdown() throws IOException {
+            mServerSocket.close();
+        }
+    }
+
+    static class CountingObserver extends ContentObserver {
+        final HandlerThread mHT;
+        volatile int mChangeCount;
+
+        static CountingObserver create() {
+            HandlerThread ht = new HandlerThread("CountingObserverThread");
+            ht.start();
+            return new CountingObserver(ht);
+        }
+
+        private CountingObserver(HandlerThread ht) {
+            super(new Handler(ht.getLooper()));
+            mHT = ht;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            mChangeCount++;
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        new ForecastValidatorStore(mContext).clear(TEST_LOCATION);
+
+        mServer = new MockForecastServer();
+        mServer.body = TestForecastJsonParser.createForecastJson(14);
+        mSyncAdapter = new SunshineSyncAdapter(mContext, false);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        new ForecastValidatorStore(mContext).clear(TEST_LOCATION);
+        super.tearDown();
+    }
+
+    private ArrayList<Long> readWeatherIds() {
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID}, null, null, WeatherEntry._ID + " ASC");
+        ArrayList<Long> ids = new ArrayList<Long>();
+        while (cursor.moveToNext()) {
+            ids.add(cursor.getLong(0));
+        }
+        cursor.close();
+        return ids;
+    }
+
+    private void assertSecondSyncIsANoOp() throws Exception {
+        mSyncAdapter.syncForecast(mServer.getUrl(), TEST_LOCATION);
+        ArrayList<Long> idsBefore = readWeatherIds();
+        assertEquals("Error: the first sync should have stored the whole forecast",
+                14, idsBefore.size());
+
+        CountingObserver weatherObserver = CountingObserver.create();
+        CountingObserver locationObserver = CountingObserver.create();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.CONTENT_URI, true, weatherObserver);
+        mContext.getContentResolver().registerContentObserver(
+                LocationEntry.CONTENT_URI, true, locationObserver);
+        try {
+            mSyncAdapter.syncForecast(mServer.getUrl(), TEST_LOCATION);
+            Thread.sleep(QUIET_PERIOD_MS);
+
+            assertEquals("Error: an unchanged forecast notified weather observers",
+                    0, weatherObserver.mChangeCount);
+            assertEquals("Error: an unchanged forecast notified location observers",
+                    0, locationObserver.mChangeCount);
+            assertEquals("Error: an unchanged forecast rewrote the weather rows",
+                    idsBefore, readWeatherIds());
+        } finally {
+            mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+            mContext.getContentResolver().unregisterContentObserver(locationObserver);
+            weatherObserver.mHT.quit();
+            locationObserver.mHT.quit();
+        }
+    }
+
+    public void testNotModifiedSkipsDatabase() throws Exception {
+        assertSecondSyncIsANoOp();
+
+        assertEquals(2, mServer.requests.size());
+        assertNull("Error: the first request should not have been conditional",
+                mServer.requests.get(0).get("if-none-match"));
+        assertEquals("Error: the second request should have sent the stored ETag",
+                TEST_ETAG, mServer.requests.get(1).get("if-none-match"));
+    }
+
+    public void testUnchangedBodySkipsDatabase() throws Exception {
+        // Without validators the server has to send the full body again, and the sync adapter
+        // has to recognize it by its hash.
+        mServer.sendValidators = false;
+        assertSecondSyncIsANoOp();
+    }
+
+    public void testChangedBodyIsWritten() throws Exception {
+        mServer.sendValidators = false;
+        mSyncAdapter.syncForecast(mServer.getUrl(), TEST_LOCATION);
+
+        mServer.body = TestForecastJsonParser.createForecastJson(14)
+                .replace("\"humidity\":60", "\"humidity\":99");
+
+        CountingObserver weatherObserver = CountingObserver.create();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.CONTENT_URI, true, weatherObserver);
+        try {
+            mSyncAdapter.syncForecast(mServer.getUrl(), TEST_LOCATION);
+            Thread.sleep(QUIET_PERIOD_MS);
+            assertTrue("Error: a changed forecast should notify weather observers",
+                    weatherObserver.mChangeCount > 0);
+        } finally {
+            mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+            weatherObserver.mHT.quit();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import java.util.Random;
+
+/*
+    Walks the breaker through an outage on a made up clock: failures opening it, the delay
+    holding syncs back, the half open probe, and the way back to closed.
+ */
+public class TestForecastCircuitBreaker extends AndroidTestCase {
+
+    private static final long START = 1000000000000L;
+
+    private ForecastCircuitBreaker mCircuit;
+    private double mJitter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mJitter = 0;
+        mCircuit = new ForecastCircuitBreaker(mContext, new Random() {
+            @Override
+            public double nextDouble() {
+                return mJitter;
+            }
+        });
+        mCircuit.onSuccess();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCircuit.onSuccess();
+        super.tearDown();
+    }
+
+    private void openCircuit(long now) {
+        for (int i = 0; i < ForecastCircuitBreaker.FAILURE_THRESHOLD; i++) {
+            assertTrue(mCircuit.allowSync(now));
+            mCircuit.onFailure(now);
+        }
+        assertEquals(ForecastCircuitBreaker.STATE_OPEN, mCircuit.getState());
+    }
+
+    public void testFailuresBelowThresholdKeepCircuitClosed() {
+        mCircuit.onFailure(START);
+        assertEquals(ForecastCircuitBreaker.STATE_CLOSED, mCircuit.getState());
+        assertTrue(mCircuit.allowSync(START));
+
+        // A success in between starts the count over.
+        mCircuit.onSuccess();
+        mCircuit.onFailure(START);
+        assertEquals(ForecastCircuitBreaker.STATE_CLOSED, mCircuit.getState());
+    }
+
+    public void testOpenCircuitHoldsSyncsBackUntilProbe() {
+        openCircuit(START);
+        long retryAt = mCircuit.getRetryAt();
+        assertEquals("Error: the first delay should be at least half the base delay",
+                START + ForecastCircuitBreaker.BASE_DELAY_MILLIS / 2, retryAt);
+
+        assertFalse(mCircuit.allowSync(START + 1));
+        assertFalse(mCircuit.allowSync(retryAt - 1));
+
+        // One probe, and nothing else while it's out.
+        assertTrue(mCircuit.allowSync(retryAt));
+        assertEquals(ForecastCircuitBreaker.STATE_HALF_OPEN, mCircuit.getState());
+        assertFalse(mCircuit.allowSync(retryAt + 1));
+
+        mCircuit.onSuccess();
+        assertEquals(ForecastCircuitBreaker.STATE_CLOSED, mCircuit.getState());
+        assertTrue(mCircuit.allowSync(retryAt + 1));
+    }
+
+    public void testFailedProbeDoublesDelay() {
+        mJitter = 1;
+        openCircuit(START);
+        long now = mCircuit.getRetryAt();
+        assertEquals(START + ForecastCircuitBreaker.BASE_DELAY_MILLIS, now);
+
+        long expected = ForecastCircuitBreaker.BASE_DELAY_MILLIS;
+        for (int i = 0; i < 10; i++) {
+            assertTrue(mCircuit.allowSync(now));
+            mCircuit.onFailure(now);
+            assertEquals(ForecastCircuitBreaker.STATE_OPEN, mCircuit.getState());
+            expected = Math.min(expected * 2, ForecastCircuitBreaker.MAX_DELAY_MILLIS);
+            assertEquals(now + expected, mCircuit.getRetryAt());
+            now = mCircuit.getRetryAt();
+        }
+        assertEquals("Error: the delay should stop growing at the maximum",
+                ForecastCircuitBreaker.MAX_DELAY_MILLIS, expected);
+    }
+
+    public void testDelaysAreJittered() {
+        ForecastCircuitBreaker circuit = new ForecastCircuitBreaker(mContext, new Random(42));
+        long delay = 4 * ForecastCircuitBreaker.BASE_DELAY_MILLIS;
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < 100; i++) {
+            long jittered = circuit.getDelay(3);
+            assertTrue(jittered >= delay / 2 && jittered <= delay);
+            min = Math.min(min, jittered);
+            max = Math.max(max, jittered);
+        }
+        assertTrue("Error: the delays should be spread out, got " + min + " to " + max,
+                max - min > delay / 4);
+    }
+
+    public void testLostProbeIsReplaced() {
+        openCircuit(START);
+        long retryAt = mCircuit.getRetryAt();
+        assertTrue(mCircuit.allowSync(retryAt));
+        assertFalse(mCircuit.allowSync(retryAt + 1));
+        assertTrue("Error: a probe that never reported back should not block syncs forever",
+                mCircuit.allowSync(retryAt + ForecastCircuitBreaker.PROBE_TIMEOUT_MILLIS));
+    }
+
+    public void testStatePersists() {
+        openCircuit(START);
+        ForecastCircuitBreaker reloaded = new ForecastCircuitBreaker(mContext);
+        assertEquals(ForecastCircuitBreaker.STATE_OPEN, reloaded.getState());
+        assertEquals(mCircuit.getRetryAt(), reloaded.getRetryAt());
+        assertFalse(reloaded.allowSync(START + 1));
+    }
+}
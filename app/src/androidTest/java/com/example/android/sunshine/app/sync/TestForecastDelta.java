@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+import android.text.format.Time;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Applies pushed forecast deltas on top of a stored forecast, checking that only the days they
+    carry change, that the new version is remembered, and that a delta against another version
+    leaves the database alone.
+ */
+public class TestForecastDelta extends AndroidTestCase {
+
+    private static final String TEST_LOCATION = "99705";
+    private static final String BASE_VERSION = "\"forecast-v1\"";
+    private static final String NEW_VERSION = "\"forecast-v2\"";
+    private static final int DAYS = 14;
+
+    private ForecastValidatorStore mValidators;
+    private int mJulianStartDay;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mValidators = new ForecastValidatorStore(mContext);
+
+        Time dayTime = new Time();
+        dayTime.setToNow();
+        mJulianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+
+        // The base forecast, stored the way a sync stores it.
+        Time utcTime = new Time();
+        List<ContentValues> days = new ArrayList<ContentValues>(DAYS);
+        for (int i = 0; i < DAYS; i++) {
+            ContentValues values = new ContentValues();
+            values.put(WeatherEntry.COLUMN_DATE, utcTime.setJulianDay(mJulianStartDay + i));
+            values.put(WeatherEntry.COLUMN_HUMIDITY, 50);
+            values.put(WeatherEntry.COLUMN_PRESSURE, 1000.0);
+            values.put(WeatherEntry.COLUMN_WIND_SPEED, 1.0);
+            values.put(WeatherEntry.COLUMN_DEGREES, 90.0);
+            values.put(WeatherEntry.COLUMN_MAX_TEMP, 20.0);
+            values.put(WeatherEntry.COLUMN_MIN_TEMP, 10.0);
+            values.put(WeatherEntry.COLUMN_SHORT_DESC, "Clear");
+            values.put(WeatherEntry.COLUMN_WEATHER_ID, 800);
+            days.add(values);
+        }
+        mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY,
+                SunshineSyncAdapter.buildForecastOperations(TEST_LOCATION, "North Pole",
+                        64.7488, -147.353, days));
+        mValidators.save(TEST_LOCATION, BASE_VERSION, null, "hash");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mValidators.clear(TEST_LOCATION);
+        super.tearDown();
+    }
+
+    private JSONObject createDelta(String base, int... dayOffsets) throws Exception {
+        JSONArray days = new JSONArray();
+        for (int offset : dayOffsets) {
+            days.put(new JSONObject()
+                    .put("julian_day", mJulianStartDay + offset)
+                    .put("pressure", 990.5)
+                    .put("humidity", 95)
+                    .put("speed", 12.5)
+                    .put("deg", 270)
+                    .put("temp", new JSONObject().put("max", 8.5).put("min", 2.5))
+                    .put("weather", new JSONArray().put(
+                            new JSONObject().put("id", 501).put("main", "Rain"))));
+        }
+        return new JSONObject()
+                .put("location", TEST_LOCATION)
+                .put("base", base)
+                .put("version", NEW_VERSION)
+                .put("days", days);
+    }
+
+    private List<String> readDescriptions() {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TEST_LOCATION),
+                new String[]{WeatherEntry.COLUMN_SHORT_DESC},
+                null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        List<String> descriptions = new ArrayList<String>();
+        while (cursor.moveToNext()) {
+            descriptions.add(cursor.getString(0));
+        }
+        cursor.close();
+        return descriptions;
+    }
+
+    public void testDeltaChangesOnlyItsDays() throws Exception {
+        ForecastDelta delta = ForecastDelta.parse(createDelta(BASE_VERSION, 1, 3));
+        assertEquals(ForecastDelta.Result.APPLIED, delta.apply(mContext, mValidators));
+
+        List<String> descriptions = readDescriptions();
+        assertEquals("Error: a delta should not add or remove days", DAYS, descriptions.size());
+        for (int i = 0; i < DAYS; i++) {
+            assertEquals("Error: wrong weather on day " + i,
+                    i == 1 || i == 3 ? "Rain" : "Clear", descriptions.get(i));
+        }
+        assertEquals(NEW_VERSION, mValidators.getETag(TEST_LOCATION));
+        assertNull("Error: the old content hash no longer describes the stored forecast",
+                mValidators.getContentHash(TEST_LOCATION));
+    }
+
+    public void testDeltaAgainstOtherVersionIsRejected() throws Exception {
+        ForecastDelta delta = ForecastDelta.parse(createDelta("\"forecast-v0\"", 1));
+        assertEquals(ForecastDelta.Result.BASE_MISMATCH, delta.apply(mContext, mValidators));
+
+        for (String description : readDescriptions()) {
+            assertEquals("Clear", description);
+        }
+        assertEquals(BASE_VERSION, mValidators.getETag(TEST_LOCATION));
+    }
+
+    public void testDeltaWaitsForSyncInProgress() throws Exception {
+        final ForecastDelta delta = ForecastDelta.parse(createDelta(BASE_VERSION, 1));
+        final ForecastDelta.Result[] result = new ForecastDelta.Result[1];
+        Thread gcmThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                result[0] = delta.apply(mContext, mValidators);
+            }
+        });
+
+        // Stands in for a sync that is storing a newer forecast as the delta arrives.
+        synchronized (ForecastValidatorStore.STORE_LOCK) {
+            gcmThread.start();
+            gcmThread.join(200);
+            assertTrue("Error: the delta should wait for the sync to finish storing",
+                    gcmThread.isAlive());
+            mValidators.save(TEST_LOCATION, "\"forecast-v3\"", null, "newer");
+        }
+        gcmThread.join();
+
+        assertEquals(ForecastDelta.Result.BASE_MISMATCH, result[0]);
+        assertEquals("Error: the delta overwrote the newer forecast's validators",
+                "\"forecast-v3\"", mValidators.getETag(TEST_LOCATION));
+        for (String description : readDescriptions()) {
+            assertEquals("Clear", description);
+        }
+    }
+
+    public void testDeltaIsOnlyAppliedOnce() throws Exception {
+        ForecastDelta delta = ForecastDelta.parse(createDelta(BASE_VERSION, 0));
+        assertEquals(ForecastDelta.Result.APPLIED, delta.apply(mContext, mValidators));
+        assertEquals("Error: a redelivered message should not apply on top of itself",
+                ForecastDelta.Result.BASE_MISMATCH, delta.apply(mContext, mValidators));
+    }
+}
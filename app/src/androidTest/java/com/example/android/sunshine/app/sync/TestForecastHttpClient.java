@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/*
+    Serves a compressed forecast over kept-alive connections on the loopback interface, to check
+    that the body is asked for compressed, decoded on the way to the parser, counted on both sides
+    of the decoder, and that one connection carries all of the requests.
+ */
+public class TestForecastHttpClient extends AndroidTestCase {
+
+    /*
+        Answers any number of requests per connection with the same body, encoded as told.
+     */
+    static class KeepAliveServer implements Runnable {
+        private final ServerSocket mServerSocket;
+        final AtomicInteger connections = new AtomicInteger();
+        final Map<String, String> lastHeaders = new HashMap<String, String>();
+        volatile byte[] body;
+        volatile String contentEncoding;
+
+        KeepAliveServer() throws IOException {
+            mServerSocket = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+            new Thread(this, "KeepAliveServer").start();
+        }
+
+        URL getUrl() throws IOException {
+            return new URL("http://127.0.0.1:" + mServerSocket.getLocalPort() + "/forecast");
+        }
+
+        @Override
+        public void run() {
+            while (!mServerSocket.isClosed()) {
+                try {
+                    final Socket socket = mServerSocket.accept();
+                    connections.incrementAndGet();
+                    new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                while (serve(socket)) {
+                                    // Next request on the same connection.
+                                }
+                                socket.close();
+                            } catch (IOException e) {
+                                // The client went away.
+                            }
+                        }
+                    }).start();
+                } catch (IOException e) {
+                    // Closed by shutdown().
+                }
+            }
+        }
+
+        // Reads one request line by line off the raw stream, so nothing of the next one is lost
+        // to a reader's buffer.
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1 && c != '\n') {
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return c == -1 && line.length() == 0 ? null : line.toString();
+        }
+
+        private boolean serve(Socket socket) throws IOException {
+            InputStream in = socket.getInputStream();
+            if (readLine(in) == null) {
+                return false;
+            }
+            String line;
+            synchronized (lastHeaders) {
+                lastHeaders.clear();
+                while ((line = readLine(in)) != null && line.length() > 0) {
+                    int colon = line.indexOf(':');
+                    if (colon > 0) {
+                        lastHeaders.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                                line.substring(colon + 1).trim());
+                    }
+                }
+            }
+            StringBuilder response = new StringBuilder("HTTP/1.1 200 OK\r\n")
+                    .append("Content-Type: application/json; charset=utf-8\r\n")
+                    .append("Content-Length: ").append(body.length).append("\r\n");
+            if (contentEncoding != null) {
+                response.append("Content-Encoding: ").append(contentEncoding).append("\r\n");
+            }
+            response.append("\r\n");
+            OutputStream out = socket.getOutputStream();
+            out.write(response.toString().getBytes("UTF-8"));
+            out.write(body);
+            out.flush();
+            return true;
+        }
+
+        void shutdown() throws IOException {
+            mServerSocket.close();
+        }
+    }
+
+    private KeepAliveServer mServer;
+    private String mForecast;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new KeepAliveServer();
+        mForecast = TestForecastJsonParser.createForecastJson(16);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    private String fetch(ForecastHttpClient client) throws IOException {
+        HttpURLConnection connection = client.open(mServer.getUrl());
+        connection.connect();
+        InputStream body = client.openBody(connection);
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[512];
+            int count;
+            while ((count = body.read(buffer)) != -1) {
+                decoded.write(buffer, 0, count);
+            }
+        } finally {
+            body.close();
+        }
+        return decoded.toString("UTF-8");
+    }
+
+    public void testGzipBodyIsDecodedAndCounted() throws Exception {
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(gzipped);
+        gzip.write(mForecast.getBytes("UTF-8"));
+        gzip.close();
+        mServer.body = gzipped.toByteArray();
+        mServer.contentEncoding = "gzip";
+
+        ForecastHttpClient client = new ForecastHttpClient();
+        assertEquals("Error: the gzipped body should decode to the forecast",
+                mForecast, fetch(client));
+        synchronized (mServer.lastHeaders) {
+            assertEquals("gzip, deflate", mServer.lastHeaders.get("accept-encoding"));
+        }
+
+        ForecastHttpClient.Stats stats = client.getStats();
+        assertEquals(gzipped.size(), stats.bytesOnWire);
+        assertEquals(mForecast.getBytes("UTF-8").length, stats.bytesDecoded);
+        assertTrue("Error: a forecast should compress, got " + stats,
+                stats.getCompressionRatio() > 2);
+    }
+
+    public void testDeflateBodyIsDecoded() throws Exception {
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        DeflaterOutputStream deflate = new DeflaterOutputStream(deflated);
+        deflate.write(mForecast.getBytes("UTF-8"));
+        deflate.close();
+        mServer.body = deflated.toByteArray();
+        mServer.contentEncoding = "deflate";
+
+        assertEquals(mForecast, fetch(new ForecastHttpClient()));
+    }
+
+    public void testConnectionIsReused() throws Exception {
+        mServer.body = mForecast.getBytes("UTF-8");
+        ForecastHttpClient client = new ForecastHttpClient();
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(mForecast, fetch(client));
+        }
+
+        assertEquals("Error: all three requests should have gone over one connection",
+                1, mServer.connections.get());
+        ForecastHttpClient.Stats stats = client.getStats();
+        assertEquals(3, stats.requests);
+        assertEquals("Error: the second and third request should count as reused",
+                2, stats.reusedConnections);
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/*
+    Checks that the streaming parser reads the same values the old JSONObject based code did, and
+    benchmarks the two against each other on forecasts shaped like the ones OWM sends for 7, 14
+    and 16 days.  Benchmark results are only logged, under the LOG_TAG below.
+ */
+public class TestForecastJsonParser extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestForecastJsonParser.class.getSimpleName();
+
+    private static final int BENCHMARK_ITERATIONS = 200;
+    private static final long TEST_LOCATION_ID = 1L;
+
+    private static final String[] DESCRIPTIONS = {"Clear", "Clouds", "Rain", "Snow"};
+    private static final int[] WEATHER_IDS = {800, 803, 500, 601};
+
+    /*
+        Builds a response laid out the way OWM's daily forecast endpoint lays it out: "city"
+        first, then "cod", "message", "cnt" and finally the "list" of days.
+     */
+    static String createForecastJson(int days) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"city\":{\"id\":5375480,\"name\":\"Mountain View\",")
+                .append("\"coord\":{\"lon\":-122.083847,\"lat\":37.386051},")
+                .append("\"country\":\"US\",\"population\":0},")
+                .append("\"cod\":\"200\",\"message\":0.0123,\"cnt\":").append(days)
+                .append(",\"list\":[");
+        for (int i = 0; i < days; i++) {
+            int kind = i % DESCRIPTIONS.length;
+            if (i > 0) sb.append(',');
+            sb.append(String.format(Locale.US,
+                    "{\"dt\":%d,\"temp\":{\"day\":%.2f,\"min\":%.2f,\"max\":%.2f,"
+                            + "\"night\":%.2f,\"eve\":%.2f,\"morn\":%.2f},"
+                            + "\"pressure\":%.2f,\"humidity\":%d,"
+                            + "\"weather\":[{\"id\":%d,\"main\":\"%s\","
+                            + "\"description\":\"%s\",\"icon\":\"01d\"}],"
+                            + "\"speed\":%.2f,\"deg\":%d,\"clouds\":%d}",
+                    1419033600L + i * 86400L,
+                    18.5 + i, 10.25 + i, 21.75 + i, 12.0 + i, 17.0 + i, 11.0 + i,
+                    1012.5 - i, 60 + i, WEATHER_IDS[kind], DESCRIPTIONS[kind],
+                    DESCRIPTIONS[kind].toLowerCase(Locale.US),
+                    3.5 + 0.1 * i, 180 + i, 10 * kind));
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    static InputStream toStream(String json) throws IOException {
+        return new ByteArrayInputStream(json.getBytes("UTF-8"));
+    }
+
+    /*
+        Collects what the streaming parser reports into ContentValues, the same shape the sync
+        adapter hands to bulkInsert.
+     */
+    static class CollectingListener implements ForecastJsonParser.Listener {
+        String cityName;
+        double lat;
+        double lon;
+        final ArrayList<ContentValues> days = new ArrayList<ContentValues>();
+
+        @Override
+        public void onLocation(String cityName, double lat, double lon) {
+            this.cityName = cityName;
+            this.lat = lat;
+            this.lon = lon;
+        }
+
+        @Override
+        public void onDay(int dayIndex, double pressure, int humidity, double windSpeed,
+                          double windDirection, double high, double low, String description,
+                          int weatherId) {
+            assertEquals("Error: days were reported out of order", days.size(), dayIndex);
+            ContentValues values = new ContentValues();
+            values.put(WeatherEntry.COLUMN_LOC_KEY, TEST_LOCATION_ID);
+            values.put(WeatherEntry.COLUMN_DATE, (long) dayIndex);
+            values.put(WeatherEntry.COLUMN_HUMIDITY, humidity);
+            values.put(WeatherEntry.COLUMN_PRESSURE, pressure);
+            values.put(WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
+            values.put(WeatherEntry.COLUMN_DEGREES, windDirection);
+            values.put(WeatherEntry.COLUMN_MAX_TEMP, high);
+            values.put(WeatherEntry.COLUMN_MIN_TEMP, low);
+            values.put(WeatherEntry.COLUMN_SHORT_DESC, description);
+            values.put(WeatherEntry.COLUMN_WEATHER_ID, weatherId);
+            days.add(values);
+        }
+    }
+
+    /*
+        The path the sync adapter used before the streaming parser: read the body line by line
+        into a StringBuffer, build a JSONObject tree, then copy each day into ContentValues.
+     */
+    static ArrayList<ContentValues> parseWithJsonObject(InputStream in)
+            throws IOException, JSONException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        StringBuffer buffer = new StringBuffer();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            buffer.append(line + "\n");
+        }
+
+        JSONObject forecastJson = new JSONObject(buffer.toString());
+        JSONArray weatherArray = forecastJson.getJSONArray("list");
+        JSONObject cityJson = forecastJson.getJSONObject("city");
+        cityJson.getString("name");
+        JSONObject cityCoord = cityJson.getJSONObject("coord");
+        cityCoord.getDouble("lat");
+        cityCoord.getDouble("lon");
+
+        ArrayList<ContentValues> days = new ArrayList<ContentValues>(weatherArray.length());
+        for (int i = 0; i < weatherArray.length(); i++) {
+            JSONObject dayForecast = weatherArray.getJSONObject(i);
+            JSONObject weatherObject = dayForecast.getJSONArray("weather").getJSONObject(0);
+            JSONObject temperatureObject = dayForecast.getJSONObject("temp");
+
+            ContentValues values = new ContentValues();
+            values.put(WeatherEntry.COLUMN_LOC_KEY, TEST_LOCATION_ID);
+            values.put(WeatherEntry.COLUMN_DATE, (long) i);
+            values.put(WeatherEntry.COLUMN_HUMIDITY, dayForecast.getInt("humidity"));
+            values.put(WeatherEntry.COLUMN_PRESSURE, dayForecast.getDouble("pressure"));
+            values.put(WeatherEntry.COLUMN_WIND_SPEED, dayForecast.getDouble("speed"));
+            values.put(WeatherEntry.COLUMN_DEGREES, dayForecast.getDouble("deg"));
+            values.put(WeatherEntry.COLUMN_MAX_TEMP, temperatureObject.getDouble("max"));
+            values.put(WeatherEntry.COLUMN_MIN_TEMP, temperatureObject.getDouble("min"));
+            values.put(WeatherEntry.COLUMN_SHORT_DESC, weatherObject.getString("main"));
+            values.put(WeatherEntry.COLUMN_WEATHER_ID, weatherObject.getInt("id"));
+            days.add(values);
+        }
+        return days;
+    }
+
+    public void testMatchesJsonObjectParse() throws Exception {
+        String json = createForecastJson(14);
+
+        CollectingListener listener = new CollectingListener();
+        int code = new ForecastJsonParser().parse(toStream(json), listener);
+        ArrayList<ContentValues> expected = parseWithJsonObject(toStream(json));
+
+        assertEquals("Error: a good forecast should report HTTP_OK", 200, code);
+        assertEquals("Mountain View", listener.cityName);
+        assertEquals(37.386051, listener.lat, 1e-9);
+        assertEquals(-122.083847, listener.lon, 1e-9);
+        assertEquals("Error: wrong number of days parsed", expected.size(), listener.days.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals("Error: day " + i + " differs from the JSONObject parse",
+                    expected.get(i), listener.days.get(i));
+        }
+    }
+
+    public void testCityAfterList() throws Exception {
+        String json = "{\"cod\":200,\"list\":[" +
+                "{\"temp\":{\"min\":1,\"max\":2},\"pressure\":3,\"humidity\":4," +
+                "\"weather\":[{\"id\":800,\"main\":\"Clear\"}],\"speed\":5,\"deg\":6}]," +
+                "\"city\":{\"name\":\"North Pole\",\"coord\":{\"lat\":64.7488,\"lon\":-147.353}}}";
+
+        final boolean[] sawLocation = new boolean[1];
+        new ForecastJsonParser().parse(toStream(json), new CollectingListener() {
+            @Override
+            public void onLocation(String cityName, double lat, double lon) {
+                super.onLocation(cityName, lat, lon);
+                sawLocation[0] = true;
+            }
+
+            @Override
+            public void onDay(int dayIndex, double pressure, int humidity, double windSpeed,
+                              double windDirection, double high, double low,
+                              String description, int weatherId) {
+                assertTrue("Error: a day was reported before its location", sawLocation[0]);
+                super.onDay(dayIndex, pressure, humidity, windSpeed, windDirection, high, low,
+                        description, weatherId);
+            }
+        });
+        assertTrue(sawLocation[0]);
+    }
+
+    public void testErrorCode() throws Exception {
+        CollectingListener listener = new CollectingListener();
+        int code = new ForecastJsonParser().parse(
+                toStream("{\"cod\":\"404\",\"message\":\"Error: Not found city\"}"), listener);
+        assertEquals(404, code);
+        assertTrue(listener.days.isEmpty());
+    }
+
+    public void testMalformedForecast() throws Exception {
+        try {
+            new ForecastJsonParser().parse(toStream("{\"cod\":200,\"list\":[{\"temp\":"),
+                    new CollectingListener());
+            fail("Error: a truncated forecast should not parse");
+        } catch (IOException | JSONException expected) {
+            // A truncated body is an EOFException, a bad token a JSONException; either will do.
+        }
+
+        try {
+            new ForecastJsonParser().parse(toStream("{\"cod\":200,\"list\":[]}"),
+                    new CollectingListener());
+            fail("Error: a forecast without a city should not parse");
+        } catch (JSONException expected) {
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    public void testBenchmarkAgainstJsonObject() throws Exception {
+        for (int days : new int[]{7, 14, 16}) {
+            byte[] payload = createForecastJson(days).getBytes("UTF-8");
+
+            // Warm both paths up so the JIT and class loading don't count against either.
+            for (int i = 0; i < 20; i++) {
+                parseWithJsonObject(new ByteArrayInputStream(payload));
+                new ForecastJsonParser().parse(new ByteArrayInputStream(payload),
+                        new CollectingListener());
+            }
+
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+            Debug.startAllocCounting();
+            long start = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+                parseWithJsonObject(new ByteArrayInputStream(payload));
+            }
+            long domNanos = System.nanoTime() - start;
+            Debug.stopAllocCounting();
+            int domAllocs = Debug.getThreadAllocCount();
+            int domBytes = Debug.getThreadAllocSize();
+
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+            Debug.startAllocCounting();
+            start = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+                new ForecastJsonParser().parse(new ByteArrayInputStream(payload),
+                        new CollectingListener());
+            }
+            long streamNanos = System.nanoTime() - start;
+            Debug.stopAllocCounting();
+            int streamAllocs = Debug.getThreadAllocCount();
+            int streamBytes = Debug.getThreadAllocSize();
+
+            Log.i(LOG_TAG, String.format(Locale.US,
+                    "%d days (%d bytes): JSONObject %.1f us, %d objects, %d bytes / " +
+                            "streaming %.1f us, %d objects, %d bytes (per parse)",
+                    days, payload.length,
+                    domNanos / 1000.0 / BENCHMARK_ITERATIONS,
+                    domAllocs / BENCHMARK_ITERATIONS, domBytes / BENCHMARK_ITERATIONS,
+                    streamNanos / 1000.0 / BENCHMARK_ITERATIONS,
+                    streamAllocs / BENCHMARK_ITERATIONS, streamBytes / BENCHMARK_ITERATIONS));
+        }
+    }
+}
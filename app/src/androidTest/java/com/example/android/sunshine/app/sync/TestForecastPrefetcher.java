@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Prefetches from the mock forecast server and checks that committing the prefetched location
+    stores its forecast without going back to the network.
+ */
+public class TestForecastPrefetcher extends AndroidTestCase {
+
+    private static final String TEST_LOCATION = "99705";
+
+    // Enough for a prefetch and a commit to go through the prefetcher's thread.
+    private static final long SETTLE_MS = 2000;
+
+    private TestConditionalSync.MockForecastServer mServer;
+    private ForecastPrefetcher mPrefetcher;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        new ForecastValidatorStore(mContext).clear(TEST_LOCATION);
+        new ForecastCircuitBreaker(mContext).onSuccess();
+
+        mServer = new TestConditionalSync.MockForecastServer();
+        mServer.body = TestForecastJsonParser.createForecastJson(14);
+        mPrefetcher = new ForecastPrefetcher(mContext, new ForecastHttpClient());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        new ForecastValidatorStore(mContext).clear(TEST_LOCATION);
+        super.tearDown();
+    }
+
+    public void testCommitStoresPrefetchedForecast() throws Exception {
+        mPrefetcher.prefetch(mServer.getUrl(), TEST_LOCATION);
+        mPrefetcher.commit(TEST_LOCATION);
+        Thread.sleep(SETTLE_MS);
+
+        assertEquals("Error: the forecast should have been fetched once",
+                1, mServer.requests.size());
+        assertEquals("Error: the prefetched forecast should have been stored",
+                14, countWeatherRows());
+        assertNotNull("Error: the prefetched forecast's validators should have been saved",
+                new ForecastValidatorStore(mContext).getETag(TEST_LOCATION));
+    }
+
+    public void testPrefetchIsCached() throws Exception {
+        mPrefetcher.prefetch(mServer.getUrl(), TEST_LOCATION);
+        mPrefetcher.prefetch(mServer.getUrl(), TEST_LOCATION);
+        Thread.sleep(SETTLE_MS);
+
+        assertEquals("Error: a cached location should not be fetched again",
+                1, mServer.requests.size());
+        assertEquals("Error: nothing should be stored before the location is committed",
+                0, countWeatherRows());
+    }
+
+    public void testCommitWithoutPrefetchStoresNothing() throws Exception {
+        mPrefetcher.commit(TEST_LOCATION);
+        Thread.sleep(SETTLE_MS);
+
+        assertEquals(0, mServer.requests.size());
+        assertEquals(0, countWeatherRows());
+    }
+
+    private int countWeatherRows() {
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null,
+                null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
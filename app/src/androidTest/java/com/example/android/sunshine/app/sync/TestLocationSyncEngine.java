@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Runs the engine with a stand-in syncer that just takes its time, to check that locations are
+    synced side by side, that a host never sees more than its share of them at once, and that
+    every location gets an outcome, in order, even when its sync blows up.
+ */
+public class TestLocationSyncEngine extends AndroidTestCase {
+
+    private static final long SYNC_MILLIS = 200;
+
+    static class SlowSyncer implements LocationSyncEngine.LocationSyncer {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+
+        @Override
+        public LocationSyncEngine.Outcome sync(URL url, String locationSetting) {
+            int now = running.incrementAndGet();
+            while (true) {
+                int max = maxRunning.get();
+                if (now <= max || maxRunning.compareAndSet(max, now)) {
+                    break;
+                }
+            }
+            try {
+                SystemClock.sleep(SYNC_MILLIS);
+                if (locationSetting.equals("broken")) {
+                    throw new IllegalStateException("Broken on purpose");
+                }
+                return new LocationSyncEngine.Outcome(SunshineSyncAdapter.LOCATION_STATUS_OK,
+                        true);
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+    }
+
+    private static Map<String, URL> buildUrls(String host, int count) throws Exception {
+        Map<String, URL> urls = new LinkedHashMap<String, URL>();
+        for (int i = 0; i < count; i++) {
+            urls.put("location" + i, new URL("http://" + host + "/forecast?q=location" + i));
+        }
+        return urls;
+    }
+
+    public void testLocationsAreSyncedConcurrently() throws Exception {
+        LocationSyncEngine engine = new LocationSyncEngine(4, 4);
+        SlowSyncer syncer = new SlowSyncer();
+
+        long start = SystemClock.elapsedRealtime();
+        List<LocationSyncEngine.Outcome> outcomes =
+                engine.syncAll(buildUrls("api.example.com", 8), syncer);
+        long elapsed = SystemClock.elapsedRealtime() - start;
+
+        assertEquals(8, outcomes.size());
+        assertEquals("Error: no more locations than threads should run at once",
+                4, syncer.maxRunning.get());
+        assertTrue("Error: eight locations on four threads took " + elapsed + " ms",
+                elapsed < 4 * SYNC_MILLIS);
+        for (int i = 0; i < outcomes.size(); i++) {
+            LocationSyncEngine.Outcome outcome = outcomes.get(i);
+            assertEquals("Error: outcomes should come back in the order given",
+                    "location" + i, outcome.getLocationSetting());
+            assertTrue("Error: a location's latency should cover its sync",
+                    outcome.getLatencyMillis() >= SYNC_MILLIS);
+        }
+    }
+
+    public void testConnectionsPerHostAreLimited() throws Exception {
+        LocationSyncEngine engine = new LocationSyncEngine(4, 2);
+        SlowSyncer syncer = new SlowSyncer();
+
+        engine.syncAll(buildUrls("api.example.com", 6), syncer);
+        assertEquals("Error: a host should see no more than two requests at once",
+                2, syncer.maxRunning.get());
+
+        // Other hosts have permits of their own.
+        syncer.maxRunning.set(0);
+        Map<String, URL> urls = new LinkedHashMap<String, URL>();
+        for (int i = 0; i < 4; i++) {
+            String host = i % 2 == 0 ? "api.example.com" : "mirror.example.com";
+            urls.put("location" + i, new URL("http://" + host + "/forecast?q=location" + i));
+        }
+        engine.syncAll(urls, syncer);
+        assertEquals("Error: two hosts should each get two requests at once",
+                4, syncer.maxRunning.get());
+    }
+
+    public void testDefaultsThrottleOneHost() throws Exception {
+        assertTrue("Error: a per host limit no lower than the threads can never throttle",
+                LocationSyncEngine.DEFAULT_CONNECTIONS_PER_HOST
+                        < LocationSyncEngine.DEFAULT_THREADS);
+        LocationSyncEngine engine = new LocationSyncEngine();
+        SlowSyncer syncer = new SlowSyncer();
+
+        long start = SystemClock.elapsedRealtime();
+        engine.syncAll(buildUrls("api.openweathermap.org", 8), syncer);
+        long elapsed = SystemClock.elapsedRealtime() - start;
+
+        assertEquals("Error: the default engine let too many requests at one host",
+                LocationSyncEngine.DEFAULT_CONNECTIONS_PER_HOST, syncer.maxRunning.get());
+        assertTrue("Error: eight locations two at a time took only " + elapsed + " ms",
+                elapsed >= 8 / LocationSyncEngine.DEFAULT_CONNECTIONS_PER_HOST * SYNC_MILLIS);
+    }
+
+    public void testFailedLocationStillReported() throws Exception {
+        LocationSyncEngine engine = new LocationSyncEngine(2, 2);
+        Map<String, URL> urls = new LinkedHashMap<String, URL>();
+        urls.put("broken", new URL("http://api.example.com/forecast?q=broken"));
+        urls.put("fine", new URL("http://api.example.com/forecast?q=fine"));
+
+        List<LocationSyncEngine.Outcome> outcomes = engine.syncAll(urls, new SlowSyncer());
+
+        assertEquals(2, outcomes.size());
+        assertEquals("broken", outcomes.get(0).getLocationSetting());
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN, outcomes.get(0).status);
+        assertFalse(outcomes.get(0).changed);
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, outcomes.get(1).status);
+    }
+}
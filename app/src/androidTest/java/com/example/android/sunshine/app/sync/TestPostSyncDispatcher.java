@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TestPostSyncDispatcher extends AndroidTestCase {
+
+    private static final long SLEEP_MS = 300;
+
+    private static Runnable sleeping(final long millis) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                SystemClock.sleep(millis);
+            }
+        };
+    }
+
+    public void testConsumersRunSideBySide() {
+        List<PostSyncDispatcher.Consumer> consumers = new ArrayList<PostSyncDispatcher.Consumer>();
+        for (int i = 0; i < PostSyncDispatcher.DEFAULT_THREADS; i++) {
+            consumers.add(new PostSyncDispatcher.Consumer("consumer" + i, 5000,
+                    sleeping(SLEEP_MS)));
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        List<PostSyncDispatcher.Result> results = new PostSyncDispatcher().dispatch(consumers);
+        long elapsed = SystemClock.elapsedRealtime() - start;
+
+        for (PostSyncDispatcher.Result result : results) {
+            assertEquals(PostSyncDispatcher.Result.STATUS_DONE, result.status);
+        }
+        assertTrue("Error: " + consumers.size() + " consumers of " + SLEEP_MS
+                + " ms each took " + elapsed + " ms", elapsed < 2 * SLEEP_MS);
+    }
+
+    public void testSlowConsumerTimesOutAndIsInterrupted() throws Exception {
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        List<PostSyncDispatcher.Consumer> consumers = new ArrayList<PostSyncDispatcher.Consumer>();
+        consumers.add(new PostSyncDispatcher.Consumer("stalled", SLEEP_MS, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(60 * 1000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+            }
+        }));
+        consumers.add(new PostSyncDispatcher.Consumer("quick", 5000, sleeping(10)));
+
+        long start = SystemClock.elapsedRealtime();
+        List<PostSyncDispatcher.Result> results = new PostSyncDispatcher().dispatch(consumers);
+        long elapsed = SystemClock.elapsedRealtime() - start;
+
+        assertEquals(PostSyncDispatcher.Result.STATUS_TIMED_OUT, results.get(0).status);
+        assertEquals(PostSyncDispatcher.Result.STATUS_DONE, results.get(1).status);
+        assertTrue("Error: a stalled consumer held the sync for " + elapsed + " ms",
+                elapsed < 4 * SLEEP_MS);
+        assertTrue("Error: the stalled consumer should have been interrupted",
+                interrupted.await(1, TimeUnit.SECONDS));
+    }
+
+    public void testFailingConsumerIsIsolated() {
+        final boolean[] ran = new boolean[1];
+        List<PostSyncDispatcher.Consumer> consumers = new ArrayList<PostSyncDispatcher.Consumer>();
+        consumers.add(new PostSyncDispatcher.Consumer("failing", 5000, new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("Consumer failed on purpose");
+            }
+        }));
+        consumers.add(new PostSyncDispatcher.Consumer("after", 5000, new Runnable() {
+            @Override
+            public void run() {
+                ran[0] = true;
+            }
+        }));
+
+        List<PostSyncDispatcher.Result> results = new PostSyncDispatcher().dispatch(consumers);
+
+        assertEquals(PostSyncDispatcher.Result.STATUS_FAILED, results.get(0).status);
+        assertEquals(PostSyncDispatcher.Result.STATUS_DONE, results.get(1).status);
+        assertTrue("Error: a failing consumer should not stop the others", ran[0]);
+    }
+}
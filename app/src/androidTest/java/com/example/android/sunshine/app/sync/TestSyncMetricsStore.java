@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.List;
+
+public class TestSyncMetricsStore extends AndroidTestCase {
+
+    private File mFile;
+    private SyncMetricsStore mStore;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(mContext.getCacheDir(), "test_sync_metrics.csv");
+        mStore = new SyncMetricsStore(mFile);
+        mStore.clear();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mStore.clear();
+        super.tearDown();
+    }
+
+    // A record whose every stage, and its total, took {@code micros}.
+    private static SyncMetrics.Record createRecord(String kind, long micros) {
+        long[] stages = new long[SyncMetrics.STAGE_COUNT];
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = micros;
+        }
+        return new SyncMetrics.Record(1000000L + micros, kind, "ok", 3, micros, stages,
+                2 * micros, 10 * micros, 14, micros);
+    }
+
+    public void testOldestRecordsMakeWay() {
+        int total = SyncMetricsStore.CAPACITY + 10;
+        for (int i = 1; i <= total; i++) {
+            mStore.add(createRecord(SyncMetrics.KIND_SYNC, i));
+        }
+        List<SyncMetrics.Record> records = mStore.getRecords();
+        assertEquals(SyncMetricsStore.CAPACITY, records.size());
+        assertEquals("Error: the oldest records should have been dropped",
+                11, records.get(0).totalMicros);
+        assertEquals(total, records.get(records.size() - 1).totalMicros);
+    }
+
+    public void testRecordsSurviveReload() {
+        for (int i = 1; i <= 5; i++) {
+            mStore.add(createRecord(SyncMetrics.KIND_SYNC, i));
+        }
+        List<SyncMetrics.Record> reloaded = new SyncMetricsStore(mFile).getRecords();
+        assertEquals(5, reloaded.size());
+        SyncMetrics.Record expected = createRecord(SyncMetrics.KIND_SYNC, 5);
+        SyncMetrics.Record actual = reloaded.get(4);
+        assertEquals(expected.toCsv(), actual.toCsv());
+    }
+
+    public void testCsvExport() throws Exception {
+        mStore.add(createRecord(SyncMetrics.KIND_SYNC, 7));
+        mStore.add(createRecord(SyncMetrics.KIND_RETENTION, 8));
+        StringWriter csv = new StringWriter();
+        mStore.writeCsv(csv);
+
+        String[] lines = csv.toString().split("\n");
+        assertEquals("Error: expected a header and a line per record", 3, lines.length);
+        assertEquals(SyncMetrics.Record.getCsvHeader(), lines[0]);
+        assertEquals("Error: every line should have as many fields as the header",
+                lines[0].split(",").length, lines[1].split(",").length);
+        assertEquals(SyncMetrics.KIND_RETENTION, SyncMetrics.Record.fromCsv(lines[2]).kind);
+    }
+
+    public void testPercentilesPerKind() {
+        for (int i = 1; i <= 100; i++) {
+            mStore.add(createRecord(SyncMetrics.KIND_SYNC, i * 1000));
+        }
+        mStore.add(createRecord(SyncMetrics.KIND_RETENTION, 999999));
+
+        SyncMetrics.Percentiles parse =
+                mStore.getPercentiles(SyncMetrics.KIND_SYNC)[SyncMetrics.STAGE_PARSE];
+        assertEquals(100, parse.samples);
+        assertEquals(50000, parse.p50Micros);
+        assertEquals(95000, parse.p95Micros);
+        assertEquals(1, mStore.getPercentiles(SyncMetrics.KIND_RETENTION)[
+                SyncMetrics.STAGE_RETENTION].samples);
+    }
+
+    public void testRecorderSumsStagesAcrossThreads() throws Exception {
+        final SyncMetrics.Recorder recorder = new SyncMetrics.Recorder();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        recorder.addStage(SyncMetrics.STAGE_DB_WRITE, 1000);
+                        recorder.addRows(1);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        SyncMetrics.Record record = recorder.finish(SyncMetrics.KIND_SYNC, "ok");
+        assertEquals(4000, record.getStageMicros(SyncMetrics.STAGE_DB_WRITE));
+        assertEquals(4000, record.rows);
+        assertEquals(0, record.getStageMicros(SyncMetrics.STAGE_PARSE));
+    }
+
+    public void testRecorderKeepsSlowestLocation() {
+        SyncMetrics.Recorder recorder = new SyncMetrics.Recorder();
+        recorder.addLocation(3000000);
+        recorder.addLocation(7000000);
+        recorder.addLocation(2000000);
+
+        SyncMetrics.Record record = recorder.finish(SyncMetrics.KIND_SYNC, "ok");
+        assertEquals(12000, record.getStageMicros(SyncMetrics.STAGE_LOCATION));
+        assertEquals(7000, record.slowestLocationMicros);
+        assertEquals("Error: the slowest location should survive the CSV round trip",
+                7000, SyncMetrics.Record.fromCsv(record.toCsv()).slowestLocationMicros);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Fires bursts of sync requests at the coalescer, with a requester that runs the sync adapter's
+    fetch against the mock forecast server instead of going through the sync manager, and counts
+    what reaches the network.
+ */
+public class TestSyncRequestCoalescer extends AndroidTestCase {
+
+    private static final String TEST_LOCATION = "99705";
+    private static final String OTHER_LOCATION = "94043";
+
+    // Enough for the last request of a burst to be acted on, and its sync to finish.
+    private static final long SETTLE_MS = SyncRequestCoalescer.DEBOUNCE_MILLIS + 2000;
+
+    private TestConditionalSync.MockForecastServer mServer;
+    private SunshineSyncAdapter mSyncAdapter;
+    private SyncRequestCoalescer mCoalescer;
+    private SyncRequestCoalescer.SyncRequester mRealRequester;
+    private final AtomicInteger mRequests = new AtomicInteger();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        new ForecastValidatorStore(mContext).clear(TEST_LOCATION);
+
+        mServer = new TestConditionalSync.MockForecastServer();
+        mServer.body = TestForecastJsonParser.createForecastJson(14);
+        mSyncAdapter = new SunshineSyncAdapter(mContext, false);
+
+        mCoalescer = SyncRequestCoalescer.getInstance(mContext);
+        mCoalescer.reset();
+        mRealRequester = mCoalescer.getRequester();
+        mCoalescer.setRequester(new SyncRequestCoalescer.SyncRequester() {
+            @Override
+            public void requestSync() {
+                mRequests.incrementAndGet();
+                // Off the looper, like a sync the sync manager runs.
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            mSyncAdapter.syncForecast(mServer.getUrl(), TEST_LOCATION);
+                        } catch (IOException e) {
+                            // Then nothing is fetched, and the fetch count tells.
+                        }
+                    }
+                }).start();
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCoalescer.setRequester(mRealRequester);
+        mCoalescer.reset();
+        mServer.shutdown();
+        new ForecastValidatorStore(mContext).clear(TEST_LOCATION);
+        super.tearDown();
+    }
+
+    public void testBurstCausesOneFetch() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            mCoalescer.trigger(TEST_LOCATION);
+            Thread.sleep(20);
+        }
+        Thread.sleep(SETTLE_MS);
+
+        assertEquals("Error: 50 requests in a second should have been one sync",
+                1, mRequests.get());
+        assertEquals("Error: 50 requests in a second should have been one fetch",
+                1, mServer.requests.size());
+        SyncRequestCoalescer.Stats stats = mCoalescer.getStats();
+        assertEquals(50, stats.triggers);
+        assertEquals(1, stats.requested);
+        assertEquals(49, stats.merged + stats.dropped);
+    }
+
+    public void testFreshLocationIsDropped() throws Exception {
+        mCoalescer.trigger(TEST_LOCATION);
+        Thread.sleep(SETTLE_MS);
+        assertEquals(1, mServer.requests.size());
+
+        // Well past the merge window, but the forecast is still fresh.
+        mCoalescer.trigger(TEST_LOCATION);
+        Thread.sleep(SETTLE_MS);
+        assertEquals("Error: a freshly synced location should not be fetched again",
+                1, mServer.requests.size());
+        assertEquals(1, mCoalescer.getStats().dropped);
+    }
+
+    public void testNewLocationIsNotDropped() throws Exception {
+        mCoalescer.trigger(TEST_LOCATION);
+        Thread.sleep(SETTLE_MS);
+
+        // The user picked another location; its forecast isn't fresh, whatever the old one's is.
+        mCoalescer.trigger(OTHER_LOCATION);
+        Thread.sleep(SyncRequestCoalescer.DEBOUNCE_MILLIS * 2);
+        assertEquals("Error: a changed location should be synced", 2, mRequests.get());
+    }
+}
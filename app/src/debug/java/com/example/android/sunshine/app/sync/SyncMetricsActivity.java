@@ -0,0 +1,145 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Intent;
+import android.graphics.Typeface;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.support.v7.app.AppCompatActivity;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.ScrollView;
+import android.widget.TextView;
+
+import com.example.android.sunshine.app.R;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Debug builds only: the interval AdaptiveSyncScheduler has chosen and how often syncs found
+ * nothing new, the p50 and p95 of every sync stage over the stored syncs, the most recent syncs,
+ * and a way to share the syncs as CSV.
+ */
+public class SyncMetricsActivity extends AppCompatActivity {
+
+    private static final String LOG_TAG = SyncMetricsActivity.class.getSimpleName();
+
+    // How many of the latest records to list under the summary.
+    private static final int RECENT_RECORDS = 20;
+
+    private static final int MENU_SHARE = 1;
+    private static final int MENU_CLEAR = 2;
+
+    private TextView mText;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        mText = new TextView(this);
+        mText.setTypeface(Typeface.MONOSPACE);
+        int padding = getResources().getDimensionPixelSize(R.dimen.activity_horizontal_margin);
+        mText.setPadding(padding, padding, padding, padding);
+        ScrollView scrollView = new ScrollView(this);
+        scrollView.addView(mText);
+        setContentView(scrollView);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        refresh();
+    }
+
+    private void refresh() {
+        new AsyncTask<Void, Void, String>() {
+            @Override
+            protected String doInBackground(Void... params) {
+                return buildReport(SyncMetricsStore.getInstance(SyncMetricsActivity.this),
+                        new AdaptiveSyncScheduler(SyncMetricsActivity.this));
+            }
+
+            @Override
+            protected void onPostExecute(String report) {
+                mText.setText(report);
+            }
+        }.execute();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        menu.add(Menu.NONE, MENU_SHARE, Menu.NONE, R.string.action_share_sync_metrics);
+        menu.add(Menu.NONE, MENU_CLEAR, Menu.NONE, R.string.action_clear_sync_metrics);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        final SyncMetricsStore store = SyncMetricsStore.getInstance(this);
+        switch (item.getItemId()) {
+            case MENU_SHARE:
+                new AsyncTask<Void, Void, String>() {
+                    @Override
+                    protected String doInBackground(Void... params) {
+                        StringWriter csv = new StringWriter();
+                        try {
+                            store.writeCsv(csv);
+                        } catch (IOException e) {
+                            Log.e(LOG_TAG, "Error writing CSV", e);
+                        }
+                        return csv.toString();
+                    }
+
+                    @Override
+                    protected void onPostExecute(String csv) {
+                        startActivity(Intent.createChooser(new Intent(Intent.ACTION_SEND)
+                                .setType("text/csv")
+                                .putExtra(Intent.EXTRA_SUBJECT, "sync_metrics.csv")
+                                .putExtra(Intent.EXTRA_TEXT, csv), null));
+                    }
+                }.execute();
+                return true;
+            case MENU_CLEAR:
+                new AsyncTask<Void, Void, Void>() {
+                    @Override
+                    protected Void doInBackground(Void... params) {
+                        store.clear();
+                        return null;
+                    }
+
+                    @Override
+                    protected void onPostExecute(Void result) {
+                        refresh();
+                    }
+                }.execute();
+                return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    private String buildReport(SyncMetricsStore store, AdaptiveSyncScheduler scheduler) {
+        StringBuilder report = new StringBuilder();
+        report.append("schedule\n  ").append(scheduler.getStats()).append("\n\n");
+        List<SyncMetrics.Record> records = store.getRecords();
+        if (records.isEmpty()) {
+            return report.append(getString(R.string.sync_metrics_empty)).toString();
+        }
+        for (String kind : new String[]{SyncMetrics.KIND_SYNC, SyncMetrics.KIND_RETENTION}) {
+            report.append(kind).append('\n');
+            SyncMetrics.Percentiles[] percentiles = store.getPercentiles(kind);
+            for (int stage = 0; stage < SyncMetrics.STAGE_COUNT; stage++) {
+                if (percentiles[stage].samples > 0) {
+                    report.append(String.format(Locale.US, "  %-13s%s%n",
+                            SyncMetrics.STAGE_NAMES[stage], percentiles[stage]));
+                }
+            }
+        }
+        report.append('\n');
+        for (int i = records.size() - 1; i >= Math.max(0, records.size() - RECENT_RECORDS); i--) {
+            report.append(records.get(i)).append("\n\n");
+        }
+        return report.toString();
+    }
+}
@@ -136,6 +136,13 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
         inflater.inflate(R.menu.forecastfragment, menu);
     }
 
+    @Override
+    public void onPrepareOptionsMenu(Menu menu) {
+        super.onPrepareOptionsMenu(menu);
+        menu.findItem(R.id.action_save_location).setChecked(Utility.getSavedLocations(
+                getActivity()).contains(Utility.getPreferredLocation(getActivity())));
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         // Handle action bar item clicks here. The action bar will
@@ -150,6 +157,12 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
             openPreferredLocationInMap();
             return true;
         }
+        if (id == R.id.action_save_location) {
+            item.setChecked(!item.isChecked());
+            Utility.setLocationSaved(getActivity(), Utility.getPreferredLocation(getActivity()),
+                    item.isChecked());
+            return true;
+        }
 
         return super.onOptionsItemSelected(item);
     }
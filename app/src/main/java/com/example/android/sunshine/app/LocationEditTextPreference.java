@@ -30,6 +30,7 @@ import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.EditText;
 
+import com.example.android.sunshine.app.sync.ForecastPrefetcher;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GoogleApiAvailability;
 import com.google.android.gms.common.GooglePlayServicesNotAvailableException;
@@ -134,6 +135,9 @@ public class LocationEditTextPreference extends EditTextPreference {
                     } else {
                         // Re-enable the button.
                         positiveButton.setEnabled(true);
+                        // Start on the forecast in case this is what the user settles on.
+                        ForecastPrefetcher.getInstance(getContext())
+                                .prefetchDebounced(s.toString());
                     }
                 }
             }
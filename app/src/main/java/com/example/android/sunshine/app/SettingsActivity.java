@@ -30,6 +30,7 @@ import android.util.Log;
 import android.view.View;
 import android.widget.ImageView;
 import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.sync.ForecastPrefetcher;
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
 import com.google.android.gms.location.places.Place;
 import com.google.android.gms.location.places.ui.PlacePicker;
@@ -167,6 +168,9 @@ public class SettingsActivity extends PreferenceActivity
             }
 
             Utility.resetLocationStatus(this);
+            // Stores the forecast fetched while the location was being typed, if it got that
+            // far, which makes the sync below unnecessary.
+            ForecastPrefetcher.getInstance(this).commit(Utility.getPreferredLocation(this));
             SunshineSyncAdapter.syncImmediately(this);
         } else if ( key.equals(getString(R.string.pref_units_key)) ) {
             // units have changed. update lists of weather entries accordingly
@@ -235,6 +239,12 @@ public class SettingsActivity extends PreferenceActivity
                 }
 
                 Utility.resetLocationStatus(this);
+                // Fetch and store the forecast right away rather than wait for the sync manager
+                // to get around to the sync.
+                ForecastPrefetcher prefetcher = ForecastPrefetcher.getInstance(this);
+                prefetcher.prefetch(address, Float.toString((float) latLong.latitude),
+                        Float.toString((float) latLong.longitude));
+                prefetcher.commit(address);
                 SunshineSyncAdapter.syncImmediately(this);
             }
         } else {
@@ -27,7 +27,9 @@ import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Locale;
+import java.util.Set;
 
 public class Utility {
     // We'll default our latlong to 0. Yay, "Earth!"
@@ -60,6 +62,31 @@ public class Utility {
                 context.getString(R.string.pref_location_default));
     }
 
+    /**
+     * @return the locations the user asked to keep up to date, which the sync refreshes along
+     * with the preferred location.  Every other row of the location table is just a location
+     * the user had once.
+     */
+    public static Set<String> getSavedLocations(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        return new HashSet<String>(prefs.getStringSet(
+                context.getString(R.string.pref_saved_locations_key),
+                new HashSet<String>()));
+    }
+
+    public static void setLocationSaved(Context context, String locationSetting, boolean saved) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        Set<String> locations = getSavedLocations(context);
+        if (saved) {
+            locations.add(locationSetting);
+        } else {
+            locations.remove(locationSetting);
+        }
+        prefs.edit()
+                .putStringSet(context.getString(R.string.pref_saved_locations_key), locations)
+                .apply();
+    }
+
     public static boolean isMetric(Context context) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         return prefs.getString(context.getString(R.string.pref_units_key),
@@ -0,0 +1,410 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A location's whole forecast in a compact binary form, for handing forecasts between the parts
+ * of the app, and to the watch, without a row per day.  A 16 day forecast takes about 400 bytes.
+ * <p>
+ * Temperatures, pressure and wind are kept in hundredths, which is as precise as OpenWeatherMap
+ * gives them, so every value reads back as exactly the double the parser made of it, and storing
+ * a forecast that went through a snapshot rewrites no row whose day didn't change.  The writer
+ * rejects a value that would come back any different.
+ * <p>
+ * The layout, all numbers big endian:
+ * <pre>
+ * byte     FORMAT_VERSION
+ * varint   version of the forecast, as chosen by the writer
+ * varint   length of the location setting, then its UTF-8 bytes
+ * varint   number of descriptions, then each as a varint length and UTF-8 bytes
+ * varint   number of days, then for each day:
+ *   varint   milliseconds since the previous day's date, zigzag encoded; the first day counts
+ *            from the epoch
+ *   short    weather ID
+ *   short    max, min, in hundredths of a degree
+ *   byte     humidity
+ *   int      pressure, in hundredths of a hectopascal
+ *   short    wind speed, in hundredths of a meter per second
+ *   int      wind direction, in hundredths of a degree
+ *   byte     index of the description
+ * </pre>
+ * Days are fixed width after their date, and {@link Reader} reads them in place, so walking a
+ * snapshot allocates nothing past the dictionary of descriptions.
+ */
+public class ForecastSnapshot {
+
+    public static final int FORMAT_VERSION = 1;
+
+    // After the date: weather ID, max, min, humidity, pressure, wind speed, wind direction and
+    // description index.
+    private static final int FIXED_DAY_BYTES = 2 + 2 + 2 + 1 + 4 + 2 + 4 + 1;
+
+    // Values are stored as whole hundredths.
+    private static final int SCALE = 100;
+
+    // The description index is a byte.
+    static final int MAX_DESCRIPTIONS = 256;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private ForecastSnapshot() {
+    }
+
+    /**
+     * Builds a snapshot one day at a time, in the order the days are to be read back.
+     */
+    public static class Writer {
+        private final String mLocationSetting;
+        private final long mVersion;
+        private final Map<String, Integer> mDescriptionIndex = new HashMap<String, Integer>();
+        private final List<String> mDescriptions = new ArrayList<String>();
+        private byte[] mDays = new byte[16 * (FIXED_DAY_BYTES + 1)];
+        private int mDaysLength;
+        private int mCount;
+        private long mLastDate;
+
+        public Writer(String locationSetting, long version) {
+            mLocationSetting = locationSetting;
+            mVersion = version;
+        }
+
+        /**
+         * @param date the day, in milliseconds, like the weather table's dates
+         * @throws IllegalArgumentException if a value isn't in whole hundredths, or doesn't fit
+         * @throws IllegalStateException if the forecast has more different descriptions than
+         *                               the format can index
+         */
+        public Writer addDay(long date, double pressure, int humidity, double windSpeed,
+                             double windDirection, double high, double low, String description,
+                             int weatherId) {
+            int scaledHigh = scale(high, Short.MIN_VALUE, Short.MAX_VALUE);
+            int scaledLow = scale(low, Short.MIN_VALUE, Short.MAX_VALUE);
+            int scaledPressure = scale(pressure, Integer.MIN_VALUE, Integer.MAX_VALUE);
+            int scaledWindSpeed = scale(windSpeed, Short.MIN_VALUE, Short.MAX_VALUE);
+            int scaledWindDirection = scale(windDirection, Integer.MIN_VALUE, Integer.MAX_VALUE);
+            Integer index = mDescriptionIndex.get(description);
+            if (index == null) {
+                if (mDescriptions.size() == MAX_DESCRIPTIONS) {
+                    throw new IllegalStateException("More than " + MAX_DESCRIPTIONS
+                            + " descriptions");
+                }
+                index = mDescriptions.size();
+                mDescriptionIndex.put(description, index);
+                mDescriptions.add(description);
+            }
+
+            ensureCapacity(10 + FIXED_DAY_BYTES);
+            mDaysLength = writeVarint(mDays, mDaysLength, zigzag(date - mLastDate));
+            mDaysLength = writeShort(mDays, mDaysLength, weatherId);
+            mDaysLength = writeShort(mDays, mDaysLength, scaledHigh);
+            mDaysLength = writeShort(mDays, mDaysLength, scaledLow);
+            mDays[mDaysLength++] = (byte) humidity;
+            mDaysLength = writeInt(mDays, mDaysLength, scaledPressure);
+            mDaysLength = writeShort(mDays, mDaysLength, scaledWindSpeed);
+            mDaysLength = writeInt(mDays, mDaysLength, scaledWindDirection);
+            mDays[mDaysLength++] = (byte) (int) index;
+            mLastDate = date;
+            mCount++;
+            return this;
+        }
+
+        /**
+         * Adds a day from the values of a weather row, as the sync adapter builds them.
+         */
+        public Writer addDay(ContentValues values) {
+            return addDay(values.getAsLong(WeatherEntry.COLUMN_DATE),
+                    values.getAsDouble(WeatherEntry.COLUMN_PRESSURE),
+                    values.getAsInteger(WeatherEntry.COLUMN_HUMIDITY),
+                    values.getAsDouble(WeatherEntry.COLUMN_WIND_SPEED),
+                    values.getAsDouble(WeatherEntry.COLUMN_DEGREES),
+                    values.getAsDouble(WeatherEntry.COLUMN_MAX_TEMP),
+                    values.getAsDouble(WeatherEntry.COLUMN_MIN_TEMP),
+                    values.getAsString(WeatherEntry.COLUMN_SHORT_DESC),
+                    values.getAsInteger(WeatherEntry.COLUMN_WEATHER_ID));
+        }
+
+        public byte[] toByteArray() {
+            byte[] location = mLocationSetting.getBytes(UTF_8);
+            byte[][] descriptions = new byte[mDescriptions.size()][];
+            int length = 1 + 10 + 5 + location.length + 5 + 5 + mDaysLength;
+            for (int i = 0; i < descriptions.length; i++) {
+                descriptions[i] = mDescriptions.get(i).getBytes(UTF_8);
+                length += 5 + descriptions[i].length;
+            }
+
+            byte[] buffer = new byte[length];
+            int position = 0;
+            buffer[position++] = FORMAT_VERSION;
+            position = writeVarint(buffer, position, mVersion);
+            position = writeBytes(buffer, position, location);
+            position = writeVarint(buffer, position, descriptions.length);
+            for (byte[] description : descriptions) {
+                position = writeBytes(buffer, position, description);
+            }
+            position = writeVarint(buffer, position, mCount);
+            System.arraycopy(mDays, 0, buffer, position, mDaysLength);
+            position += mDaysLength;
+
+            byte[] snapshot = new byte[position];
+            System.arraycopy(buffer, 0, snapshot, 0, position);
+            return snapshot;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (mDaysLength + extra > mDays.length) {
+                byte[] days = new byte[Math.max(mDays.length * 2, mDaysLength + extra)];
+                System.arraycopy(mDays, 0, days, 0, mDaysLength);
+                mDays = days;
+            }
+        }
+    }
+
+    /**
+     * Walks the days of a snapshot like a cursor: call {@link #moveToNext} before reading the
+     * first day and after each one.  Reading a day allocates nothing.
+     */
+    public static class Reader {
+        private final byte[] mBuffer;
+        private final long mVersion;
+        private final String mLocationSetting;
+        private final String[] mDescriptions;
+        private final int mCount;
+        private final int mFirstDay;
+
+        private int mPosition;
+        private int mIndex = -1;
+        private long mDate;
+        private int mWeatherId;
+        private int mHigh;
+        private int mLow;
+        private int mHumidity;
+        private int mPressure;
+        private int mWindSpeed;
+        private int mWindDirection;
+        private int mDescription;
+
+        /**
+         * @throws IllegalArgumentException if {@code snapshot} isn't in a format this reader
+         *                                  knows
+         */
+        public Reader(byte[] snapshot) {
+            if (snapshot.length == 0 || snapshot[0] != FORMAT_VERSION) {
+                throw new IllegalArgumentException("Unknown snapshot format");
+            }
+            mBuffer = snapshot;
+            mPosition = 1;
+            mVersion = readVarint();
+            mLocationSetting = readString();
+            mDescriptions = new String[(int) readVarint()];
+            for (int i = 0; i < mDescriptions.length; i++) {
+                mDescriptions[i] = readString();
+            }
+            mCount = (int) readVarint();
+            mFirstDay = mPosition;
+        }
+
+        public long getVersion() {
+            return mVersion;
+        }
+
+        public String getLocationSetting() {
+            return mLocationSetting;
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        /**
+         * Goes back to before the first day.
+         */
+        public void rewind() {
+            mPosition = mFirstDay;
+            mIndex = -1;
+            mDate = 0;
+        }
+
+        /**
+         * @return false once every day has been read
+         */
+        public boolean moveToNext() {
+            if (mIndex + 1 >= mCount) {
+                mIndex = mCount;
+                return false;
+            }
+            mIndex++;
+            long delta = readVarint();
+            mDate += (delta >>> 1) ^ -(delta & 1);
+            mWeatherId = readShort();
+            mHigh = readShort();
+            mLow = readShort();
+            mHumidity = mBuffer[mPosition++] & 0xff;
+            mPressure = readInt();
+            mWindSpeed = readShort();
+            mWindDirection = readInt();
+            mDescription = mBuffer[mPosition++] & 0xff;
+            return true;
+        }
+
+        public long getDate() {
+            return mDate;
+        }
+
+        public int getWeatherId() {
+            return mWeatherId;
+        }
+
+        public double getMaxTemp() {
+            return (double) mHigh / SCALE;
+        }
+
+        public double getMinTemp() {
+            return (double) mLow / SCALE;
+        }
+
+        public int getHumidity() {
+            return mHumidity;
+        }
+
+        public double getPressure() {
+            return (double) mPressure / SCALE;
+        }
+
+        public double getWindSpeed() {
+            return (double) mWindSpeed / SCALE;
+        }
+
+        public double getWindDirection() {
+            return (double) mWindDirection / SCALE;
+        }
+
+        /**
+         * @return the description, from the snapshot's dictionary, so the same String for every
+         * day that shares it.
+         */
+        public String getDescription() {
+            return mDescriptions[mDescription];
+        }
+
+        /**
+         * @return the current day as the values of a weather row, without the location key.
+         */
+        public ContentValues toContentValues() {
+            ContentValues values = new ContentValues();
+            values.put(WeatherEntry.COLUMN_DATE, getDate());
+            values.put(WeatherEntry.COLUMN_HUMIDITY, getHumidity());
+            values.put(WeatherEntry.COLUMN_PRESSURE, getPressure());
+            values.put(WeatherEntry.COLUMN_WIND_SPEED, getWindSpeed());
+            values.put(WeatherEntry.COLUMN_DEGREES, getWindDirection());
+            values.put(WeatherEntry.COLUMN_MAX_TEMP, getMaxTemp());
+            values.put(WeatherEntry.COLUMN_MIN_TEMP, getMinTemp());
+            values.put(WeatherEntry.COLUMN_SHORT_DESC, getDescription());
+            values.put(WeatherEntry.COLUMN_WEATHER_ID, getWeatherId());
+            return values;
+        }
+
+        private long readVarint() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = mBuffer[mPosition++];
+                value |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        private int readShort() {
+            int value = (short) (((mBuffer[mPosition] & 0xff) << 8)
+                    | (mBuffer[mPosition + 1] & 0xff));
+            mPosition += 2;
+            return value;
+        }
+
+        private int readInt() {
+            int value = ((mBuffer[mPosition] & 0xff) << 24)
+                    | ((mBuffer[mPosition + 1] & 0xff) << 16)
+                    | ((mBuffer[mPosition + 2] & 0xff) << 8)
+                    | (mBuffer[mPosition + 3] & 0xff);
+            mPosition += 4;
+            return value;
+        }
+
+        private String readString() {
+            int length = (int) readVarint();
+            String value = new String(mBuffer, mPosition, length, UTF_8);
+            mPosition += length;
+            return value;
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static int writeVarint(byte[] buffer, int position, long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return position;
+    }
+
+    private static int writeShort(byte[] buffer, int position, int value) {
+        buffer[position] = (byte) (value >> 8);
+        buffer[position + 1] = (byte) value;
+        return position + 2;
+    }
+
+    private static int writeInt(byte[] buffer, int position, int value) {
+        buffer[position] = (byte) (value >> 24);
+        buffer[position + 1] = (byte) (value >> 16);
+        buffer[position + 2] = (byte) (value >> 8);
+        buffer[position + 3] = (byte) value;
+        return position + 4;
+    }
+
+    /**
+     * @return {@code value} in hundredths, which divided by SCALE gives back the same double
+     * @throws IllegalArgumentException if it wouldn't, or if it's outside {@code min} to
+     *                                  {@code max}
+     */
+    private static int scale(double value, int min, int max) {
+        long scaled = Math.round(value * SCALE);
+        if (scaled < min || scaled > max || (double) scaled / SCALE != value) {
+            throw new IllegalArgumentException("Not storable in hundredths: " + value);
+        }
+        return (int) scaled;
+    }
+
+    private static int writeBytes(byte[] buffer, int position, byte[] bytes) {
+        position = writeVarint(buffer, position, bytes.length);
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        return position + bytes.length;
+    }
+}
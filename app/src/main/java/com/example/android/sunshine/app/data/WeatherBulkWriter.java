@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.format.Time;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/**
+ * Writes whole weather rows through statements that are compiled once and then re-bound for
+ * every row, instead of having SQLiteDatabase build the SQL and walk a ContentValues map per
+ * row.  Meant to live for the length of one transaction; call {@link #close()} before ending it.
+ */
+class WeatherBulkWriter {
+
+    // The columns every row binds, in binding order after the key columns.
+    private static final String[] DATA_COLUMNS = {
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+
+    private static final String SQL_INSERT = "INSERT INTO " + WeatherEntry.TABLE_NAME + " (" +
+            WeatherEntry.COLUMN_LOC_KEY + ", " +
+            WeatherEntry.COLUMN_DATE + ", " +
+            WeatherEntry.COLUMN_WEATHER_ID + ", " +
+            WeatherEntry.COLUMN_SHORT_DESC + ", " +
+            WeatherEntry.COLUMN_MIN_TEMP + ", " +
+            WeatherEntry.COLUMN_MAX_TEMP + ", " +
+            WeatherEntry.COLUMN_HUMIDITY + ", " +
+            WeatherEntry.COLUMN_PRESSURE + ", " +
+            WeatherEntry.COLUMN_WIND_SPEED + ", " +
+            WeatherEntry.COLUMN_DEGREES +
+            ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String SQL_UPDATE = "UPDATE " + WeatherEntry.TABLE_NAME + " SET " +
+            WeatherEntry.COLUMN_WEATHER_ID + " = ?, " +
+            WeatherEntry.COLUMN_SHORT_DESC + " = ?, " +
+            WeatherEntry.COLUMN_MIN_TEMP + " = ?, " +
+            WeatherEntry.COLUMN_MAX_TEMP + " = ?, " +
+            WeatherEntry.COLUMN_HUMIDITY + " = ?, " +
+            WeatherEntry.COLUMN_PRESSURE + " = ?, " +
+            WeatherEntry.COLUMN_WIND_SPEED + " = ?, " +
+            WeatherEntry.COLUMN_DEGREES + " = ? " +
+            "WHERE " + WeatherEntry._ID + " = ?";
+
+    private final SQLiteDatabase mDb;
+    // Compiled on first use, so a batch of nothing but updates never compiles the insert.
+    private SQLiteStatement mInsert;
+    private SQLiteStatement mUpdate;
+    // WeatherContract.normalizeDate allocates a Time per call; one per batch is plenty.
+    private final Time mTime = new Time();
+
+    WeatherBulkWriter(SQLiteDatabase db) {
+        mDb = db;
+    }
+
+    /**
+     * @return true if {@code values} has a value for every column the writer binds, and nothing
+     * else, so it can be written by {@link #insert(ContentValues)} or
+     * {@link #update(long, ContentValues)} without losing or inventing columns.
+     */
+    static boolean canBind(ContentValues values) {
+        int expected = DATA_COLUMNS.length + 2;
+        if (values.size() != expected
+                || values.getAsLong(WeatherEntry.COLUMN_LOC_KEY) == null
+                || values.getAsLong(WeatherEntry.COLUMN_DATE) == null) {
+            return false;
+        }
+        for (String column : DATA_COLUMNS) {
+            if (values.get(column) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Same as {@link WeatherContract#normalizeDate(long)}, without the allocation.
+     */
+    long normalizeDate(long date) {
+        mTime.set(date);
+        int julianDay = Time.getJulianDay(date, mTime.gmtoff);
+        return mTime.setJulianDay(julianDay);
+    }
+
+    /**
+     * Inserts one day.  {@code date} must already be normalized.
+     *
+     * @return the row ID of the new row
+     */
+    long insert(long locationId, long date, int weatherId, String shortDesc, double min,
+                double max, double humidity, double pressure, double windSpeed, double degrees) {
+        if (mInsert == null) {
+            mInsert = mDb.compileStatement(SQL_INSERT);
+        }
+        mInsert.bindLong(1, locationId);
+        mInsert.bindLong(2, date);
+        bindData(mInsert, 3, weatherId, shortDesc, min, max, humidity, pressure, windSpeed,
+                degrees);
+        return mInsert.executeInsert();
+    }
+
+    /**
+     * Overwrites every data column of the row with ID {@code _id}.
+     */
+    void update(long _id, int weatherId, String shortDesc, double min, double max,
+                double humidity, double pressure, double windSpeed, double degrees) {
+        if (mUpdate == null) {
+            mUpdate = mDb.compileStatement(SQL_UPDATE);
+        }
+        bindData(mUpdate, 1, weatherId, shortDesc, min, max, humidity, pressure, windSpeed,
+                degrees);
+        mUpdate.bindLong(DATA_COLUMNS.length + 1, _id);
+        mUpdate.executeUpdateDelete();
+    }
+
+    /**
+     * Inserts a row for which {@link #canBind(ContentValues)} holds.  The date must already be
+     * normalized.
+     */
+    long insert(ContentValues values) {
+        return insert(values.getAsLong(WeatherEntry.COLUMN_LOC_KEY),
+                values.getAsLong(WeatherEntry.COLUMN_DATE),
+                values.getAsInteger(WeatherEntry.COLUMN_WEATHER_ID),
+                values.getAsString(WeatherEntry.COLUMN_SHORT_DESC),
+                values.getAsDouble(WeatherEntry.COLUMN_MIN_TEMP),
+                values.getAsDouble(WeatherEntry.COLUMN_MAX_TEMP),
+                values.getAsDouble(WeatherEntry.COLUMN_HUMIDITY),
+                values.getAsDouble(WeatherEntry.COLUMN_PRESSURE),
+                values.getAsDouble(WeatherEntry.COLUMN_WIND_SPEED),
+                values.getAsDouble(WeatherEntry.COLUMN_DEGREES));
+    }
+
+    /**
+     * Overwrites the row with ID {@code _id} with a row for which
+     * {@link #canBind(ContentValues)} holds.  The key columns of {@code values} are ignored.
+     */
+    void update(long _id, ContentValues values) {
+        update(_id,
+                values.getAsInteger(WeatherEntry.COLUMN_WEATHER_ID),
+                values.getAsString(WeatherEntry.COLUMN_SHORT_DESC),
+                values.getAsDouble(WeatherEntry.COLUMN_MIN_TEMP),
+                values.getAsDouble(WeatherEntry.COLUMN_MAX_TEMP),
+                values.getAsDouble(WeatherEntry.COLUMN_HUMIDITY),
+                values.getAsDouble(WeatherEntry.COLUMN_PRESSURE),
+                values.getAsDouble(WeatherEntry.COLUMN_WIND_SPEED),
+                values.getAsDouble(WeatherEntry.COLUMN_DEGREES));
+    }
+
+    /**
+     * Releases the compiled statements.
+     */
+    void close() {
+        if (mInsert != null) {
+            mInsert.close();
+            mInsert = null;
+        }
+        if (mUpdate != null) {
+            mUpdate.close();
+            mUpdate = null;
+        }
+    }
+
+    private static void bindData(SQLiteStatement statement, int index, int weatherId,
+                                 String shortDesc, double min, double max, double humidity,
+                                 double pressure, double windSpeed, double degrees) {
+        statement.bindLong(index++, weatherId);
+        statement.bindString(index++, shortDesc);
+        statement.bindDouble(index++, min);
+        statement.bindDouble(index++, max);
+        statement.bindDouble(index++, humidity);
+        statement.bindDouble(index++, pressure);
+        statement.bindDouble(index++, windSpeed);
+        statement.bindDouble(index, degrees);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The (location, date) pairs touched by a write to the weather table, collected so the provider
+ * can notify the URIs of just those days instead of the whole table.
+ */
+class WeatherChangeSet {
+
+    private final Map<Long, Set<Long>> mDatesByLocation = new HashMap<Long, Set<Long>>();
+
+    void add(long locationId, long date) {
+        Set<Long> dates = mDatesByLocation.get(locationId);
+        if (dates == null) {
+            dates = new HashSet<Long>();
+            mDatesByLocation.put(locationId, dates);
+        }
+        dates.add(date);
+    }
+
+    void addAll(WeatherChangeSet other) {
+        for (Map.Entry<Long, Set<Long>> entry : other.mDatesByLocation.entrySet()) {
+            for (Long date : entry.getValue()) {
+                add(entry.getKey(), date);
+            }
+        }
+    }
+
+    // SQLite allows 999 bound arguments per statement.
+    private static final int MAX_IDS_PER_QUERY = 500;
+
+    /**
+     * Adds the location and date of every weather row matching {@code selection}.  Call this
+     * before an update or delete, in the same transaction, to learn which days it will touch.
+     *
+     * @return the ids of the rows, for {@link #addRows} to find them again after an update
+     * that may have moved them out of {@code selection}.
+     */
+    List<Long> addRowsMatching(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        Cursor cursor = db.query(WeatherEntry.TABLE_NAME,
+                new String[]{WeatherEntry._ID, WeatherEntry.COLUMN_LOC_KEY,
+                        WeatherEntry.COLUMN_DATE},
+                selection,
+                selectionArgs,
+                null,
+                null,
+                null);
+        List<Long> ids = new ArrayList<Long>(cursor.getCount());
+        try {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+                add(cursor.getLong(1), cursor.getLong(2));
+            }
+        } finally {
+            cursor.close();
+        }
+        return ids;
+    }
+
+    /**
+     * Adds the location and date the rows with {@code ids} are on now.
+     */
+    void addRows(SQLiteDatabase db, List<Long> ids) {
+        for (int start = 0; start < ids.size(); start += MAX_IDS_PER_QUERY) {
+            List<Long> chunk = ids.subList(start, Math.min(ids.size(), start + MAX_IDS_PER_QUERY));
+            StringBuilder selection = new StringBuilder(WeatherEntry._ID).append(" IN (");
+            String[] selectionArgs = new String[chunk.size()];
+            for (int i = 0; i < chunk.size(); i++) {
+                selection.append(i == 0 ? "?" : ",?");
+                selectionArgs[i] = Long.toString(chunk.get(i));
+            }
+            addRowsMatching(db, selection.append(')').toString(), selectionArgs);
+        }
+    }
+
+    boolean isEmpty() {
+        return mDatesByLocation.isEmpty();
+    }
+
+    Set<Long> getLocationIds() {
+        return mDatesByLocation.keySet();
+    }
+
+    Set<Long> getDates(long locationId) {
+        return mDatesByLocation.get(locationId);
+    }
+}
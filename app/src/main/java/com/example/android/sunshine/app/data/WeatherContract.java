@@ -44,6 +44,14 @@ public class WeatherContract {
     public static final String PATH_WEATHER = "weather";
     public static final String PATH_LOCATION = "location";
 
+    // Method for ContentResolver.call that deletes the weather the retention policy no longer
+    // allows and compacts the database.  Runs chunk by chunk and may take a while, so never
+    // call it from the UI thread.
+    public static final String METHOD_APPLY_RETENTION = "apply_retention";
+
+    // Int in the Bundle METHOD_APPLY_RETENTION returns: how many weather rows it deleted.
+    public static final String RESULT_ROWS_DELETED = "rows_deleted";
+
     // To make it easy to query for the exact date, we normalize all dates that go into
     // the database to the start of the the Julian day at UTC.
     public static long normalizeDate(long startDate) {
@@ -16,6 +16,7 @@
 package com.example.android.sunshine.app.data;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
@@ -27,13 +28,86 @@ import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
  */
 public class WeatherDbHelper extends SQLiteOpenHelper {
 
-    // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 2;
+    // If you change the database schema, you must increment the database version, and add a
+    // step for it to migrateStep.
+    static final int DATABASE_VERSION = 3;
+
+    // The oldest version onUpgrade has migrations from.  Anything older is recreated empty.
+    static final int OLDEST_MIGRATABLE_VERSION = 2;
 
     static final String DATABASE_NAME = "weather.db";
 
+    static final String INDEX_WEATHER_LOCATION_DATE = "weather_location_date";
+
+    // The UNIQUE (date, location_id) constraint leads with the date, so it can't serve the
+    // provider's location-first lookups.  This index can, and carries the columns of the forecast
+    // list and of the sync adapter's notification query so those never need to visit the table.
+    static final String SQL_CREATE_WEATHER_LOCATION_DATE_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + INDEX_WEATHER_LOCATION_DATE + " ON " +
+                    WeatherEntry.TABLE_NAME + " (" +
+                    WeatherEntry.COLUMN_LOC_KEY + ", " +
+                    WeatherEntry.COLUMN_DATE + ", " +
+                    WeatherEntry.COLUMN_WEATHER_ID + ", " +
+                    WeatherEntry.COLUMN_MAX_TEMP + ", " +
+                    WeatherEntry.COLUMN_MIN_TEMP + ", " +
+                    WeatherEntry.COLUMN_SHORT_DESC + ");";
+
+    // With write-ahead logging the provider's readers (UI, widgets) no longer wait for the sync
+    // adapter's write transactions, and each commit appends to the log instead of rewriting
+    // pages in place.  The reader pool can't be sized from here: SQLiteDatabase opens up to the
+    // device's config_maxConnectionPoolSize connections in WAL mode, 4 on most builds, and the
+    // SDK has no call to change that, so unlike the pragmas below there is no knob for it.
+    static final boolean DEFAULT_WRITE_AHEAD_LOGGING = true;
+
+    // Pages the log may grow to before a commit folds it back into the database.  A sync of
+    // fourteen days dirties a handful of pages, so this checkpoints every few dozen syncs.
+    static final int DEFAULT_WAL_AUTOCHECKPOINT_PAGES = 1000;
+
+    // NORMAL only syncs the log at checkpoints.  With WAL that can lose the last commits on a
+    // power cut, but never corrupts the database, and everything here can be synced again.
+    static final String SYNCHRONOUS_NORMAL = "NORMAL";
+    static final String SYNCHRONOUS_FULL = "FULL";
+    static final String DEFAULT_SYNCHRONOUS = SYNCHRONOUS_NORMAL;
+
+    private final int mWalAutocheckpointPages;
+    private final String mSynchronous;
+
     public WeatherDbHelper(Context context) {
+        this(context, DEFAULT_WRITE_AHEAD_LOGGING, DEFAULT_WAL_AUTOCHECKPOINT_PAGES,
+                DEFAULT_SYNCHRONOUS);
+    }
+
+    /**
+     * @param walAutocheckpointPages the wal_autocheckpoint pragma, only used with write-ahead
+     *                               logging; 0 or less leaves checkpoints to the platform
+     * @param synchronous            the synchronous pragma, one of the SYNCHRONOUS_ constants
+     */
+    WeatherDbHelper(Context context, boolean writeAheadLogging, int walAutocheckpointPages,
+                    String synchronous) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mWalAutocheckpointPages = walAutocheckpointPages;
+        mSynchronous = synchronous;
+        setWriteAheadLoggingEnabled(writeAheadLogging);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        // Lets WeatherRetention hand pages freed by its deletes back a few at a time.  Only takes
+        // effect on a database that has no tables yet; older ones are switched over by the
+        // VACUUM WeatherRetention runs the first time it finds free pages.
+        db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+        db.execSQL("PRAGMA synchronous = " + mSynchronous);
+        if (db.isWriteAheadLoggingEnabled() && mWalAutocheckpointPages > 0) {
+            // This pragma answers with the new value, so it has to go through a query.
+            Cursor cursor = db.rawQuery("PRAGMA wal_autocheckpoint = " + mWalAutocheckpointPages,
+                    null);
+            try {
+                cursor.moveToFirst();
+            } finally {
+                cursor.close();
+            }
+        }
     }
 
     @Override
@@ -81,18 +155,41 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
 
         sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_LOCATION_DATE_INDEX);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
-        // This database is only a cache for online data, so its upgrade policy is
-        // to simply to discard the data and start over
+        // Starting over means an empty UI and blank widgets until the next sync completes, so
+        // upgrades step through migrateStep one version at a time and keep the cached forecast.
+        // Only databases too old to have a migration are discarded.
         // Note that this only fires if you change the version number for your database.
         // It does NOT depend on the version number for your application.
-        // If you want to update the schema without wiping data, commenting out the next 2 lines
-        // should be your top priority before modifying this method.
-        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
-        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
-        onCreate(sqLiteDatabase);
+        if (oldVersion < OLDEST_MIGRATABLE_VERSION) {
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+            onCreate(sqLiteDatabase);
+            return;
+        }
+        for (int version = oldVersion; version < newVersion; version++) {
+            migrateStep(sqLiteDatabase, version);
+        }
+    }
+
+    /**
+     * Brings the schema from {@code fromVersion} to {@code fromVersion + 1} without touching the
+     * rows already stored.  Whenever DATABASE_VERSION goes up, add the step here, make the same
+     * change in onCreate, and add a test for the step to TestDb.  Runs inside the transaction
+     * SQLiteOpenHelper opens for onUpgrade, so a step that throws leaves the old schema intact.
+     */
+    static void migrateStep(SQLiteDatabase db, int fromVersion) {
+        switch (fromVersion) {
+            case 2:
+                db.execSQL(SQL_CREATE_WEATHER_LOCATION_DATE_INDEX);
+                break;
+            default:
+                throw new IllegalStateException(
+                        "No migration from database version " + fromVersion);
+        }
     }
 }
@@ -17,25 +17,62 @@ package com.example.android.sunshine.app.data;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class WeatherProvider extends ContentProvider {
 
+    private static final String LOG_TAG = WeatherProvider.class.getSimpleName();
+
     // The URI Matcher used by this content provider.
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private WeatherDbHelper mOpenHelper;
 
+    // location._id -> location.location_setting, for building the URIs to notify.
+    private final Map<Long, String> mLocationSettings = new HashMap<Long, String>();
+
+    /**
+     * What the operations of an applyBatch call have written so far.  Notifications are held
+     * back here until the batch's transaction commits, and the compiled statements are shared
+     * by all of its weather writes.
+     */
+    private static class Batch {
+        final WeatherChangeSet weatherChanges = new WeatherChangeSet();
+        final Set<Uri> uris = new LinkedHashSet<Uri>();
+        final WeatherBulkWriter writer;
+
+        Batch(SQLiteDatabase db) {
+            writer = new WeatherBulkWriter(db);
+        }
+    }
+
+    // The batch being applied on the calling thread, if any.
+    private final ThreadLocal<Batch> mBatch = new ThreadLocal<Batch>();
+
     static final int WEATHER = 100;
     static final int WEATHER_WITH_LOCATION = 101;
     static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
     static final int LOCATION = 300;
 
-    private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
+    // Package-private, along with the selections below, so TestQueryPlans can explain the
+    // queries the provider actually runs.
+    static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
 
     static{
         sWeatherByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
@@ -52,18 +89,18 @@ public class WeatherProvider extends ContentProvider {
     }
 
     //location.location_setting = ?
-    private static final String sLocationSettingSelection =
+    static final String sLocationSettingSelection =
             WeatherContract.LocationEntry.TABLE_NAME+
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? ";
 
     //location.location_setting = ? AND date >= ?
-    private static final String sLocationSettingWithStartDateSelection =
+    static final String sLocationSettingWithStartDateSelection =
             WeatherContract.LocationEntry.TABLE_NAME+
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
 
     //location.location_setting = ? AND date = ?
-    private static final String sLocationSettingAndDaySelection =
+    static final String sLocationSettingAndDaySelection =
             WeatherContract.LocationEntry.TABLE_NAME +
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
@@ -232,16 +269,32 @@ public class WeatherProvider extends ContentProvider {
 
         switch (match) {
             case WEATHER: {
-                normalizeDate(values);
-                long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
+                if (!values.containsKey(WeatherContract.WeatherEntry.COLUMN_LOC_KEY)
+                        || !values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
+                    // Can't be upserted, and can't be stored either; let SQLite say why.
+                    normalizeDate(values);
+                    long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
+                    if (_id <= 0)
+                        throw new android.database.SQLException("Failed to insert row into " + uri);
+                    returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
+                    notifyChange(uri);
+                    break;
+                }
+                // Upserted like a one-row bulkInsert, so an unchanged day keeps its _ID and
+                // doesn't notify anyone.
+                WeatherUpserter.Result result = upsertWeather(db, new ContentValues[]{values});
+                long _id = result.ids[0];
                 if ( _id > 0 )
                     returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
+                if (result.hasChanges()) {
+                    notifyWeatherChanges(db, result.changes);
+                }
                 break;
             }
             case LOCATION: {
-                long _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
+                long _id = upsertLocation(db, values);
                 if ( _id > 0 )
                     returnUri = WeatherContract.LocationEntry.buildLocationUri(_id);
                 else
@@ -251,7 +304,6 @@ public class WeatherProvider extends ContentProvider {
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        getContext().getContentResolver().notifyChange(uri, null);
         return returnUri;
     }
 
@@ -263,21 +315,34 @@ public class WeatherProvider extends ContentProvider {
         // this makes delete all rows return the number of rows deleted
         if ( null == selection ) selection = "1";
         switch (match) {
-            case WEATHER:
-                rowsDeleted = db.delete(
-                        WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
+            case WEATHER: {
+                WeatherChangeSet changes = new WeatherChangeSet();
+                db.beginTransaction();
+                try {
+                    changes.addRowsMatching(db, selection, selectionArgs);
+                    rowsDeleted = db.delete(
+                            WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                if (rowsDeleted != 0) {
+                    notifyWeatherChanges(db, changes);
+                }
                 break;
+            }
             case LOCATION:
                 rowsDeleted = db.delete(
                         WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
+                // Because a null deletes all rows
+                if (rowsDeleted != 0) {
+                    clearLocationSettingCache();
+                    notifyChange(uri);
+                }
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        // Because a null deletes all rows
-        if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
-        }
         return rowsDeleted;
     }
 
@@ -297,51 +362,302 @@ public class WeatherProvider extends ContentProvider {
         int rowsUpdated;
 
         switch (match) {
-            case WEATHER:
+            case WEATHER: {
                 normalizeDate(values);
-                rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values, selection,
-                        selectionArgs);
+                WeatherChangeSet changes = new WeatherChangeSet();
+                db.beginTransaction();
+                try {
+                    // Both the days the rows were on and, if the update moves them, the days
+                    // they end up on have changed.  Moved rows may no longer match the
+                    // selection, so they're found again by id.
+                    List<Long> ids = changes.addRowsMatching(db, selection, selectionArgs);
+                    rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values,
+                            selection, selectionArgs);
+                    if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_LOC_KEY)
+                            || values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
+                        changes.addRows(db, ids);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                if (rowsUpdated != 0) {
+                    notifyWeatherChanges(db, changes);
+                }
                 break;
+            }
             case LOCATION:
                 rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
                         selectionArgs);
+                if (rowsUpdated != 0) {
+                    clearLocationSettingCache();
+                    notifyChange(uri);
+                }
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
-        }
         return rowsUpdated;
     }
 
+    /**
+     * Inserts new days and updates changed ones, leaving unchanged days alone.  Observers are
+     * only notified if something was actually written.
+     *
+     * @return the number of rows inserted or updated
+     */
     @Override
     public int bulkInsert(Uri uri, ContentValues[] values) {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case WEATHER:
-                db.beginTransaction();
-                int returnCount = 0;
-                try {
-                    for (ContentValues value : values) {
-                        normalizeDate(value);
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
-                        if (_id != -1) {
-                            returnCount++;
-                        }
-                    }
-                    db.setTransactionSuccessful();
-                } finally {
-                    db.endTransaction();
+                WeatherUpserter.Result result = upsertWeather(db, values);
+                Log.d(LOG_TAG, "bulkInsert: " + result);
+                if (result.hasChanges()) {
+                    notifyWeatherChanges(db, result.changes);
                 }
-                getContext().getContentResolver().notifyChange(uri, null);
-                return returnCount;
+                return result.inserted + result.updated;
             default:
                 return super.bulkInsert(uri, values);
         }
     }
 
+    /**
+     * Upserts {@code values} in a transaction of its own, or as part of the batch being applied.
+     */
+    private WeatherUpserter.Result upsertWeather(SQLiteDatabase db, ContentValues[] values) {
+        Batch batch = mBatch.get();
+        WeatherBulkWriter writer = batch != null ? batch.writer : new WeatherBulkWriter(db);
+        db.beginTransaction();
+        try {
+            for (ContentValues value : values) {
+                Long date = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+                if (date != null) {
+                    value.put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                            writer.normalizeDate(date));
+                }
+            }
+            WeatherUpserter.Result result = WeatherUpserter.upsert(db, writer, values);
+            db.setTransactionSuccessful();
+            return result;
+        } finally {
+            if (batch == null) {
+                writer.close();
+            }
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Inserts a location, or if one with the same location setting is already stored, updates
+     * whatever differs about it.  Either way the sync adapter gets the row's _ID back without
+     * having to query for it first.
+     *
+     * @return the _ID of the location's row, or -1 if it couldn't be inserted
+     */
+    private long upsertLocation(SQLiteDatabase db, ContentValues values) {
+        String locationSetting =
+                values.getAsString(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+        if (locationSetting == null) {
+            return db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
+        }
+        long _id;
+        boolean changed;
+        db.beginTransaction();
+        try {
+            Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                    null,
+                    WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                    new String[]{locationSetting},
+                    null,
+                    null,
+                    null);
+            try {
+                if (cursor.moveToFirst()) {
+                    _id = cursor.getLong(cursor.getColumnIndex(WeatherContract.LocationEntry._ID));
+                    changed = !matchesRow(cursor, values);
+                    if (changed) {
+                        db.update(WeatherContract.LocationEntry.TABLE_NAME, values,
+                                WeatherContract.LocationEntry._ID + " = ?",
+                                new String[]{Long.toString(_id)});
+                    }
+                } else {
+                    _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
+                    changed = _id > 0;
+                }
+            } finally {
+                cursor.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (changed) {
+            clearLocationSettingCache();
+            notifyChange(WeatherContract.LocationEntry.CONTENT_URI);
+        }
+        return _id;
+    }
+
+    private static boolean matchesRow(Cursor cursor, ContentValues values) {
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            int index = cursor.getColumnIndex(entry.getKey());
+            if (index == -1) {
+                return false;
+            }
+            Object value = entry.getValue();
+            if (value == null) {
+                if (!cursor.isNull(index)) {
+                    return false;
+                }
+            } else if (value instanceof Number) {
+                // Compare by value; the column may hold 64.0 for a 64 that was put as an int.
+                if (cursor.isNull(index)
+                        || cursor.getDouble(index) != ((Number) value).doubleValue()) {
+                    return false;
+                }
+            } else if (!value.toString().equals(cursor.getString(index))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Applies {@code operations} in a single transaction, so that a sync's location, forecast
+     * and cleanup are committed together and observers never see a forecast half written.
+     * Every notification the operations would have sent is coalesced and sent once the
+     * transaction commits; none are sent if it fails.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        Batch batch = new Batch(db);
+        ContentProviderResult[] results;
+        mBatch.set(batch);
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            batch.writer.close();
+            db.endTransaction();
+            mBatch.remove();
+        }
+        if (!batch.weatherChanges.isEmpty()) {
+            notifyWeatherChanges(db, batch.weatherChanges);
+        }
+        for (Uri uri : batch.uris) {
+            notifyChange(uri);
+        }
+        return results;
+    }
+
+    /**
+     * Runs the methods the weather database offers beyond queries and writes.  Only
+     * {@link WeatherContract#METHOD_APPLY_RETENTION} for now: it applies the retention policy,
+     * overridden by whatever {@code extras} carries, and answers with what it deleted.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (WeatherContract.METHOD_APPLY_RETENTION.equals(method)) {
+            final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+            WeatherRetention.Result result = new WeatherRetention(db,
+                    WeatherRetention.DEFAULT_POLICY.with(extras))
+                    .run(System.currentTimeMillis());
+            Log.d(LOG_TAG, "retention: " + result);
+            if (!result.changes.isEmpty()) {
+                notifyWeatherChanges(db, result.changes);
+            }
+            return result.toBundle();
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Notifies the narrowest set of URIs that covers {@code changes}, once each.  A location with
+     * a single changed day gets that day's URI, which reaches both the detail view for the day
+     * and anything watching the location as a whole, since cursors observe descendants too.  A
+     * location with several changed days gets its location URI instead: one callback for the
+     * forecast list rather than one per day.
+     */
+    private void notifyWeatherChanges(SQLiteDatabase db, WeatherChangeSet changes) {
+        Batch batch = mBatch.get();
+        if (batch != null) {
+            batch.weatherChanges.addAll(changes);
+            return;
+        }
+        Set<Uri> uris = new LinkedHashSet<Uri>();
+        for (Long locationId : changes.getLocationIds()) {
+            String locationSetting = getLocationSetting(db, locationId);
+            if (locationSetting == null) {
+                // Orphaned rows can't be narrowed down to a location; fall back to the table.
+                uris.add(WeatherContract.WeatherEntry.CONTENT_URI);
+                continue;
+            }
+            Set<Long> dates = changes.getDates(locationId);
+            if (dates.size() == 1) {
+                uris.add(WeatherContract.WeatherEntry.buildWeatherLocationWithDate(
+                        locationSetting, dates.iterator().next()));
+            } else {
+                uris.add(WeatherContract.WeatherEntry.buildWeatherLocation(locationSetting));
+            }
+        }
+        if (uris.contains(WeatherContract.WeatherEntry.CONTENT_URI)) {
+            // The table URI already reaches every weather observer.
+            uris.clear();
+            uris.add(WeatherContract.WeatherEntry.CONTENT_URI);
+        }
+        for (Uri uri : uris) {
+            notifyChange(uri);
+        }
+    }
+
+    private void notifyChange(Uri uri) {
+        Batch batch = mBatch.get();
+        if (batch != null) {
+            batch.uris.add(uri);
+            return;
+        }
+        getContext().getContentResolver().notifyChange(uri, null);
+    }
+
+    private String getLocationSetting(SQLiteDatabase db, long locationId) {
+        synchronized (mLocationSettings) {
+            String locationSetting = mLocationSettings.get(locationId);
+            if (locationSetting != null) {
+                return locationSetting;
+            }
+        }
+        Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING},
+                WeatherContract.LocationEntry._ID + " = ?",
+                new String[]{Long.toString(locationId)},
+                null,
+                null,
+                null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            String locationSetting = cursor.getString(0);
+            synchronized (mLocationSettings) {
+                mLocationSettings.put(locationId, locationSetting);
+            }
+            return locationSetting;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void clearLocationSettingCache() {
+        synchronized (mLocationSettings) {
+            mLocationSettings.clear();
+        }
+    }
+
     // You do not need to call this method. This is a method specifically to assist the testing
     // framework in running smoothly. You can read more at:
     // http://developer.android.com/reference/android/content/ContentProvider.html#shutdown()
@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Trims the weather table down to what the retention policy allows and gives the freed pages
+ * back to the file system.  Rows are deleted oldest day first, a chunk at a time, each chunk in
+ * a transaction of its own, so a large backlog never holds the write lock long enough to stall
+ * a sync.  Every chunk is found through an index that leads with the date (or with the location
+ * and then the date), never by scanning the table.
+ */
+class WeatherRetention {
+
+    static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+
+    // Rows deleted per transaction.
+    static final int DEFAULT_CHUNK_SIZE = 64;
+
+    // Free pages handed back per incremental_vacuum step.
+    static final int VACUUM_PAGES_PER_STEP = 64;
+
+    // The auto_vacuum mode, as PRAGMA auto_vacuum reports it.
+    static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    // Bundle keys a caller of WeatherProvider.call can use to override the default policy.
+    static final String EXTRA_KEEP_PAST_DAYS = "keep_past_days";
+    static final String EXTRA_MAX_DAYS_PER_LOCATION = "max_days_per_location";
+    static final String EXTRA_MAX_ROWS = "max_rows";
+    static final String EXTRA_MAX_BYTES = "max_bytes";
+
+    /**
+     * How much weather the database may hold.  A cap of 0 or less, or a negative number of past
+     * days, is not enforced.
+     */
+    static class Policy {
+        // Days before today to keep.  0 keeps today onwards, which is what the sync adapter's
+        // own cleanup used to leave behind.
+        final int keepPastDays;
+        // Days kept per location, the latest ones.
+        final int maxDaysPerLocation;
+        // Rows kept in the weather table as a whole, the latest days.
+        final int maxRows;
+        // Size the database file may grow to, free pages included.
+        final long maxBytes;
+
+        Policy(int keepPastDays, int maxDaysPerLocation, int maxRows, long maxBytes) {
+            this.keepPastDays = keepPastDays;
+            this.maxDaysPerLocation = maxDaysPerLocation;
+            this.maxRows = maxRows;
+            this.maxBytes = maxBytes;
+        }
+
+        /**
+         * @return this policy with whatever {@code extras} overrides, or this policy itself if
+         * {@code extras} is null.
+         */
+        Policy with(Bundle extras) {
+            if (extras == null) {
+                return this;
+            }
+            return new Policy(extras.getInt(EXTRA_KEEP_PAST_DAYS, keepPastDays),
+                    extras.getInt(EXTRA_MAX_DAYS_PER_LOCATION, maxDaysPerLocation),
+                    extras.getInt(EXTRA_MAX_ROWS, maxRows),
+                    extras.getLong(EXTRA_MAX_BYTES, maxBytes));
+        }
+    }
+
+    // A sync stores 14 days, and a user tracking ten cities needs 140 rows, so these only
+    // bite on databases that something has gone wrong with.
+    static final Policy DEFAULT_POLICY = new Policy(0, 28, 1000, 2 * 1024 * 1024);
+
+    /**
+     * What a run deleted and reclaimed.
+     */
+    static class Result {
+        int pastDeleted;
+        int locationCapDeleted;
+        int rowCapDeleted;
+        int sizeCapDeleted;
+        long pagesReclaimed;
+        final WeatherChangeSet changes = new WeatherChangeSet();
+
+        int deleted() {
+            return pastDeleted + locationCapDeleted + rowCapDeleted + sizeCapDeleted;
+        }
+
+        Bundle toBundle() {
+            Bundle bundle = new Bundle();
+            bundle.putInt("past_deleted", pastDeleted);
+            bundle.putInt("location_cap_deleted", locationCapDeleted);
+            bundle.putInt("row_cap_deleted", rowCapDeleted);
+            bundle.putInt("size_cap_deleted", sizeCapDeleted);
+            bundle.putLong("pages_reclaimed", pagesReclaimed);
+            bundle.putInt(WeatherContract.RESULT_ROWS_DELETED, deleted());
+            return bundle;
+        }
+
+        @Override
+        public String toString() {
+            return pastDeleted + " past, " + locationCapDeleted + " over location cap, "
+                    + rowCapDeleted + " over row cap, " + sizeCapDeleted
+                    + " over size cap deleted; " + pagesReclaimed
+                    + " pages reclaimed";
+        }
+    }
+
+    private final SQLiteDatabase mDb;
+    private final Policy mPolicy;
+    private final int mChunkSize;
+
+    WeatherRetention(SQLiteDatabase db, Policy policy) {
+        this(db, policy, DEFAULT_CHUNK_SIZE);
+    }
+
+    WeatherRetention(SQLiteDatabase db, Policy policy, int chunkSize) {
+        mDb = db;
+        mPolicy = policy;
+        mChunkSize = chunkSize;
+    }
+
+    /**
+     * Applies the policy as of {@code now}.  Must not be called inside a transaction, since the
+     * deletes commit chunk by chunk and vacuuming can't run in one.
+     */
+    Result run(long now) {
+        Result result = new Result();
+
+        if (mPolicy.keepPastDays >= 0) {
+            long firstKeptDay = WeatherContract.normalizeDate(now)
+                    - mPolicy.keepPastDays * DAY_IN_MILLIS;
+            // Walks the (date, location_id) index of the UNIQUE constraint from its start.
+            result.pastDeleted = deleteInChunks(
+                    WeatherEntry.COLUMN_DATE + " < ?",
+                    new String[]{Long.toString(firstKeptDay)},
+                    Integer.MAX_VALUE,
+                    result.changes);
+        }
+
+        if (mPolicy.maxDaysPerLocation > 0) {
+            for (long[] excess : getLocationsOverCap(mPolicy.maxDaysPerLocation)) {
+                // Walks weather_location_date for the one location.
+                result.locationCapDeleted += deleteInChunks(
+                        WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                        new String[]{Long.toString(excess[0])},
+                        (int) excess[1],
+                        result.changes);
+            }
+        }
+
+        if (mPolicy.maxRows > 0) {
+            long excess = queryLong("SELECT COUNT(*) FROM " + WeatherEntry.TABLE_NAME)
+                    - mPolicy.maxRows;
+            if (excess > 0) {
+                result.rowCapDeleted += deleteInChunks(null, null, (int) excess, result.changes);
+            }
+        }
+
+        result.pagesReclaimed = reclaimFreePages();
+
+        if (mPolicy.maxBytes > 0) {
+            // Deleting rows only frees pages inside the file, so trim a chunk and hand its
+            // pages back until the file fits.
+            while (getDatabaseBytes() > mPolicy.maxBytes) {
+                int deleted = deleteInChunks(null, null, mChunkSize, result.changes);
+                if (deleted == 0) {
+                    break;
+                }
+                result.sizeCapDeleted += deleted;
+                result.pagesReclaimed += reclaimFreePages();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Deletes up to {@code limit} of the rows matching {@code selection}, oldest day first.
+     *
+     * @return the number of rows deleted
+     */
+    private int deleteInChunks(String selection, String[] selectionArgs, int limit,
+                               WeatherChangeSet changes) {
+        // The same chunk is selected twice, but within one transaction.
+        String chunkSelection = buildChunkSelection(selection);
+        int total = 0;
+        while (total < limit) {
+            String[] chunkArgs = appendArg(selectionArgs,
+                    Integer.toString(Math.min(mChunkSize, limit - total)));
+            int deleted;
+            mDb.beginTransaction();
+            try {
+                changes.addRowsMatching(mDb, chunkSelection, chunkArgs);
+                deleted = mDb.delete(WeatherEntry.TABLE_NAME, chunkSelection, chunkArgs);
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+            }
+            total += deleted;
+            if (deleted < mChunkSize) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return a selection of the oldest rows matching {@code selection}, taking one more
+     * argument after those of {@code selection}: how many.  The inner SELECT picks the rows
+     * through an index; the outer statement then finds each of them by _ID.
+     */
+    static String buildChunkSelection(String selection) {
+        return WeatherEntry._ID + " IN (SELECT " + WeatherEntry._ID
+                + " FROM " + WeatherEntry.TABLE_NAME
+                + (selection != null ? " WHERE " + selection : "")
+                + " ORDER BY " + WeatherEntry.COLUMN_DATE + " ASC LIMIT ?)";
+    }
+
+    /**
+     * @return {location_id, rows over the cap} for every location holding more than
+     * {@code maxDays} days.
+     */
+    private List<long[]> getLocationsOverCap(int maxDays) {
+        List<long[]> locations = new ArrayList<long[]>();
+        Cursor cursor = mDb.rawQuery("SELECT " + WeatherEntry.COLUMN_LOC_KEY + ", COUNT(*) - ?"
+                        + " FROM " + WeatherEntry.TABLE_NAME
+                        + " GROUP BY " + WeatherEntry.COLUMN_LOC_KEY
+                        + " HAVING COUNT(*) > ?",
+                new String[]{Integer.toString(maxDays), Integer.toString(maxDays)});
+        try {
+            while (cursor.moveToNext()) {
+                locations.add(new long[]{cursor.getLong(0), cursor.getLong(1)});
+            }
+        } finally {
+            cursor.close();
+        }
+        return locations;
+    }
+
+    /**
+     * Hands the database's free pages back to the file system.  Databases created before
+     * auto_vacuum was turned on in WeatherDbHelper.onConfigure can only be switched over by a
+     * full VACUUM, which this runs once; after that each run only moves the free pages.
+     *
+     * @return the number of pages reclaimed
+     */
+    private long reclaimFreePages() {
+        long freePages = queryLong("PRAGMA freelist_count");
+        if (freePages == 0) {
+            return 0;
+        }
+        if (getAutoVacuum() != AUTO_VACUUM_INCREMENTAL) {
+            mDb.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            mDb.execSQL("VACUUM");
+            return freePages;
+        }
+        long before = queryLong("PRAGMA page_count");
+        // A step at a time, each committing on its own like the deletes.  Every row of the
+        // statement frees one page, so it has to be stepped to the end; execSQL would free one.
+        while (queryLong("PRAGMA freelist_count") > 0) {
+            Cursor cursor = mDb.rawQuery(
+                    "PRAGMA incremental_vacuum(" + VACUUM_PAGES_PER_STEP + ")", null);
+            try {
+                while (cursor.moveToNext()) {
+                    // Only stepping.
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return before - queryLong("PRAGMA page_count");
+    }
+
+    private int getAutoVacuum() {
+        return (int) queryLong("PRAGMA auto_vacuum");
+    }
+
+    private long getDatabaseBytes() {
+        return queryLong("PRAGMA page_count") * queryLong("PRAGMA page_size");
+    }
+
+    private long queryLong(String sql) {
+        Cursor cursor = mDb.rawQuery(sql, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static String[] appendArg(String[] args, String arg) {
+        if (args == null) {
+            return new String[]{arg};
+        }
+        String[] appended = new String[args.length + 1];
+        System.arraycopy(args, 0, appended, 0, args.length);
+        appended[args.length] = arg;
+        return appended;
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes weather rows by comparing them against the rows already stored for the same location
+ * and date: new days are inserted, changed days have only their changed columns updated, and
+ * unchanged days are not touched at all.  Unlike a plain insert, which relies on the table's
+ * ON CONFLICT REPLACE, this keeps each day's _ID stable across syncs.
+ */
+class WeatherUpserter {
+
+    /**
+     * How many rows an upsert inserted, updated or left alone.
+     */
+    static class Result {
+        int inserted;
+        int updated;
+        int unchanged;
+        final WeatherChangeSet changes = new WeatherChangeSet();
+        // The _ID of the row each value ended up in, or -1 if it couldn't be inserted.
+        final long[] ids;
+
+        Result(int count) {
+            ids = new long[count];
+        }
+
+        boolean hasChanges() {
+            return inserted + updated > 0;
+        }
+
+        @Override
+        public String toString() {
+            return inserted + " inserted, " + updated + " updated, " + unchanged + " unchanged";
+        }
+    }
+
+    // The columns that identify a day rather than describe it, and so are never compared.
+    private static boolean isKeyColumn(String column) {
+        return WeatherEntry._ID.equals(column)
+                || WeatherEntry.COLUMN_LOC_KEY.equals(column)
+                || WeatherEntry.COLUMN_DATE.equals(column);
+    }
+
+    /**
+     * Upserts {@code values}, whose dates must already be normalized.  Every row needs a
+     * location key and a date.  Complete rows are written through {@code writer}'s compiled
+     * statements, anything else through SQLiteDatabase.  Must be called inside a transaction
+     * on {@code db}.
+     */
+    static Result upsert(SQLiteDatabase db, WeatherBulkWriter writer, ContentValues[] values) {
+        Result result = new Result(values.length);
+
+        // Read the stored rows of each location in the batch once, rather than once per day.
+        Map<Long, Map<Long, ContentValues>> existingByLocation =
+                new HashMap<Long, Map<Long, ContentValues>>();
+
+        for (int i = 0; i < values.length; i++) {
+            ContentValues value = values[i];
+            Long locationId = value.getAsLong(WeatherEntry.COLUMN_LOC_KEY);
+            Long date = value.getAsLong(WeatherEntry.COLUMN_DATE);
+            if (locationId == null || date == null) {
+                throw new IllegalArgumentException(
+                        "Weather rows need a " + WeatherEntry.COLUMN_LOC_KEY + " and a " +
+                                WeatherEntry.COLUMN_DATE);
+            }
+
+            Map<Long, ContentValues> existing = existingByLocation.get(locationId);
+            if (existing == null) {
+                existing = readExisting(db, locationId, values);
+                existingByLocation.put(locationId, existing);
+            }
+
+            ContentValues stored = existing.get(date);
+            boolean complete = WeatherBulkWriter.canBind(value);
+            if (stored == null) {
+                long _id = complete
+                        ? writer.insert(value)
+                        : db.insert(WeatherEntry.TABLE_NAME, null, value);
+                result.ids[i] = _id;
+                if (_id != -1) {
+                    result.inserted++;
+                    result.changes.add(locationId, date);
+                    ContentValues inserted = new ContentValues(value);
+                    inserted.put(WeatherEntry._ID, _id);
+                    existing.put(date, inserted);
+                }
+                continue;
+            }
+
+            long _id = stored.getAsLong(WeatherEntry._ID);
+            result.ids[i] = _id;
+            ContentValues changed = diff(stored, value);
+            if (changed.size() == 0) {
+                result.unchanged++;
+                continue;
+            }
+            if (complete) {
+                // Rewriting the unchanged columns too is cheaper than compiling an UPDATE for
+                // each combination of changed ones.
+                writer.update(_id, value);
+            } else {
+                db.update(WeatherEntry.TABLE_NAME, changed, WeatherEntry._ID + " = ?",
+                        new String[]{Long.toString(_id)});
+            }
+            stored.putAll(changed);
+            result.updated++;
+            result.changes.add(locationId, date);
+        }
+        return result;
+    }
+
+    /**
+     * Reads the stored rows of {@code locationId} that fall between the earliest and latest date
+     * of that location in {@code values}, keyed by date.
+     */
+    private static Map<Long, ContentValues> readExisting(SQLiteDatabase db, long locationId,
+                                                         ContentValues[] values) {
+        long minDate = Long.MAX_VALUE;
+        long maxDate = Long.MIN_VALUE;
+        for (ContentValues value : values) {
+            Long rowLocationId = value.getAsLong(WeatherEntry.COLUMN_LOC_KEY);
+            Long date = value.getAsLong(WeatherEntry.COLUMN_DATE);
+            if (rowLocationId != null && rowLocationId == locationId && date != null) {
+                minDate = Math.min(minDate, date);
+                maxDate = Math.max(maxDate, date);
+            }
+        }
+
+        Map<Long, ContentValues> existing = new HashMap<Long, ContentValues>();
+        Cursor cursor = db.query(WeatherEntry.TABLE_NAME,
+                null,
+                WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                        WeatherEntry.COLUMN_DATE + " BETWEEN ? AND ?",
+                new String[]{Long.toString(locationId), Long.toString(minDate),
+                        Long.toString(maxDate)},
+                null,
+                null,
+                null);
+        try {
+            String[] columns = cursor.getColumnNames();
+            while (cursor.moveToNext()) {
+                ContentValues row = new ContentValues(columns.length);
+                for (int i = 0; i < columns.length; i++) {
+                    switch (cursor.getType(i)) {
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            row.put(columns[i], cursor.getLong(i));
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            row.put(columns[i], cursor.getDouble(i));
+                            break;
+                        case Cursor.FIELD_TYPE_NULL:
+                            row.putNull(columns[i]);
+                            break;
+                        default:
+                            row.put(columns[i], cursor.getString(i));
+                    }
+                }
+                existing.put(row.getAsLong(WeatherEntry.COLUMN_DATE), row);
+            }
+        } finally {
+            cursor.close();
+        }
+        return existing;
+    }
+
+    /**
+     * @return the columns of {@code incoming} whose values differ from {@code stored}.
+     */
+    private static ContentValues diff(ContentValues stored, ContentValues incoming) {
+        ContentValues changed = new ContentValues();
+        for (Map.Entry<String, Object> entry : incoming.valueSet()) {
+            String column = entry.getKey();
+            if (isKeyColumn(column)) {
+                continue;
+            }
+            if (!sameValue(stored.get(column), entry.getValue())) {
+                putValue(changed, column, entry.getValue());
+            }
+        }
+        return changed;
+    }
+
+    private static boolean sameValue(Object stored, Object incoming) {
+        if (stored == null || incoming == null) {
+            return stored == incoming;
+        }
+        // SQLite hands back INTEGER or REAL depending on what was stored, while callers put
+        // whatever boxed type they had, so compare numbers by value.
+        if (stored instanceof Number && incoming instanceof Number) {
+            return ((Number) stored).doubleValue() == ((Number) incoming).doubleValue();
+        }
+        return stored.toString().equals(incoming.toString());
+    }
+
+    private static void putValue(ContentValues values, String column, Object value) {
+        if (value == null) {
+            values.putNull(column);
+        } else if (value instanceof Integer) {
+            values.put(column, (Integer) value);
+        } else if (value instanceof Long) {
+            values.put(column, (Long) value);
+        } else if (value instanceof Float) {
+            values.put(column, (Float) value);
+        } else if (value instanceof Double) {
+            values.put(column, (Double) value);
+        } else if (value instanceof Short) {
+            values.put(column, (Short) value);
+        } else if (value instanceof Byte) {
+            values.put(column, (Byte) value);
+        } else if (value instanceof Boolean) {
+            values.put(column, (Boolean) value);
+        } else if (value instanceof byte[]) {
+            values.put(column, (byte[]) value);
+        } else {
+            values.put(column, value.toString());
+        }
+    }
+}
@@ -29,6 +29,9 @@ import android.widget.Toast;
 
 import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.sync.ForecastDelta;
+import com.example.android.sunshine.app.sync.ForecastValidatorStore;
+import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
 import com.google.android.gms.gcm.GcmListenerService;
 
 import org.json.JSONException;
@@ -41,6 +44,7 @@ public class MyGcmListenerService extends GcmListenerService {
     private static final String EXTRA_DATA = "data";
     private static final String EXTRA_WEATHER = "weather";
     private static final String EXTRA_LOCATION = "location";
+    private static final String EXTRA_DELTA = "delta";
 
     public static final int NOTIFICATION_ID = 1;
 
@@ -65,11 +69,18 @@ public class MyGcmListenerService extends GcmListenerService {
                 // Process message and then post a notification of the received message.
                 try {
                     JSONObject jsonObject = new JSONObject(data.getString(EXTRA_DATA));
-                    String weather = jsonObject.getString(EXTRA_WEATHER);
-                    String location = jsonObject.getString(EXTRA_LOCATION);
-                    String alert =
-                            String.format(getString(R.string.gcm_weather_alert), weather, location);
-                    sendNotification(alert);
+                    // A message may carry a forecast delta, an alert, or both.
+                    JSONObject delta = jsonObject.optJSONObject(EXTRA_DELTA);
+                    if (delta != null) {
+                        applyDelta(delta);
+                    }
+                    if (jsonObject.has(EXTRA_WEATHER) || delta == null) {
+                        String weather = jsonObject.getString(EXTRA_WEATHER);
+                        String location = jsonObject.getString(EXTRA_LOCATION);
+                        String alert = String.format(getString(R.string.gcm_weather_alert),
+                                weather, location);
+                        sendNotification(alert);
+                    }
                 } catch (JSONException e) {
                     // JSON parsing failed, so we just let this message go, since GCM is not one
                     // of our critical features.
@@ -79,6 +90,31 @@ public class MyGcmListenerService extends GcmListenerService {
         }
     }
 
+    /**
+     * Writes the changed days a message carries straight to the database, saving the sync
+     * adapter a round trip to the server.  If the delta doesn't apply to what is stored, or
+     * can't be read, the forecast is synced the usual way instead.
+     *
+     * @param delta The delta, in the format ForecastDelta describes.
+     */
+    private void applyDelta(JSONObject delta) {
+        ForecastDelta.Result result;
+        String locationSetting = delta.optString(EXTRA_LOCATION);
+        try {
+            ForecastDelta forecastDelta = ForecastDelta.parse(delta);
+            result = forecastDelta.apply(this, new ForecastValidatorStore(this));
+        } catch (JSONException e) {
+            Log.e(TAG, "Unreadable forecast delta", e);
+            result = ForecastDelta.Result.FAILED;
+        }
+        if (result == ForecastDelta.Result.APPLIED) {
+            SunshineSyncAdapter.onForecastPushed(this, locationSetting);
+        } else {
+            Log.d(TAG, "Forecast delta not applied (" + result + "), syncing instead");
+            SunshineSyncAdapter.syncImmediately(this);
+        }
+    }
+
     /**
      *  Put the message into a notification and post it.
      *  This is just one simple example of what you might choose to do with a GCM message.
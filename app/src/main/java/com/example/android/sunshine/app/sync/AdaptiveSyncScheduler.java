@@ -0,0 +1,193 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+
+import java.util.Locale;
+
+/**
+ * Picks the periodic sync interval from how the forecast has been behaving.  Every sync that
+ * finds the forecast unchanged stretches the interval, up to MAX_INTERVAL, and forecasts that
+ * change sync after sync shrink it, down to MIN_INTERVAL.  The device's state shapes the flex
+ * window: on battery and a metered network the window is wider, so the sync manager has more room
+ * to run the sync alongside other work, and a stretch is a little longer.
+ *
+ * The state lives in shared preferences, so it carries over reboots along with the periodic sync
+ * itself, and is committed synchronously; never call this from the UI thread.
+ */
+public class AdaptiveSyncScheduler {
+
+    private static final String PREFS_NAME = "sync_schedule";
+
+    private static final String KEY_INTERVAL = "interval";
+    private static final String KEY_FLEX = "flex";
+    private static final String KEY_LAST_CHANGED = "last_changed";
+    private static final String KEY_SYNCS = "syncs";
+    private static final String KEY_UNCHANGED_SYNCS = "unchanged_syncs";
+    private static final String KEY_SHORTEST_INTERVAL = "shortest_interval";
+    private static final String KEY_LONGEST_INTERVAL = "longest_interval";
+
+    // Intervals in seconds, like SunshineSyncAdapter.SYNC_INTERVAL.
+    static final int MIN_INTERVAL = 60 * 60;
+    static final int MAX_INTERVAL = 60 * 60 * 12;
+    static final int DEFAULT_INTERVAL = SunshineSyncAdapter.SYNC_INTERVAL;
+    static final int DEFAULT_FLEX = SunshineSyncAdapter.SYNC_FLEXTIME;
+
+    // Stretch applied after an unchanged forecast, in percent, and the extra on an expensive
+    // battery and network.
+    static final int STRETCH_PERCENT = 150;
+    static final int EXPENSIVE_STRETCH_PERCENT = 200;
+
+    // Flex window as a fraction of the interval.
+    static final int FLEX_DIVISOR = 3;
+    static final int EXPENSIVE_FLEX_DIVISOR = 2;
+
+    /**
+     * Whether syncing is cheap right now.
+     */
+    public static class DeviceState {
+        final boolean charging;
+        final boolean unmetered;
+
+        public DeviceState(boolean charging, boolean unmetered) {
+            this.charging = charging;
+            this.unmetered = unmetered;
+        }
+
+        boolean isExpensive() {
+            return !charging && !unmetered;
+        }
+    }
+
+    /**
+     * What the scheduler has chosen, and how often it was right to stretch.
+     */
+    public static class Stats {
+        public final int interval;
+        public final int flex;
+        public final int shortestInterval;
+        public final int longestInterval;
+        public final long syncs;
+        public final long unchangedSyncs;
+
+        Stats(int interval, int flex, int shortestInterval, int longestInterval, long syncs,
+              long unchangedSyncs) {
+            this.interval = interval;
+            this.flex = flex;
+            this.shortestInterval = shortestInterval;
+            this.longestInterval = longestInterval;
+            this.syncs = syncs;
+            this.unchangedSyncs = unchangedSyncs;
+        }
+
+        /**
+         * @return the share of syncs that found nothing new.
+         */
+        public float getHitRate() {
+            return syncs == 0 ? 0 : (float) unchangedSyncs / syncs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "interval %ds (flex %ds), range %ds-%ds, %d syncs, %.0f%% unchanged",
+                    interval, flex, shortestInterval, longestInterval, syncs,
+                    getHitRate() * 100);
+        }
+    }
+
+    private final SharedPreferences mPrefs;
+
+    public AdaptiveSyncScheduler(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Records how a successful sync went and picks the interval for the next ones.
+     *
+     * @param changed whether the sync found the preferred location's forecast changed
+     * @return true if the interval or flex changed and the periodic sync has to be reconfigured
+     */
+    public boolean onSyncFinished(boolean changed, DeviceState state) {
+        int interval = mPrefs.getInt(KEY_INTERVAL, DEFAULT_INTERVAL);
+        int flex = mPrefs.getInt(KEY_FLEX, DEFAULT_FLEX);
+        boolean lastChanged = mPrefs.getBoolean(KEY_LAST_CHANGED, false);
+
+        int newInterval;
+        if (!changed) {
+            int stretch = state.isExpensive() ? EXPENSIVE_STRETCH_PERCENT : STRETCH_PERCENT;
+            newInterval = (int) ((long) interval * stretch / 100);
+        } else if (lastChanged) {
+            // Changed twice running: whatever is going on, it's moving faster than we look.
+            newInterval = interval / 2;
+        } else {
+            // A single change is just the forecast doing its job; go back to the usual pace if
+            // we had stretched past it.
+            newInterval = Math.min(interval, DEFAULT_INTERVAL);
+        }
+        newInterval = Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, newInterval));
+        int newFlex = newInterval
+                / (state.isExpensive() ? EXPENSIVE_FLEX_DIVISOR : FLEX_DIVISOR);
+
+        mPrefs.edit()
+                .putInt(KEY_INTERVAL, newInterval)
+                .putInt(KEY_FLEX, newFlex)
+                .putBoolean(KEY_LAST_CHANGED, changed)
+                .putLong(KEY_SYNCS, mPrefs.getLong(KEY_SYNCS, 0) + 1)
+                .putLong(KEY_UNCHANGED_SYNCS,
+                        mPrefs.getLong(KEY_UNCHANGED_SYNCS, 0) + (changed ? 0 : 1))
+                .putInt(KEY_SHORTEST_INTERVAL,
+                        Math.min(newInterval, mPrefs.getInt(KEY_SHORTEST_INTERVAL, newInterval)))
+                .putInt(KEY_LONGEST_INTERVAL,
+                        Math.max(newInterval, mPrefs.getInt(KEY_LONGEST_INTERVAL, newInterval)))
+                .commit();
+        return newInterval != interval || newFlex != flex;
+    }
+
+    public int getInterval() {
+        return mPrefs.getInt(KEY_INTERVAL, DEFAULT_INTERVAL);
+    }
+
+    public int getFlex() {
+        return mPrefs.getInt(KEY_FLEX, DEFAULT_FLEX);
+    }
+
+    public Stats getStats() {
+        int interval = getInterval();
+        return new Stats(interval, getFlex(),
+                mPrefs.getInt(KEY_SHORTEST_INTERVAL, interval),
+                mPrefs.getInt(KEY_LONGEST_INTERVAL, interval),
+                mPrefs.getLong(KEY_SYNCS, 0),
+                mPrefs.getLong(KEY_UNCHANGED_SYNCS, 0));
+    }
+
+    /**
+     * Forgets everything learned, going back to the default interval.
+     */
+    public void reset() {
+        mPrefs.edit().clear().commit();
+    }
+
+    /**
+     * @return whether the device is charging and on an unmetered network right now.
+     */
+    public static DeviceState readDeviceState(Context context) {
+        // A sticky broadcast, so this returns the last battery status without registering.
+        Intent battery = context.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        boolean charging = battery != null
+                && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+
+        ConnectivityManager cm =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
+        boolean unmetered = activeNetwork != null && activeNetwork.isConnected()
+                && !cm.isActiveNetworkMetered();
+        return new DeviceState(charging, unmetered);
+    }
+}
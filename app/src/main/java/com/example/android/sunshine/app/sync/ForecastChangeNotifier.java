@@ -0,0 +1,324 @@
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.SuppressLint;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.res.Resources;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Build;
+import android.preference.PreferenceManager;
+import android.support.v4.app.NotificationCompat;
+import android.support.v4.app.TaskStackBuilder;
+import android.util.Log;
+
+import com.bumptech.glide.Glide;
+import com.example.android.sunshine.app.MainActivity;
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.muzei.WeatherMuzeiSource;
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.wearable.PutDataMapRequest;
+import com.google.android.gms.wearable.PutDataRequest;
+import com.google.android.gms.wearable.Wearable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Lets everything that shows the preferred location's forecast know it changed: the widgets,
+ * Muzei, the notification and the watch, side by side through PostSyncDispatcher.  A sync, a
+ * prefetched forecast being stored and a pushed delta all end here, so it keeps a Wearable client
+ * of its own, connected when the watch is first updated, rather than relying on a sync.
+ */
+public class ForecastChangeNotifier {
+
+    private static final String LOG_TAG = ForecastChangeNotifier.class.getSimpleName();
+
+    public static final String HIGH_TEMP = "HIGH_TEMP";
+    public static final String LOW_TEMP = "LOW_TEMP";
+    public static final String WEATHER_ID = "WEATHER_ID";
+    public static final String SIMPLE_WATCH_PATH = "/simple_watch_face";
+
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+    private static final int WEATHER_NOTIFICATION_ID = 3004;
+
+    private static final String[] NOTIFY_WEATHER_PROJECTION = new String[]{
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC
+    };
+
+    // these indices must match the projection
+    private static final int INDEX_WEATHER_ID = 0;
+    private static final int INDEX_MAX_TEMP = 1;
+    private static final int INDEX_MIN_TEMP = 2;
+    private static final int INDEX_SHORT_DESC = 3;
+
+    // How long a change waits for each of the things it updates.  The notification may have to
+    // download its art, which it gives up on a little earlier, and falls back to the art that
+    // comes with the app.  The watch may need connecting first.
+    private static final long BROADCAST_TIMEOUT_MILLIS = 1000;
+    private static final long WEAR_TIMEOUT_MILLIS = 5000;
+    private static final long WEAR_CONNECT_TIMEOUT_MILLIS = 3000;
+    private static final long NOTIFICATION_TIMEOUT_MILLIS = 10000;
+    private static final long LARGE_ICON_TIMEOUT_MILLIS = 8000;
+
+    private static ForecastChangeNotifier sInstance;
+
+    private final Context mContext;
+    private final PostSyncDispatcher mDispatcher = new PostSyncDispatcher();
+    private final GoogleApiClient mWearClient;
+
+    public static synchronized ForecastChangeNotifier getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ForecastChangeNotifier(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ForecastChangeNotifier(Context context) {
+        mContext = context;
+        mWearClient = new GoogleApiClient.Builder(context)
+                .addApi(Wearable.API)
+                .build();
+    }
+
+    /**
+     * Updates everything that shows the preferred location's forecast, and waits until each has
+     * finished or run out of time.  Don't call this from the UI thread.
+     *
+     * @param recorder what the time each update takes is added to
+     */
+    public void onPreferredForecastChanged(SyncMetrics.Recorder recorder) {
+        final Context context = mContext;
+        List<PostSyncDispatcher.Consumer> consumers =
+                new ArrayList<PostSyncDispatcher.Consumer>(4);
+        consumers.add(new PostSyncDispatcher.Consumer("widgets", BROADCAST_TIMEOUT_MILLIS,
+                timed(recorder, SyncMetrics.STAGE_WIDGETS, new Runnable() {
+                    @Override
+                    public void run() {
+                        updateWidgets(context);
+                    }
+                })));
+        consumers.add(new PostSyncDispatcher.Consumer("muzei", BROADCAST_TIMEOUT_MILLIS,
+                timed(recorder, SyncMetrics.STAGE_MUZEI, new Runnable() {
+                    @Override
+                    public void run() {
+                        updateMuzei(context);
+                    }
+                })));
+        consumers.add(new PostSyncDispatcher.Consumer("notification",
+                NOTIFICATION_TIMEOUT_MILLIS,
+                timed(recorder, SyncMetrics.STAGE_NOTIFICATION, new Runnable() {
+                    @Override
+                    public void run() {
+                        notifyWeather();
+                    }
+                })));
+        consumers.add(new PostSyncDispatcher.Consumer("wear", WEAR_TIMEOUT_MILLIS,
+                timed(recorder, SyncMetrics.STAGE_WEAR, new Runnable() {
+                    @Override
+                    public void run() {
+                        updateWatchface();
+                    }
+                })));
+        for (PostSyncDispatcher.Result result : mDispatcher.dispatch(consumers)) {
+            Log.d(LOG_TAG, "Post sync: " + result);
+        }
+    }
+
+    /**
+     * Wraps {@code runnable} so the time it takes is added to {@code stage} of {@code recorder}.
+     */
+    private static Runnable timed(final SyncMetrics.Recorder recorder, final int stage,
+                                  final Runnable runnable) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    runnable.run();
+                } finally {
+                    recorder.endStage(stage, start);
+                }
+            }
+        };
+    }
+
+    private static void updateWidgets(Context context) {
+        // Setting the package ensures that only components in our app will receive the broadcast
+        Intent dataUpdatedIntent = new Intent(SunshineSyncAdapter.ACTION_DATA_UPDATED)
+                .setPackage(context.getPackageName());
+        context.sendBroadcast(dataUpdatedIntent);
+    }
+
+    private static void updateMuzei(Context context) {
+        // Muzei is only compatible with Jelly Bean MR1+ devices, so there's no need to update the
+        // Muzei background on lower API level devices
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            context.startService(new Intent(SunshineSyncAdapter.ACTION_DATA_UPDATED)
+                    .setClass(context, WeatherMuzeiSource.class));
+        }
+    }
+
+    private void notifyWeather() {
+        Context context = mContext;
+        //checking the last update and notify if it' the first of the day
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String displayNotificationsKey = context.getString(R.string.pref_enable_notifications_key);
+        boolean displayNotifications = prefs.getBoolean(displayNotificationsKey,
+                Boolean.parseBoolean(context.getString(R.string.pref_enable_notifications_default)));
+
+        if (displayNotifications) {
+
+            String lastNotificationKey = context.getString(R.string.pref_last_notification);
+            long lastSync = prefs.getLong(lastNotificationKey, 0);
+
+            if (System.currentTimeMillis() - lastSync >= DAY_IN_MILLIS) {
+                // Last sync was more than 1 day ago, let's send a notification with the weather.
+                String locationQuery = Utility.getPreferredLocation(context);
+
+                Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
+
+                // we'll query our contentProvider, as always
+                Cursor cursor = context.getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
+
+                if (cursor.moveToFirst()) {
+                    int weatherId = cursor.getInt(INDEX_WEATHER_ID);
+                    double high = cursor.getDouble(INDEX_MAX_TEMP);
+                    double low = cursor.getDouble(INDEX_MIN_TEMP);
+                    String desc = cursor.getString(INDEX_SHORT_DESC);
+
+                    int iconId = Utility.getIconResourceForWeatherCondition(weatherId);
+                    Resources resources = context.getResources();
+                    int artResourceId = Utility.getArtResourceForWeatherCondition(weatherId);
+                    String artUrl = Utility.getArtUrlForWeatherCondition(context, weatherId);
+
+                    // On Honeycomb and higher devices, we can retrieve the size of the large icon
+                    // Prior to that, we use a fixed size
+                    @SuppressLint("InlinedApi")
+                    int largeIconWidth = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                            ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width)
+                            : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
+                    @SuppressLint("InlinedApi")
+                    int largeIconHeight = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                            ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height)
+                            : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
+
+                    // Retrieve the large icon
+                    Bitmap largeIcon;
+                    try {
+                        largeIcon = Glide.with(context)
+                                .load(artUrl)
+                                .asBitmap()
+                                .error(artResourceId)
+                                .fitCenter()
+                                .into(largeIconWidth, largeIconHeight)
+                                .get(LARGE_ICON_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                        Log.e(LOG_TAG, "Error retrieving large icon from " + artUrl, e);
+                        largeIcon = BitmapFactory.decodeResource(resources, artResourceId);
+                    }
+                    String title = context.getString(R.string.app_name);
+
+                    // Define the text of the forecast.
+                    String contentText = String.format(context.getString(R.string.format_notification),
+                            desc,
+                            Utility.formatTemperature(context, high),
+                            Utility.formatTemperature(context, low));
+
+                    // NotificationCompatBuilder is a very convenient way to build backward-compatible
+                    // notifications.  Just throw in some data.
+                    NotificationCompat.Builder mBuilder =
+                            new NotificationCompat.Builder(context)
+                                    .setColor(resources.getColor(R.color.primary_light))
+                                    .setSmallIcon(iconId)
+                                    .setLargeIcon(largeIcon)
+                                    .setContentTitle(title)
+                                    .setContentText(contentText);
+
+                    // Make something interesting happen when the user clicks on the notification.
+                    // In this case, opening the app is sufficient.
+                    Intent resultIntent = new Intent(context, MainActivity.class);
+
+                    // The stack builder object will contain an artificial back stack for the
+                    // started Activity.
+                    // This ensures that navigating backward from the Activity leads out of
+                    // your application to the Home screen.
+                    TaskStackBuilder stackBuilder = TaskStackBuilder.create(context);
+                    stackBuilder.addNextIntent(resultIntent);
+                    PendingIntent resultPendingIntent =
+                            stackBuilder.getPendingIntent(
+                                    0,
+                                    PendingIntent.FLAG_UPDATE_CURRENT
+                            );
+                    mBuilder.setContentIntent(resultPendingIntent);
+
+                    NotificationManager mNotificationManager =
+                            (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+                    // WEATHER_NOTIFICATION_ID allows you to update the notification later on.
+                    mNotificationManager.notify(WEATHER_NOTIFICATION_ID, mBuilder.build());
+
+                    //refreshing last sync
+                    SharedPreferences.Editor editor = prefs.edit();
+                    editor.putLong(lastNotificationKey, System.currentTimeMillis());
+                    editor.commit();
+                }
+                cursor.close();
+            }
+        }
+    }
+
+    private synchronized void updateWatchface() {
+        if (!mWearClient.isConnected()) {
+            ConnectionResult result = mWearClient.blockingConnect(WEAR_CONNECT_TIMEOUT_MILLIS,
+                    TimeUnit.MILLISECONDS);
+            if (!result.isSuccess()) {
+                Log.e(LOG_TAG, "Couldn't connect to the watch: " + result);
+                return;
+            }
+        }
+
+        Context context = mContext;
+        String locationQuery = Utility.getPreferredLocation(context);
+
+        PutDataMapRequest putDataMapReq =
+                PutDataMapRequest.create(SIMPLE_WATCH_PATH).setUrgent();
+
+        Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
+
+        // we'll query our contentProvider, as always
+        Cursor cursor = context.getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
+
+        if (cursor.moveToFirst()) {
+            int weatherId = cursor.getInt(INDEX_WEATHER_ID);
+            double high = cursor.getDouble(INDEX_MAX_TEMP);
+            double low = cursor.getDouble(INDEX_MIN_TEMP);
+
+            String highTempString = Utility.formatTemperature(context, high);
+            String lowTempString = Utility.formatTemperature(context, low);
+
+            putDataMapReq.getDataMap().putString(HIGH_TEMP, highTempString);
+            putDataMapReq.getDataMap().putString(LOW_TEMP, lowTempString);
+            putDataMapReq.getDataMap().putInt(WEATHER_ID, weatherId);
+            Log.d(LOG_TAG, "updateWatchface " + highTempString + " " +
+                    lowTempString + " " + weatherId);
+        }
+        cursor.close();
+
+        PutDataRequest putDataReq = putDataMapReq.asPutDataRequest().setUrgent();
+        Wearable.DataApi.putDataItem(mWearClient, putDataReq).await();
+    }
+}
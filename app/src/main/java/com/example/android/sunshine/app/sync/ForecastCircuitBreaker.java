@@ -0,0 +1,161 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Keeps syncs away from a forecast server that keeps failing.  After FAILURE_THRESHOLD failed
+ * syncs in a row the circuit opens and syncs are skipped for a delay that doubles with every
+ * opening, from BASE_DELAY_MILLIS up to MAX_DELAY_MILLIS, and is jittered so that devices that
+ * saw the same outage don't all come back at the same moment.  Once the delay is up the circuit
+ * is half open: a single probe sync goes through, and its result either closes the circuit or
+ * opens it again for longer.
+ *
+ * The state lives in shared preferences, so an outage isn't forgotten by a process restart, and
+ * is committed synchronously; never call this from the UI thread.
+ */
+public class ForecastCircuitBreaker {
+
+    private static final String PREFS_NAME = "forecast_circuit";
+
+    private static final String KEY_STATE = "state";
+    private static final String KEY_FAILURES = "failures";
+    private static final String KEY_OPENINGS = "openings";
+    private static final String KEY_RETRY_AT = "retry_at";
+    private static final String KEY_PROBE_STARTED = "probe_started";
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({STATE_CLOSED, STATE_OPEN, STATE_HALF_OPEN})
+    public @interface State {
+    }
+
+    public static final int STATE_CLOSED = 0;
+    public static final int STATE_OPEN = 1;
+    public static final int STATE_HALF_OPEN = 2;
+
+    // Failed syncs in a row that open the circuit.
+    static final int FAILURE_THRESHOLD = 2;
+
+    static final long BASE_DELAY_MILLIS = 2 * 60 * 1000;
+    static final long MAX_DELAY_MILLIS = 6 * 60 * 60 * 1000;
+
+    // A probe that hasn't reported back by then was lost, say to a killed process, and another
+    // one may go.
+    static final long PROBE_TIMEOUT_MILLIS = 10 * 60 * 1000;
+
+    private final SharedPreferences mPrefs;
+    private final Random mRandom;
+
+    public ForecastCircuitBreaker(Context context) {
+        this(context, new Random());
+    }
+
+    ForecastCircuitBreaker(Context context, Random random) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mRandom = random;
+    }
+
+    /**
+     * Decides whether a sync may go to the server now.  When the circuit is open and its delay
+     * is up, this lets one probe through and marks the circuit half open; check
+     * {@link #getState} to tell a probe from an ordinary sync.
+     */
+    public synchronized boolean allowSync() {
+        return allowSync(System.currentTimeMillis());
+    }
+
+    synchronized boolean allowSync(long now) {
+        switch (getState()) {
+            case STATE_OPEN:
+                long retryAt = getRetryAt();
+                // A retry time further off than any delay means the clock was set back.
+                if (now < retryAt && retryAt - now <= MAX_DELAY_MILLIS) {
+                    return false;
+                }
+                break;
+            case STATE_HALF_OPEN:
+                long probeStarted = mPrefs.getLong(KEY_PROBE_STARTED, 0);
+                if (now >= probeStarted && now - probeStarted < PROBE_TIMEOUT_MILLIS) {
+                    return false;
+                }
+                break;
+            default:
+                return true;
+        }
+        mPrefs.edit()
+                .putInt(KEY_STATE, STATE_HALF_OPEN)
+                .putLong(KEY_PROBE_STARTED, now)
+                .commit();
+        return true;
+    }
+
+    /**
+     * Records a sync that reached the server and got a forecast, or a clear answer, out of it.
+     */
+    public synchronized void onSuccess() {
+        mPrefs.edit().clear().commit();
+    }
+
+    /**
+     * Records a sync that found the server down or talking nonsense.
+     */
+    public synchronized void onFailure() {
+        onFailure(System.currentTimeMillis());
+    }
+
+    synchronized void onFailure(long now) {
+        int failures = mPrefs.getInt(KEY_FAILURES, 0) + 1;
+        if (getState() != STATE_HALF_OPEN && failures < FAILURE_THRESHOLD) {
+            mPrefs.edit().putInt(KEY_FAILURES, failures).commit();
+            return;
+        }
+        int openings = mPrefs.getInt(KEY_OPENINGS, 0) + 1;
+        mPrefs.edit()
+                .putInt(KEY_STATE, STATE_OPEN)
+                .putInt(KEY_FAILURES, failures)
+                .putInt(KEY_OPENINGS, openings)
+                .putLong(KEY_RETRY_AT, now + getDelay(openings))
+                .remove(KEY_PROBE_STARTED)
+                .commit();
+    }
+
+    /**
+     * @return the delay before the probe after the circuit opened {@code openings} times in a
+     * row: half of the exponential delay, plus a random share of the other half.
+     */
+    long getDelay(int openings) {
+        long delay = BASE_DELAY_MILLIS << Math.min(openings - 1, 30);
+        if (delay <= 0 || delay > MAX_DELAY_MILLIS) {
+            delay = MAX_DELAY_MILLIS;
+        }
+        long half = delay / 2;
+        return half + (long) (mRandom.nextDouble() * (delay - half));
+    }
+
+    @State
+    @SuppressWarnings("ResourceType")
+    public int getState() {
+        return mPrefs.getInt(KEY_STATE, STATE_CLOSED);
+    }
+
+    /**
+     * @return when the open circuit lets a probe through, in milliseconds since the epoch, or 0
+     * if it isn't open.
+     */
+    public long getRetryAt() {
+        return getState() == STATE_OPEN ? mPrefs.getLong(KEY_RETRY_AT, 0) : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "state %d, %d failures, %d openings, retry at %d",
+                getState(), mPrefs.getInt(KEY_FAILURES, 0), mPrefs.getInt(KEY_OPENINGS, 0),
+                getRetryAt());
+    }
+}
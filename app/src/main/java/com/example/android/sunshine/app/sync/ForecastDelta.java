@@ -0,0 +1,195 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.os.RemoteException;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The days of a forecast that changed since a given version of it, pushed by the server in a GCM
+ * message so that the database can be brought up to date without fetching the whole forecast.
+ * <p>
+ * Versions are the forecast's ETag: the delta names the ETag of the forecast it was computed
+ * against, which has to be the one stored by the last sync, and the ETag of the forecast it turns
+ * that into, which is stored in its place so that the next sync's conditional request stays
+ * cheap.  Each day is an element of the OpenWeatherMap "list" array plus the Julian day it is
+ * for:
+ * <pre>
+ * {"location": "94043", "base": "\"v1\"", "version": "\"v2\"",
+ *  "days": [{"julian_day": 2457400, "pressure": 1017.2, "humidity": 80, "speed": 3.1,
+ *            "deg": 250, "temp": {"max": 18.3, "min": 9.1},
+ *            "weather": [{"id": 500, "main": "Rain"}]}]}
+ * </pre>
+ */
+public class ForecastDelta {
+
+    private static final String LOG_TAG = ForecastDelta.class.getSimpleName();
+
+    private static final String DELTA_LOCATION = "location";
+    private static final String DELTA_BASE = "base";
+    private static final String DELTA_VERSION = "version";
+    private static final String DELTA_DAYS = "days";
+    private static final String DELTA_JULIAN_DAY = "julian_day";
+
+    // The same names as in ForecastJsonParser.
+    private static final String OWM_PRESSURE = "pressure";
+    private static final String OWM_HUMIDITY = "humidity";
+    private static final String OWM_WINDSPEED = "speed";
+    private static final String OWM_WIND_DIRECTION = "deg";
+    private static final String OWM_TEMPERATURE = "temp";
+    private static final String OWM_MAX = "max";
+    private static final String OWM_MIN = "min";
+    private static final String OWM_WEATHER = "weather";
+    private static final String OWM_DESCRIPTION = "main";
+    private static final String OWM_WEATHER_ID = "id";
+
+    private static final String[] LOCATION_PROJECTION = new String[]{
+            WeatherContract.LocationEntry.COLUMN_CITY_NAME,
+            WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG
+    };
+
+    // these indices must match the projection
+    private static final int INDEX_CITY_NAME = 0;
+    private static final int INDEX_COORD_LAT = 1;
+    private static final int INDEX_COORD_LONG = 2;
+
+    /**
+     * What became of a delta.  Anything but APPLIED leaves the database as it was, and the
+     * forecast should be synced the usual way instead.
+     */
+    public enum Result {
+        APPLIED,
+        // The local forecast isn't the one the delta was computed against.
+        BASE_MISMATCH,
+        FAILED
+    }
+
+    private final String mLocationSetting;
+    private final String mBaseVersion;
+    private final String mVersion;
+    private final List<ContentValues> mDays;
+
+    ForecastDelta(String locationSetting, String baseVersion, String version,
+                  List<ContentValues> days) {
+        mLocationSetting = locationSetting;
+        mBaseVersion = baseVersion;
+        mVersion = version;
+        mDays = days;
+    }
+
+    /**
+     * @throws JSONException if {@code delta} is missing anything needed to apply it
+     */
+    public static ForecastDelta parse(JSONObject delta) throws JSONException {
+        JSONArray days = delta.getJSONArray(DELTA_DAYS);
+        List<ContentValues> values = new ArrayList<ContentValues>(days.length());
+        // Dates are stored as the UTC start of the day, as the sync adapter does it.
+        Time utcTime = new Time();
+        for (int i = 0; i < days.length(); i++) {
+            JSONObject day = days.getJSONObject(i);
+            JSONObject temperature = day.getJSONObject(OWM_TEMPERATURE);
+            JSONObject weather = day.getJSONArray(OWM_WEATHER).getJSONObject(0);
+
+            ContentValues weatherValues = new ContentValues();
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                    utcTime.setJulianDay(day.getInt(DELTA_JULIAN_DAY)));
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+                    day.getInt(OWM_HUMIDITY));
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+                    day.getDouble(OWM_PRESSURE));
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+                    day.getDouble(OWM_WINDSPEED));
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES,
+                    day.getDouble(OWM_WIND_DIRECTION));
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+                    temperature.getDouble(OWM_MAX));
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+                    temperature.getDouble(OWM_MIN));
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+                    weather.getString(OWM_DESCRIPTION));
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+                    weather.getInt(OWM_WEATHER_ID));
+            values.add(weatherValues);
+        }
+        return new ForecastDelta(delta.getString(DELTA_LOCATION), delta.getString(DELTA_BASE),
+                delta.getString(DELTA_VERSION), values);
+    }
+
+    public String getLocationSetting() {
+        return mLocationSetting;
+    }
+
+    /**
+     * Writes the changed days through the content provider, in one batch and so one
+     * transaction, provided the stored forecast is the delta's base version.  Commits the
+     * validators synchronously, so don't call this from the UI thread.
+     * <p>
+     * Runs under ForecastValidatorStore.STORE_LOCK, so a sync can't store a newer forecast
+     * between the check of the base version and the write, only to have it overwritten by this
+     * older delta.  The sync either stored its forecast before, and the delta no longer applies,
+     * or stores it after, over the delta.
+     */
+    public Result apply(Context context, ForecastValidatorStore validators) {
+        synchronized (ForecastValidatorStore.STORE_LOCK) {
+            return applyLocked(context, validators);
+        }
+    }
+
+    private Result applyLocked(Context context, ForecastValidatorStore validators) {
+        if (!mBaseVersion.equals(validators.getETag(mLocationSetting))) {
+            Log.d(LOG_TAG, "Delta for " + mLocationSetting + " is against " + mBaseVersion
+                    + ", have " + validators.getETag(mLocationSetting));
+            return Result.BASE_MISMATCH;
+        }
+
+        // The location is upserted along with the days, as a sync does, so its row ID can be
+        // back referenced; that needs the rest of the row, which the base forecast stored.
+        Cursor cursor = context.getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                LOCATION_PROJECTION,
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{mLocationSetting},
+                null);
+        if (cursor == null) {
+            return Result.FAILED;
+        }
+        ArrayList<ContentProviderOperation> operations;
+        try {
+            if (!cursor.moveToFirst()) {
+                return Result.BASE_MISMATCH;
+            }
+            operations = SunshineSyncAdapter.buildForecastOperations(mLocationSetting,
+                    cursor.getString(INDEX_CITY_NAME), cursor.getDouble(INDEX_COORD_LAT),
+                    cursor.getDouble(INDEX_COORD_LONG), mDays);
+        } finally {
+            cursor.close();
+        }
+
+        try {
+            context.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY,
+                    operations);
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(LOG_TAG, "Error applying forecast delta", e);
+            return Result.FAILED;
+        }
+        // The stored rows no longer match any body the server sent, so there is no content hash
+        // to remember; the new ETag is enough for the next sync to get a 304.
+        validators.save(mLocationSetting, mVersion, null, null);
+        Log.d(LOG_TAG, "Applied delta of " + mDays.size() + " days for " + mLocationSetting);
+        return Result.APPLIED;
+    }
+}
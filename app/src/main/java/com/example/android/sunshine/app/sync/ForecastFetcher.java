@@ -0,0 +1,248 @@
+package com.example.android.sunshine.app.sync;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Issues the forecast request, conditional on the validators remembered for the location, and
+ * hashes the body as it is read so that an unchanged forecast can be recognized even when the
+ * server doesn't support conditional requests.  The hash is of the decoded body, so it doesn't
+ * depend on how the server chose to compress it.
+ */
+public class ForecastFetcher {
+
+    private static final String LOG_TAG = ForecastFetcher.class.getSimpleName();
+
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    private static final String HASH_ALGORITHM = "SHA-1";
+
+    private final ForecastValidatorStore mValidators;
+    private final ForecastHttpClient mClient;
+
+    public ForecastFetcher(ForecastValidatorStore validators) {
+        this(validators, ForecastHttpClient.getInstance());
+    }
+
+    ForecastFetcher(ForecastValidatorStore validators, ForecastHttpClient client) {
+        mValidators = validators;
+        mClient = client;
+    }
+
+    /**
+     * The server's answer to a forecast request.  Must be closed once the body has been read.
+     */
+    public static class Response implements Closeable {
+        private final ForecastHttpClient mClient;
+        private final HttpURLConnection mConnection;
+        private final int mResponseCode;
+        private final String mETag;
+        private final String mLastModified;
+        private final DigestInputStream mBody;
+        private final TimedInputStream mTimedBody;
+
+        Response(ForecastHttpClient client, HttpURLConnection connection, int responseCode,
+                 String eTag, String lastModified, TimedInputStream body)
+                throws NoSuchAlgorithmException {
+            mClient = client;
+            mConnection = connection;
+            mResponseCode = responseCode;
+            mETag = eTag;
+            mLastModified = lastModified;
+            mTimedBody = body;
+            mBody = body == null ? null
+                    : new DigestInputStream(body, MessageDigest.getInstance(HASH_ALGORITHM));
+        }
+
+        /**
+         * @return a 200 response whose body was already read off the network, as
+         * ForecastPrefetcher keeps them.
+         */
+        static Response fromCache(byte[] body, String eTag, String lastModified) {
+            try {
+                return new Response(null, null, HttpURLConnection.HTTP_OK, eTag, lastModified,
+                        new TimedInputStream(new ByteArrayInputStream(body)));
+            } catch (NoSuchAlgorithmException e) {
+                // Every Android release ships SHA-1.
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * @return true if the server confirmed that the forecast we already have is current.
+         */
+        public boolean isNotModified() {
+            return mResponseCode == HttpURLConnection.HTTP_NOT_MODIFIED;
+        }
+
+        /**
+         * @return the response body, or null for a 304 response.
+         */
+        public InputStream getBody() {
+            return mBody;
+        }
+
+        public String getETag() {
+            return mETag;
+        }
+
+        public String getLastModified() {
+            return mLastModified;
+        }
+
+        /**
+         * Reads whatever is left of the body and returns the hex encoded hash of all of it.
+         * Parsers usually stop at the closing brace, so the remainder is drained here to keep the
+         * hash independent of how much of the stream the parser happened to consume.
+         */
+        public String getContentHash() throws IOException {
+            if (mBody == null) {
+                return null;
+            }
+            byte[] buffer = new byte[512];
+            while (mBody.read(buffer) != -1) {
+                // Only reading for the digest's sake.
+            }
+            byte[] digest = mBody.getMessageDigest().digest();
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        }
+
+        /**
+         * @return how long reads of the body have spent waiting for it to arrive, and be
+         * decoded, so far, in nanoseconds.
+         */
+        public long getReadNanos() {
+            return mTimedBody == null ? 0 : mTimedBody.mNanos;
+        }
+
+        /**
+         * @return how much of the decoded body has been read so far.
+         */
+        public long getBytesRead() {
+            return mTimedBody == null ? 0 : mTimedBody.mBytes;
+        }
+
+        /**
+         * Hands the connection back to the pool for the next request, or drops it if the body
+         * can't be finished cleanly.
+         */
+        @Override
+        public void close() {
+            if (mBody == null) {
+                mClient.release(mConnection);
+                return;
+            }
+            try {
+                mBody.close();
+            } catch (final IOException e) {
+                Log.e(LOG_TAG, "Error closing stream", e);
+            }
+        }
+    }
+
+    /**
+     * Requests the forecast at {@code url}, sending along the validators remembered for
+     * {@code locationSetting} if there are any.
+     *
+     * @throws IOException if the request fails or the server answers with an error status
+     */
+    public Response fetch(URL url, String locationSetting) throws IOException {
+        return fetch(url, locationSetting, new SyncMetrics.Recorder());
+    }
+
+    /**
+     * Like {@link #fetch(URL, String)}, timing the connect and the wait for the response's first
+     * byte into {@code recorder}.  The time spent reading the body is left to the Response.
+     */
+    public Response fetch(URL url, String locationSetting, SyncMetrics.Recorder recorder)
+            throws IOException {
+        HttpURLConnection urlConnection = mClient.open(url);
+        try {
+            String eTag = mValidators.getETag(locationSetting);
+            if (eTag != null) {
+                urlConnection.setRequestProperty(HEADER_IF_NONE_MATCH, eTag);
+            }
+            String lastModified = mValidators.getLastModified(locationSetting);
+            if (lastModified != null) {
+                urlConnection.setRequestProperty(HEADER_IF_MODIFIED_SINCE, lastModified);
+            }
+            long start = System.nanoTime();
+            urlConnection.connect();
+            recorder.endStage(SyncMetrics.STAGE_CONNECT, start);
+
+            start = System.nanoTime();
+            int responseCode = urlConnection.getResponseCode();
+            recorder.endStage(SyncMetrics.STAGE_TTFB, start);
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                return new Response(mClient, urlConnection, responseCode, eTag, lastModified,
+                        null);
+            }
+
+            // Throws for error statuses, same as before conditional requests were added.
+            TimedInputStream body = new TimedInputStream(mClient.openBody(urlConnection));
+            return new Response(mClient, urlConnection, responseCode,
+                    urlConnection.getHeaderField(HEADER_ETAG),
+                    urlConnection.getHeaderField(HEADER_LAST_MODIFIED),
+                    body);
+        } catch (IOException e) {
+            urlConnection.disconnect();
+            throw e;
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android release ships SHA-1.
+            urlConnection.disconnect();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Times and counts the reads of a body.  Only ever read by one thread at a time.
+     */
+    static class TimedInputStream extends FilterInputStream {
+        long mNanos;
+        long mBytes;
+
+        TimedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = System.nanoTime();
+            int b = super.read();
+            mNanos += System.nanoTime() - start;
+            if (b != -1) {
+                mBytes++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            long start = System.nanoTime();
+            int count = super.read(buffer, offset, length);
+            mNanos += System.nanoTime() - start;
+            if (count > 0) {
+                mBytes += count;
+            }
+            return count;
+        }
+    }
+}
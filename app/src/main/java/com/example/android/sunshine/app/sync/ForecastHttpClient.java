@@ -0,0 +1,313 @@
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The network layer under the forecast fetches.  Every request asks for a gzip or deflate
+ * encoded body, which is decoded on the fly as the parser reads it, and every response is read
+ * to the end and closed rather than disconnected, so that HttpURLConnection's keep-alive pool can
+ * hand the connection to the next request.  Bytes on the wire, decoded bytes and connection reuse
+ * are counted for the whole process.
+ * <p>
+ * The pool is the platform's, shared with every other HttpURLConnection user in the process, and
+ * left with its defaults: keep-alive on, and up to five idle connections kept for up to five
+ * minutes each.  Its system properties are only read when the pool is first used, and would
+ * change it for Glide too, so they aren't set here.  Reuse therefore only happens between
+ * fetches less than five minutes apart, and for no more than five connections at a time.
+ */
+public class ForecastHttpClient {
+
+    private static final String LOG_TAG = ForecastHttpClient.class.getSimpleName();
+
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+    private static final String HEADER_CONNECTION = "Connection";
+    private static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    // How long the platform's pool keeps an idle connection, and how many of the connections to
+    // the forecast host it can be expected to keep, for estimating reuse.
+    static final long KEEP_ALIVE_MILLIS = 5 * 60 * 1000;
+    static final int MAX_IDLE_CONNECTIONS = LocationSyncEngine.DEFAULT_CONNECTIONS_PER_HOST;
+
+    // A response left with more than this unread isn't worth draining for its connection.
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    private static ForecastHttpClient sInstance;
+
+    /**
+     * Process wide counters.  The pool doesn't say whether it reused a connection, so reuse is
+     * estimated: a request counts as reused if a connection to its host was released to the
+     * pool, and not since taken, less than KEEP_ALIVE_MILLIS before.
+     */
+    public static class Stats {
+        public final long requests;
+        public final long bytesOnWire;
+        public final long bytesDecoded;
+        public final long reusedConnections;
+
+        Stats(long requests, long bytesOnWire, long bytesDecoded, long reusedConnections) {
+            this.requests = requests;
+            this.bytesOnWire = bytesOnWire;
+            this.bytesDecoded = bytesDecoded;
+            this.reusedConnections = reusedConnections;
+        }
+
+        /**
+         * @return decoded bytes per byte on the wire, or 1 before anything was read.
+         */
+        public float getCompressionRatio() {
+            return bytesOnWire == 0 ? 1 : (float) bytesDecoded / bytesOnWire;
+        }
+
+        public float getReuseRate() {
+            return requests == 0 ? 0 : (float) reusedConnections / requests;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d requests, %d bytes on the wire, %d decoded (%.1fx), %.0f%% reused",
+                    requests, bytesOnWire, bytesDecoded, getCompressionRatio(),
+                    getReuseRate() * 100);
+        }
+    }
+
+    private long mRequests;
+    private long mBytesOnWire;
+    private long mBytesDecoded;
+    private long mReusedConnections;
+
+    // host -> release times of the connections believed idle in the pool, oldest first.
+    private final Map<String, long[]> mIdleConnections = new HashMap<String, long[]>();
+
+    public static synchronized ForecastHttpClient getInstance() {
+        if (sInstance == null) {
+            sInstance = new ForecastHttpClient();
+        }
+        return sInstance;
+    }
+
+    ForecastHttpClient() {
+    }
+
+    /**
+     * Opens a GET request for {@code url} that accepts a compressed body.  The caller sets any
+     * other headers, connects, and hands the connection to {@link #openBody} or
+     * {@link #release}.
+     */
+    public HttpURLConnection open(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("GET");
+        // Setting this ourselves turns off the platform's transparent gzip, so the body arrives
+        // as sent and its size on the wire can be counted.
+        connection.setRequestProperty(HEADER_ACCEPT_ENCODING, ACCEPT_ENCODING);
+        synchronized (this) {
+            mRequests++;
+            if (takeIdleConnection(url.getHost())) {
+                mReusedConnections++;
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * @return the decoded body of a connected request.  Closing it releases the connection to
+     * the pool, so it must be closed even if it isn't read to the end.
+     * @throws IOException if the request failed or the server answered with an error status
+     */
+    public InputStream openBody(HttpURLConnection connection) throws IOException {
+        CountingInputStream wire = new CountingInputStream(connection.getInputStream()) {
+            @Override
+            void onCount(long count) {
+                synchronized (ForecastHttpClient.this) {
+                    mBytesOnWire += count;
+                }
+            }
+        };
+        InputStream decoded = decode(wire, connection.getHeaderField(HEADER_CONTENT_ENCODING));
+        return new ReleasingInputStream(connection, new CountingInputStream(decoded) {
+            @Override
+            void onCount(long count) {
+                synchronized (ForecastHttpClient.this) {
+                    mBytesDecoded += count;
+                }
+            }
+        });
+    }
+
+    /**
+     * Releases a connection whose body was never opened, such as a 304, to the pool.
+     */
+    public void release(HttpURLConnection connection) {
+        try {
+            InputStream body = connection.getInputStream();
+            body.close();
+            onReleased(connection);
+        } catch (IOException e) {
+            connection.disconnect();
+        }
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(mRequests, mBytesOnWire, mBytesDecoded, mReusedConnections);
+    }
+
+    private static InputStream decode(InputStream wire, String contentEncoding)
+            throws IOException {
+        if ("gzip".equalsIgnoreCase(contentEncoding)) {
+            return new GZIPInputStream(wire);
+        }
+        if ("deflate".equalsIgnoreCase(contentEncoding)) {
+            // Meant to be zlib wrapped, but some servers send a raw deflate stream.  A zlib
+            // header's first byte always says the deflate method, 8, in its low bits.
+            PushbackInputStream peekable = new PushbackInputStream(wire, 1);
+            int first = peekable.read();
+            if (first != -1) {
+                peekable.unread(first);
+            }
+            boolean zlib = first != -1 && (first & 0x0f) == 8;
+            final Inflater inflater = new Inflater(!zlib);
+            return new InflaterInputStream(peekable, inflater) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        // Only an Inflater the stream made itself is ended by close().
+                        inflater.end();
+                    }
+                }
+            };
+        }
+        return wire;
+    }
+
+    private void onReleased(HttpURLConnection connection) {
+        if ("close".equalsIgnoreCase(connection.getHeaderField(HEADER_CONNECTION))) {
+            return;
+        }
+        String host = connection.getURL().getHost();
+        synchronized (this) {
+            long[] idle = mIdleConnections.get(host);
+            long[] released = new long[idle == null ? 1 : Math.min(idle.length + 1,
+                    MAX_IDLE_CONNECTIONS)];
+            if (idle != null) {
+                System.arraycopy(idle, idle.length - (released.length - 1), released, 0,
+                        released.length - 1);
+            }
+            released[released.length - 1] = SystemClock.elapsedRealtime();
+            mIdleConnections.put(host, released);
+        }
+    }
+
+    // Called holding the lock.
+    private boolean takeIdleConnection(String host) {
+        long[] idle = mIdleConnections.get(host);
+        if (idle == null) {
+            return false;
+        }
+        // The pool hands out the most recently released connection, and if that one has
+        // expired, so have all the others.
+        int newest = idle.length - 1;
+        if (newest < 0 || SystemClock.elapsedRealtime() - idle[newest] >= KEEP_ALIVE_MILLIS) {
+            mIdleConnections.remove(host);
+            return false;
+        }
+        long[] remaining = new long[newest];
+        System.arraycopy(idle, 0, remaining, 0, newest);
+        mIdleConnections.put(host, remaining);
+        return true;
+    }
+
+    /**
+     * Counts the bytes read through it, reporting them as they are read.
+     */
+    private abstract static class CountingInputStream extends FilterInputStream {
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        abstract void onCount(long count);
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                onCount(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = super.read(buffer, offset, length);
+            if (count > 0) {
+                onCount(count);
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            long count = super.skip(byteCount);
+            if (count > 0) {
+                onCount(count);
+            }
+            return count;
+        }
+    }
+
+    /**
+     * On close, reads whatever is left of a short body so the connection can go back to the
+     * pool, or drops the connection if too much is left for that to be worth it.
+     */
+    private class ReleasingInputStream extends FilterInputStream {
+        private final HttpURLConnection mConnection;
+        private boolean mClosed;
+
+        ReleasingInputStream(HttpURLConnection connection, InputStream in) {
+            super(in);
+            mConnection = connection;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            try {
+                byte[] buffer = new byte[512];
+                int drained = 0;
+                int count;
+                while (drained <= MAX_DRAIN_BYTES && (count = in.read(buffer)) != -1) {
+                    drained += count;
+                }
+                if (drained > MAX_DRAIN_BYTES) {
+                    Log.d(LOG_TAG, "Dropping connection with a long unread body");
+                    mConnection.disconnect();
+                    return;
+                }
+                in.close();
+                onReleased(mConnection);
+            } catch (IOException e) {
+                mConnection.disconnect();
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package com.example.android.sunshine.app.sync;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+
+/**
+ * Pull parser for the OpenWeatherMap daily forecast response.
+ * <p>
+ * Instead of buffering the whole body into a String and building a JSONObject tree, this reads
+ * tokens straight off the stream and hands each day to a {@link Listener} as soon as its
+ * element in the "list" array is complete, so only one day's worth of values is alive at a time.
+ */
+public class ForecastJsonParser {
+
+    // Location information
+    private static final String OWM_CITY = "city";
+    private static final String OWM_CITY_NAME = "name";
+    private static final String OWM_COORD = "coord";
+
+    // Location coordinate
+    private static final String OWM_LATITUDE = "lat";
+    private static final String OWM_LONGITUDE = "lon";
+
+    // Weather information.  Each day's forecast info is an element of the "list" array.
+    private static final String OWM_LIST = "list";
+
+    private static final String OWM_PRESSURE = "pressure";
+    private static final String OWM_HUMIDITY = "humidity";
+    private static final String OWM_WINDSPEED = "speed";
+    private static final String OWM_WIND_DIRECTION = "deg";
+
+    // All temperatures are children of the "temp" object.
+    private static final String OWM_TEMPERATURE = "temp";
+    private static final String OWM_MAX = "max";
+    private static final String OWM_MIN = "min";
+
+    private static final String OWM_WEATHER = "weather";
+    private static final String OWM_DESCRIPTION = "main";
+    private static final String OWM_WEATHER_ID = "id";
+
+    private static final String OWM_MESSAGE_CODE = "cod";
+
+    /**
+     * Receives the pieces of the forecast as they are read off the stream.
+     */
+    public interface Listener {
+        /**
+         * Called once with the city the forecast is for.  Always called before the first
+         * {@link #onDay}, even if the server sends the "city" object after the "list" array.
+         */
+        void onLocation(String cityName, double lat, double lon);
+
+        /**
+         * Called for each element of the "list" array, in order.
+         *
+         * @param dayIndex zero-based position of the day in the forecast, day 0 being today
+         */
+        void onDay(int dayIndex, double pressure, int humidity, double windSpeed,
+                   double windDirection, double high, double low, String description,
+                   int weatherId);
+    }
+
+    /**
+     * Holds the values of one day.  Only used when "list" arrives before "city" and the days
+     * have to be held back until the location is known.
+     */
+    private static class Day {
+        double pressure;
+        int humidity;
+        double windSpeed;
+        double windDirection;
+        double high;
+        double low;
+        String description;
+        int weatherId;
+
+        void reset() {
+            pressure = 0;
+            humidity = 0;
+            windSpeed = 0;
+            windDirection = 0;
+            high = 0;
+            low = 0;
+            description = null;
+            weatherId = 0;
+        }
+    }
+
+    // Scratch record reused for every day that can be handed straight to the listener.
+    private final Day mScratch = new Day();
+
+    /**
+     * Parses the response read from {@code in}.  The stream is not closed.
+     *
+     * @return the "cod" value reported by the server, or {@link HttpURLConnection#HTTP_OK} if
+     * the response didn't carry one.  OWM sends "cod" ahead of "list", so when the code is
+     * anything but OK no day is reported; the city may still have been.
+     * @throws JSONException if the body is not a well-formed forecast
+     * @throws IOException   if reading from the stream fails
+     */
+    public int parse(InputStream in, Listener listener) throws IOException, JSONException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            return parseForecast(reader, listener);
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            throw new JSONException(e.getMessage());
+        }
+    }
+
+    private int parseForecast(JsonReader reader, Listener listener)
+            throws IOException, JSONException {
+        int messageCode = HttpURLConnection.HTTP_OK;
+        boolean haveLocation = false;
+        boolean haveList = false;
+        // Days read before the "city" object, if the server chose that order.
+        ArrayList<Day> pendingDays = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_MESSAGE_CODE.equals(name)) {
+                // OWM sends this as a number on success and as a string on errors.
+                messageCode = reader.nextInt();
+            } else if (OWM_CITY.equals(name)) {
+                readCity(reader, listener);
+                haveLocation = true;
+                if (pendingDays != null) {
+                    for (int i = 0; i < pendingDays.size(); i++) {
+                        deliver(listener, i, pendingDays.get(i));
+                    }
+                    pendingDays = null;
+                }
+            } else if (OWM_LIST.equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                haveList = true;
+                if (messageCode != HttpURLConnection.HTTP_OK) {
+                    reader.skipValue();
+                    continue;
+                }
+                reader.beginArray();
+                int dayIndex = 0;
+                while (reader.hasNext()) {
+                    if (haveLocation) {
+                        mScratch.reset();
+                        readDay(reader, mScratch);
+                        deliver(listener, dayIndex, mScratch);
+                    } else {
+                        if (pendingDays == null) {
+                            pendingDays = new ArrayList<Day>();
+                        }
+                        Day day = new Day();
+                        readDay(reader, day);
+                        pendingDays.add(day);
+                    }
+                    dayIndex++;
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (messageCode != HttpURLConnection.HTTP_OK) {
+            return messageCode;
+        }
+        if (!haveList || !haveLocation) {
+            throw new JSONException("Forecast is missing the " + (haveList ? OWM_CITY : OWM_LIST));
+        }
+        return messageCode;
+    }
+
+    private void deliver(Listener listener, int dayIndex, Day day) {
+        listener.onDay(dayIndex, day.pressure, day.humidity, day.windSpeed, day.windDirection,
+                day.high, day.low, day.description, day.weatherId);
+    }
+
+    private void readCity(JsonReader reader, Listener listener) throws IOException, JSONException {
+        String cityName = null;
+        double lat = 0;
+        double lon = 0;
+        boolean haveCoord = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_CITY_NAME.equals(name)) {
+                cityName = reader.nextString();
+            } else if (OWM_COORD.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String coordName = reader.nextName();
+                    if (OWM_LATITUDE.equals(coordName)) {
+                        lat = reader.nextDouble();
+                    } else if (OWM_LONGITUDE.equals(coordName)) {
+                        lon = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                haveCoord = true;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (cityName == null || !haveCoord) {
+            throw new JSONException("Forecast city is missing its name or coordinates");
+        }
+        listener.onLocation(cityName, lat, lon);
+    }
+
+    private void readDay(JsonReader reader, Day day) throws IOException, JSONException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_PRESSURE.equals(name)) {
+                day.pressure = reader.nextDouble();
+            } else if (OWM_HUMIDITY.equals(name)) {
+                // Humidity is normally integral, but coerce like JSONObject.getInt would.
+                day.humidity = (int) reader.nextDouble();
+            } else if (OWM_WINDSPEED.equals(name)) {
+                day.windSpeed = reader.nextDouble();
+            } else if (OWM_WIND_DIRECTION.equals(name)) {
+                day.windDirection = reader.nextDouble();
+            } else if (OWM_TEMPERATURE.equals(name)) {
+                // Temperatures are in a child object called "temp".  Try not to name variables
+                // "temp" when working with temperature.  It confuses everybody.
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String tempName = reader.nextName();
+                    if (OWM_MAX.equals(tempName)) {
+                        day.high = reader.nextDouble();
+                    } else if (OWM_MIN.equals(tempName)) {
+                        day.low = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WEATHER.equals(name)) {
+                // Description is in a child array called "weather", which is 1 element long.
+                // That element also contains a weather code.
+                reader.beginArray();
+                boolean first = true;
+                while (reader.hasNext()) {
+                    if (!first) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    first = false;
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String weatherName = reader.nextName();
+                        if (OWM_DESCRIPTION.equals(weatherName)) {
+                            day.description = reader.nextString();
+                        } else if (OWM_WEATHER_ID.equals(weatherName)) {
+                            day.weatherId = reader.nextInt();
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (day.description == null) {
+            throw new JSONException("Forecast day is missing its weather description");
+        }
+    }
+}
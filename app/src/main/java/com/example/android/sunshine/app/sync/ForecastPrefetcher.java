@@ -0,0 +1,255 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Fetches the forecast of a location the user is still choosing, so that by the time the choice
+ * is made the forecast is already on the device and the list doesn't sit empty waiting for a
+ * sync.  Fetched forecasts are only kept in memory, keyed by location setting, until
+ * {@link #commit} stores the chosen one the way a sync stores it, through ForecastWriter, and lets
+ * ForecastChangeNotifier update the widgets, Muzei, the notification and the watch; the others
+ * are let go after CACHE_MILLIS.
+ * <p>
+ * Fetches and commits run one at a time on a background thread, in the order they were asked
+ * for, so a commit right after a prefetch of the same location finds the forecast in the cache.
+ */
+public class ForecastPrefetcher {
+
+    private static final String LOG_TAG = ForecastPrefetcher.class.getSimpleName();
+
+    // How long typing has to pause before the text is fetched.
+    static final long DEBOUNCE_MILLIS = 750;
+
+    // How long a prefetched forecast is good for, and how many are kept.
+    static final long CACHE_MILLIS = 10 * 60 * 1000;
+    static final int CACHE_SIZE = 4;
+
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+
+    private static class Entry {
+        final byte[] body;
+        final String eTag;
+        final String lastModified;
+        final long fetchedAt;
+
+        Entry(byte[] body, String eTag, String lastModified, long fetchedAt) {
+            this.body = body;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    private static ForecastPrefetcher sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final ForecastHttpClient mClient;
+    private final ForecastWriter mWriter;
+
+    // Least recently used first.  Guarded by itself.
+    private final LinkedHashMap<String, Entry> mCache =
+            new LinkedHashMap<String, Entry>(CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    private String mDebouncedLocation;
+    private final Runnable mDebouncedPrefetch = new Runnable() {
+        @Override
+        public void run() {
+            prefetch(mDebouncedLocation);
+        }
+    };
+
+    public static synchronized ForecastPrefetcher getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ForecastPrefetcher(context.getApplicationContext(),
+                    ForecastHttpClient.getInstance());
+        }
+        return sInstance;
+    }
+
+    ForecastPrefetcher(Context context, ForecastHttpClient client) {
+        mContext = context;
+        mHandler = new Handler(Looper.getMainLooper());
+        mClient = client;
+        mWriter = new ForecastWriter(context, new ForecastValidatorStore(context));
+    }
+
+    /**
+     * Prefetches {@code locationSetting} once it has stayed the same for DEBOUNCE_MILLIS, for
+     * text that is still being typed.  Call from the UI thread.
+     */
+    public void prefetchDebounced(String locationSetting) {
+        mHandler.removeCallbacks(mDebouncedPrefetch);
+        mDebouncedLocation = locationSetting;
+        mHandler.postDelayed(mDebouncedPrefetch, DEBOUNCE_MILLIS);
+    }
+
+    /**
+     * Starts fetching the forecast of a location setting, unless it's already cached.
+     */
+    public void prefetch(String locationSetting) {
+        prefetch(locationSetting, null, null);
+    }
+
+    /**
+     * Starts fetching the forecast of a place by its coordinates, caching it under
+     * {@code locationSetting}, as for a place from the Place Picker.
+     */
+    public void prefetch(final String locationSetting, final String lat, final String lon) {
+        mHandler.removeCallbacks(mDebouncedPrefetch);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                URL url = SunshineSyncAdapter.buildForecastUrl(lat == null ? locationSetting : null,
+                        lat, lon);
+                if (url != null) {
+                    prefetchNow(url, locationSetting);
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts fetching the forecast at {@code url}, caching it under {@code locationSetting}.
+     */
+    void prefetch(final URL url, final String locationSetting) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                prefetchNow(url, locationSetting);
+            }
+        });
+    }
+
+    /**
+     * Stores the prefetched forecast of {@code locationSetting}, now the preferred location, if
+     * there is one, as a sync would.  Any prefetch of it still running is waited for.  If there
+     * is nothing to store, the sync the caller asks for fetches the forecast as usual.
+     */
+    public void commit(final String locationSetting) {
+        mHandler.removeCallbacks(mDebouncedPrefetch);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Entry entry = getFresh(locationSetting);
+                if (entry == null) {
+                    Log.d(LOG_TAG, "Nothing prefetched for " + locationSetting);
+                    return;
+                }
+                synchronized (mCache) {
+                    mCache.remove(locationSetting);
+                }
+                Log.d(LOG_TAG, "Storing prefetched forecast for " + locationSetting);
+                store(locationSetting, ForecastFetcher.Response.fromCache(entry.body,
+                        entry.eTag, entry.lastModified));
+            }
+        });
+    }
+
+    // Called on the executor's thread only.
+    private void store(String locationSetting, ForecastFetcher.Response response) {
+        SyncMetrics.Recorder recorder = new SyncMetrics.Recorder();
+        LocationSyncEngine.Outcome outcome;
+        try {
+            outcome = mWriter.write(response, locationSetting, recorder);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error ", e);
+            outcome = new LocationSyncEngine.Outcome(
+                    SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN, false);
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+            outcome = new LocationSyncEngine.Outcome(
+                    SunshineSyncAdapter.LOCATION_STATUS_SERVER_INVALID, false);
+        } finally {
+            response.close();
+        }
+        SunshineSyncAdapter.onPreferredLocationSynced(mContext, locationSetting, outcome,
+                recorder);
+    }
+
+    private Entry getFresh(String locationSetting) {
+        synchronized (mCache) {
+            Entry entry = mCache.get(locationSetting);
+            if (entry != null && SystemClock.elapsedRealtime() - entry.fetchedAt >= CACHE_MILLIS) {
+                mCache.remove(locationSetting);
+                return null;
+            }
+            return entry;
+        }
+    }
+
+    // Called on the executor's thread only.
+    private void prefetchNow(URL url, String locationSetting) {
+        if (getFresh(locationSetting) != null) {
+            return;
+        }
+        // Don't add to the load of a server that is already struggling.
+        if (new ForecastCircuitBreaker(mContext).getState() == ForecastCircuitBreaker.STATE_OPEN) {
+            return;
+        }
+        fetch(url, locationSetting);
+    }
+
+    private void fetch(URL url, String locationSetting) {
+        HttpURLConnection connection = null;
+        InputStream body = null;
+        try {
+            // Not conditional: whatever the validators say, they describe what the database
+            // holds, and this forecast may not end up there.
+            connection = mClient.open(url);
+            connection.connect();
+            body = mClient.openBody(connection);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int count;
+            while ((count = body.read(buffer)) != -1) {
+                bytes.write(buffer, 0, count);
+            }
+            Entry entry = new Entry(bytes.toByteArray(),
+                    connection.getHeaderField(HEADER_ETAG),
+                    connection.getHeaderField(HEADER_LAST_MODIFIED),
+                    SystemClock.elapsedRealtime());
+            synchronized (mCache) {
+                mCache.put(locationSetting, entry);
+            }
+            Log.d(LOG_TAG, "Prefetched " + locationSetting + ", " + entry.body.length + " bytes");
+        } catch (IOException e) {
+            // Only speculative; the sync will try again if this location is chosen.
+            Log.d(LOG_TAG, "Prefetch of " + locationSetting + " failed: " + e);
+            if (connection != null && body == null) {
+                connection.disconnect();
+            }
+        } finally {
+            if (body != null) {
+                try {
+                    body.close();
+                } catch (IOException e) {
+                    // The connection is dropped rather than reused; nothing else to do.
+                }
+            }
+        }
+    }
+}
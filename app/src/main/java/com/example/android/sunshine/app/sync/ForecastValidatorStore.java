@@ -0,0 +1,73 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Remembers, per location setting, the HTTP validators (ETag and Last-Modified) and a hash of the
+ * content of the last forecast that was written to the database, so the next sync can ask the
+ * server for changes only and skip the write when nothing changed.
+ */
+public class ForecastValidatorStore {
+
+    /**
+     * Held while the forecast stored for a location and its validators are checked and changed
+     * together, by a sync writing what it fetched and by a pushed delta, so that neither one
+     * writes over what the other stored in between its check and its write.
+     */
+    static final Object STORE_LOCK = new Object();
+
+    private static final String PREFS_NAME = "forecast_validators";
+
+    private static final String KEY_ETAG = "etag:";
+    private static final String KEY_LAST_MODIFIED = "last_modified:";
+    private static final String KEY_CONTENT_HASH = "content_hash:";
+
+    private final SharedPreferences mPrefs;
+
+    public ForecastValidatorStore(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    public String getETag(String locationSetting) {
+        return mPrefs.getString(KEY_ETAG + locationSetting, null);
+    }
+
+    public String getLastModified(String locationSetting) {
+        return mPrefs.getString(KEY_LAST_MODIFIED + locationSetting, null);
+    }
+
+    public String getContentHash(String locationSetting) {
+        return mPrefs.getString(KEY_CONTENT_HASH + locationSetting, null);
+    }
+
+    /**
+     * Records the validators for the forecast now stored for {@code locationSetting}.  Any of the
+     * values may be null, in which case the previous value is forgotten.  Like the location
+     * status, this commits synchronously and must not be called from the UI thread.
+     */
+    public void save(String locationSetting, String eTag, String lastModified,
+                     String contentHash) {
+        SharedPreferences.Editor editor = mPrefs.edit();
+        putOrRemove(editor, KEY_ETAG + locationSetting, eTag);
+        putOrRemove(editor, KEY_LAST_MODIFIED + locationSetting, lastModified);
+        putOrRemove(editor, KEY_CONTENT_HASH + locationSetting, contentHash);
+        editor.commit();
+    }
+
+    /**
+     * Forgets everything known about {@code locationSetting}, forcing the next sync to download
+     * and write the full forecast.
+     */
+    public void clear(String locationSetting) {
+        save(locationSetting, null, null, null);
+    }
+
+    private static void putOrRemove(SharedPreferences.Editor editor, String key, String value) {
+        if (value == null) {
+            editor.remove(key);
+        } else {
+            editor.putString(key, value);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.os.RemoteException;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.Vector;
+
+/**
+ * Stores fetched forecasts in the database, for the sync adapter and for ForecastPrefetcher,
+ * which stores forecasts outside of a sync.  Doesn't touch the location status or anything
+ * outside the database; that is up to the caller.
+ */
+class ForecastWriter {
+
+    private static final String LOG_TAG = ForecastWriter.class.getSimpleName();
+
+    private final Context mContext;
+    private final ForecastValidatorStore mValidators;
+
+    ForecastWriter(Context context, ForecastValidatorStore validators) {
+        mContext = context;
+        mValidators = validators;
+    }
+
+    /**
+     * Read the forecast in JSON Format off the response body and pull out the data we need,
+     * one day at a time, so that the whole response never has to be held in memory.  If the
+     * forecast is the same one we stored last time, the database is left alone.
+     */
+    LocationSyncEngine.Outcome write(ForecastFetcher.Response response, String locationSetting,
+                                     SyncMetrics.Recorder recorder)
+            throws IOException, JSONException {
+
+        // OWM returns daily forecasts based upon the local time of the city that is being
+        // asked for, which means that we need to know the GMT offset to translate this data
+        // properly.
+
+        // Since this data is also sent in-order and the first day is always the
+        // current day, we're going to take advantage of that to get a nice
+        // normalized UTC date for all of our weather.
+
+        Time dayTime = new Time();
+        dayTime.setToNow();
+
+        // we start at the day returned by local time. Otherwise this is a mess.
+        final int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+
+        // now we work exclusively in UTC
+        final Time utcTime = new Time();
+
+        // Insert the new weather information into the database
+        final Vector<ContentValues> cVVector = new Vector<ContentValues>(14);
+
+        // The city usually arrives ahead of the status code, so it's only held on to here and
+        // added to the database once we know the forecast is real and has changed.
+        final String[] cityName = new String[1];
+        final double[] cityCoord = new double[2];
+
+        long parseStart = System.nanoTime();
+        int messageCode = new ForecastJsonParser().parse(response.getBody(),
+                new ForecastJsonParser.Listener() {
+                    @Override
+                    public void onLocation(String name, double lat, double lon) {
+                        cityName[0] = name;
+                        cityCoord[0] = lat;
+                        cityCoord[1] = lon;
+                    }
+
+                    @Override
+                    public void onDay(int dayIndex, double pressure, int humidity,
+                                      double windSpeed, double windDirection, double high,
+                                      double low, String description, int weatherId) {
+                        // Cheating to convert this to UTC time, which is what we want anyhow
+                        long dateTime = utcTime.setJulianDay(julianStartDay + dayIndex);
+
+                        ContentValues weatherValues = new ContentValues();
+
+                        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
+                        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
+                        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
+                        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
+                        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
+                        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
+                        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
+                        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, description);
+                        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
+
+                        cVVector.add(weatherValues);
+                    }
+                });
+
+        // The parser reads the body as it arrives, so what it spent waiting on reads was the
+        // download and the rest was parsing.
+        long readNanos = response.getReadNanos();
+        recorder.addStage(SyncMetrics.STAGE_DOWNLOAD, readNanos);
+        recorder.addStage(SyncMetrics.STAGE_PARSE, System.nanoTime() - parseStart - readNanos);
+
+        // do we have an error?
+        switch (messageCode) {
+            case HttpURLConnection.HTTP_OK:
+                break;
+            case HttpURLConnection.HTTP_NOT_FOUND:
+                return new LocationSyncEngine.Outcome(SunshineSyncAdapter.LOCATION_STATUS_INVALID,
+                        false);
+            default:
+                return new LocationSyncEngine.Outcome(
+                        SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN, false);
+        }
+
+        // The rows are dated from today, so the same body on a different day is a different
+        // forecast as far as the database is concerned.
+        String contentHash = response.getContentHash() + ":" + julianStartDay;
+        recorder.addBytes(0, response.getBytesRead());
+        // A delta pushed meanwhile compares and changes the same validators and rows; see
+        // ForecastValidatorStore.STORE_LOCK.
+        synchronized (ForecastValidatorStore.STORE_LOCK) {
+            if (contentHash.equals(mValidators.getContentHash(locationSetting))
+                    && hasCurrentForecast(locationSetting)) {
+                mValidators.save(locationSetting, response.getETag(), response.getLastModified(),
+                        contentHash);
+                Log.d(LOG_TAG, "Sync Complete. Forecast unchanged");
+                return new LocationSyncEngine.Outcome(SunshineSyncAdapter.LOCATION_STATUS_OK,
+                        false);
+            }
+
+            // add to database
+            if (cVVector.size() > 0) {
+                try {
+                    long start = System.nanoTime();
+                    mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY,
+                            SunshineSyncAdapter.buildForecastOperations(locationSetting, cityName[0], cityCoord[0],
+                                    cityCoord[1], cVVector));
+                    recorder.endStage(SyncMetrics.STAGE_DB_WRITE, start);
+                    recorder.addRows(cVVector.size());
+                } catch (RemoteException | OperationApplicationException e) {
+                    // Nothing was written, so leave the validators alone and try again next time.
+                    Log.e(LOG_TAG, "Error storing forecast", e);
+                    return new LocationSyncEngine.Outcome(SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN,
+                            false);
+                }
+            }
+            // Only remember the validators once the forecast they describe is safely stored.
+            mValidators.save(locationSetting, response.getETag(), response.getLastModified(),
+                    contentHash);
+            Log.d(LOG_TAG, "Sync Complete. " + cVVector.size() + " Inserted");
+            return new LocationSyncEngine.Outcome(SunshineSyncAdapter.LOCATION_STATUS_OK,
+                    cVVector.size() > 0);
+        }
+    }
+
+    /**
+     * @return whether the database holds a forecast for {@code locationSetting} from today on.
+     */
+    boolean hasCurrentForecast(String locationSetting) {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
+                        locationSetting, System.currentTimeMillis()),
+                new String[]{WeatherContract.WeatherEntry.TABLE_NAME + "." +
+                        WeatherContract.WeatherEntry._ID},
+                null, null, null);
+        if (cursor == null) {
+            return false;
+        }
+        boolean hasForecast = cursor.moveToFirst();
+        cursor.close();
+        return hasForecast;
+    }
+}
@@ -0,0 +1,165 @@
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Refreshes the forecasts of several locations at once.  Each location is synced on a thread of
+ * a small pool, and no more than a few requests go to the same host at a time, so ten cities
+ * take about as long as the slowest of them rather than the sum of all of them.
+ */
+public class LocationSyncEngine {
+
+    private static final String LOG_TAG = LocationSyncEngine.class.getSimpleName();
+
+    // Forecast requests are mostly waiting on the network, so a few threads are plenty even on
+    // a single core device.
+    static final int DEFAULT_THREADS = 4;
+
+    // Fewer than the threads: every location is fetched from OpenWeatherMap, which doesn't take
+    // kindly to one client opening many connections at once, so the rest of the threads wait
+    // their turn rather than add to the burst.
+    static final int DEFAULT_CONNECTIONS_PER_HOST = 2;
+
+    // Idle threads are let go, since syncs are hours apart.
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * Fetches and stores the forecast of one location.  Called from the engine's threads,
+     * several at a time, so implementations must be thread safe.
+     */
+    public interface LocationSyncer {
+        Outcome sync(URL url, String locationSetting);
+    }
+
+    /**
+     * How the sync of one location went.
+     */
+    public static class Outcome {
+        @SunshineSyncAdapter.LocationStatus
+        public final int status;
+        // Whether anything was written to the database.
+        public final boolean changed;
+        String locationSetting;
+        long latencyMillis;
+
+        public Outcome(@SunshineSyncAdapter.LocationStatus int status, boolean changed) {
+            this.status = status;
+            this.changed = changed;
+        }
+
+        public String getLocationSetting() {
+            return locationSetting;
+        }
+
+        /**
+         * @return how long the location took, from the moment a thread picked it up.
+         */
+        public long getLatencyMillis() {
+            return latencyMillis;
+        }
+
+        @Override
+        public String toString() {
+            return locationSetting + ": status " + status + (changed ? ", changed" : "")
+                    + " in " + latencyMillis + " ms";
+        }
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private final int mConnectionsPerHost;
+    private final Map<String, Semaphore> mHostPermits = new HashMap<String, Semaphore>();
+
+    public LocationSyncEngine() {
+        this(DEFAULT_THREADS, DEFAULT_CONNECTIONS_PER_HOST);
+    }
+
+    LocationSyncEngine(int threads, int connectionsPerHost) {
+        mExecutor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+        mConnectionsPerHost = connectionsPerHost;
+    }
+
+    /**
+     * Syncs every location in {@code urls}, a map from location setting to forecast URL, and
+     * waits for all of them.  If the calling thread is interrupted, which is how a sync is
+     * cancelled, the locations still running are interrupted too and left out of the result.
+     *
+     * @return the outcome of each location, in the order of {@code urls}
+     */
+    public List<Outcome> syncAll(Map<String, URL> urls, final LocationSyncer syncer) {
+        Map<String, Future<Outcome>> futures = new LinkedHashMap<String, Future<Outcome>>();
+        for (final Map.Entry<String, URL> entry : urls.entrySet()) {
+            futures.put(entry.getKey(), mExecutor.submit(new Callable<Outcome>() {
+                @Override
+                public Outcome call() throws Exception {
+                    return syncOne(entry.getValue(), entry.getKey(), syncer);
+                }
+            }));
+        }
+
+        List<Outcome> outcomes = new ArrayList<Outcome>(futures.size());
+        try {
+            for (Map.Entry<String, Future<Outcome>> entry : futures.entrySet()) {
+                try {
+                    outcomes.add(entry.getValue().get());
+                } catch (ExecutionException e) {
+                    Log.e(LOG_TAG, "Error syncing " + entry.getKey(), e.getCause());
+                    Outcome outcome = new Outcome(SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN,
+                            false);
+                    outcome.locationSetting = entry.getKey();
+                    outcomes.add(outcome);
+                }
+            }
+        } catch (InterruptedException e) {
+            for (Future<Outcome> future : futures.values()) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+        }
+        return outcomes;
+    }
+
+    private Outcome syncOne(URL url, String locationSetting, LocationSyncer syncer)
+            throws InterruptedException {
+        Semaphore permits = getHostPermits(url.getHost());
+        long start = SystemClock.elapsedRealtime();
+        permits.acquire();
+        Outcome outcome;
+        try {
+            outcome = syncer.sync(url, locationSetting);
+        } finally {
+            permits.release();
+        }
+        outcome.locationSetting = locationSetting;
+        outcome.latencyMillis = SystemClock.elapsedRealtime() - start;
+        Log.d(LOG_TAG, "Synced " + outcome);
+        return outcome;
+    }
+
+    private Semaphore getHostPermits(String host) {
+        synchronized (mHostPermits) {
+            Semaphore permits = mHostPermits.get(host);
+            if (permits == null) {
+                permits = new Semaphore(mConnectionsPerHost);
+                mHostPermits.put(host, permits);
+            }
+            return permits;
+        }
+    }
+}
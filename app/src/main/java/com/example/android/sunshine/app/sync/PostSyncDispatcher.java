@@ -0,0 +1,132 @@
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs what has to happen after a forecast changed, updating the widgets, Muzei, the watch and
+ * the notification, side by side on a small pool rather than one after the other on the sync
+ * thread.  Each consumer has a timeout of its own, after which it is interrupted and the sync
+ * stops waiting for it, and one that throws doesn't keep the others from running, so the sync
+ * adapter holds its wakelock for about as long as the slowest consumer is allowed, at most.
+ */
+public class PostSyncDispatcher {
+
+    private static final String LOG_TAG = PostSyncDispatcher.class.getSimpleName();
+
+    // One thread per consumer the sync adapter has.
+    static final int DEFAULT_THREADS = 4;
+
+    // Idle threads are let go, since syncs are hours apart.
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * Something to run after a sync, and how long the sync will wait for it.
+     */
+    public static class Consumer {
+        final String name;
+        final long timeoutMillis;
+        final Runnable runnable;
+
+        public Consumer(String name, long timeoutMillis, Runnable runnable) {
+            this.name = name;
+            this.timeoutMillis = timeoutMillis;
+            this.runnable = runnable;
+        }
+    }
+
+    /**
+     * How a consumer went.
+     */
+    public static class Result {
+        public static final int STATUS_DONE = 0;
+        public static final int STATUS_FAILED = 1;
+        public static final int STATUS_TIMED_OUT = 2;
+
+        public final String name;
+        public final int status;
+        // From dispatch to the consumer finishing, or to giving up on it.
+        public final long elapsedMillis;
+
+        Result(String name, int status, long elapsedMillis) {
+            this.name = name;
+            this.status = status;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            String[] statuses = {"done", "failed", "timed out"};
+            return name + " " + statuses[status] + " in " + elapsedMillis + " ms";
+        }
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+
+    public PostSyncDispatcher() {
+        this(DEFAULT_THREADS);
+    }
+
+    PostSyncDispatcher(int threads) {
+        mExecutor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Starts every consumer and waits until each has finished or run out of time.  If the
+     * calling thread is interrupted, the consumers still running are interrupted too and left
+     * out of the result.
+     *
+     * @return how each consumer went, in the order of {@code consumers}
+     */
+    public List<Result> dispatch(List<Consumer> consumers) {
+        long start = SystemClock.elapsedRealtime();
+        List<Future<?>> futures = new ArrayList<Future<?>>(consumers.size());
+        for (Consumer consumer : consumers) {
+            futures.add(mExecutor.submit(consumer.runnable));
+        }
+
+        List<Result> results = new ArrayList<Result>(consumers.size());
+        try {
+            for (int i = 0; i < consumers.size(); i++) {
+                Consumer consumer = consumers.get(i);
+                Future<?> future = futures.get(i);
+                // Timeouts count from the dispatch, since all of the consumers started then.
+                long remaining = start + consumer.timeoutMillis - SystemClock.elapsedRealtime();
+                int status;
+                try {
+                    future.get(Math.max(0, remaining), TimeUnit.MILLISECONDS);
+                    status = Result.STATUS_DONE;
+                } catch (ExecutionException e) {
+                    Log.e(LOG_TAG, "Error in " + consumer.name, e.getCause());
+                    status = Result.STATUS_FAILED;
+                } catch (TimeoutException e) {
+                    future.cancel(true);
+                    status = Result.STATUS_TIMED_OUT;
+                }
+                Result result = new Result(consumer.name, status,
+                        SystemClock.elapsedRealtime() - start);
+                if (status != Result.STATUS_DONE) {
+                    Log.w(LOG_TAG, result.toString());
+                }
+                results.add(result);
+            }
+        } catch (InterruptedException e) {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+        }
+        return results;
+    }
+}
@@ -2,95 +2,53 @@ package com.example.android.sunshine.app.sync;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
-import android.annotation.SuppressLint;
-import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
-import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SyncRequest;
 import android.content.SyncResult;
-import android.content.res.Resources;
 import android.database.Cursor;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.support.annotation.IntDef;
-import android.support.v4.app.NotificationCompat;
-import android.support.v4.app.TaskStackBuilder;
-import android.text.format.Time;
 import android.util.Log;
 
-import com.bumptech.glide.Glide;
 import com.example.android.sunshine.app.BuildConfig;
-import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.R;
 import com.example.android.sunshine.app.Utility;
 import com.example.android.sunshine.app.data.WeatherContract;
-import com.example.android.sunshine.app.muzei.WeatherMuzeiSource;
-import com.google.android.gms.common.ConnectionResult;
-import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.wearable.PutDataMapRequest;
-import com.google.android.gms.wearable.PutDataRequest;
-import com.google.android.gms.wearable.Wearable;
-
-import org.json.JSONArray;
+
 import org.json.JSONException;
-import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
-import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.Vector;
-import java.util.concurrent.ExecutionException;
-
-public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
-        GoogleApiClient.ConnectionCallbacks,
-        GoogleApiClient.OnConnectionFailedListener {
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
-    public static final String HIGH_TEMP = "HIGH_TEMP";
-    public static final String LOW_TEMP = "LOW_TEMP";
-    public static final String WEATHER_ID = "WEATHER_ID";
-    public static final String SIMPLE_WATCH_PATH = "/simple_watch_face";
-    private GoogleApiClient googleApiClient;
+public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
 
     public final String LOG_TAG = SunshineSyncAdapter.class.getSimpleName();
 
     public static final String ACTION_DATA_UPDATED =
             "com.example.android.sunshine.app.ACTION_DATA_UPDATED";
 
-    // Interval at which to sync with the weather, in seconds.
+    // Interval at which to sync with the weather, in seconds, until AdaptiveSyncScheduler has
+    // seen enough syncs to pick its own.
     // 60 seconds (1 minute) * 180 = 3 hours
     public static final int SYNC_INTERVAL = 60 * 180;
     public static final int SYNC_FLEXTIME = SYNC_INTERVAL / 3;
-    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
-    private static final int WEATHER_NOTIFICATION_ID = 3004;
-
-    private static final String[] NOTIFY_WEATHER_PROJECTION = new String[]{
-            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
-            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC
-    };
-
-    // these indices must match the projection
-    private static final int INDEX_WEATHER_ID = 0;
-    private static final int INDEX_MAX_TEMP = 1;
-    private static final int INDEX_MIN_TEMP = 2;
-    private static final int INDEX_SHORT_DESC = 3;
 
     @Retention(RetentionPolicy.SOURCE)
     @IntDef({LOCATION_STATUS_OK, LOCATION_STATUS_SERVER_DOWN, LOCATION_STATUS_SERVER_INVALID, LOCATION_STATUS_UNKNOWN, LOCATION_STATUS_INVALID})
@@ -103,42 +61,183 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
     public static final int LOCATION_STATUS_UNKNOWN = 3;
     public static final int LOCATION_STATUS_INVALID = 4;
 
+    // The most locations a sync refreshes, the preferred one included.
+    static final int MAX_SYNCED_LOCATIONS = 10;
+
+    private static final String[] SAVED_LOCATION_PROJECTION = new String[]{
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG
+    };
+
+    // these indices must match the projection
+    private static final int INDEX_SAVED_LOCATION_SETTING = 0;
+    private static final int INDEX_SAVED_COORD_LAT = 1;
+    private static final int INDEX_SAVED_COORD_LONG = 2;
+
+    private final ForecastValidatorStore mValidators;
+    private final ForecastFetcher mFetcher;
+    private final ForecastWriter mWriter;
+    private final LocationSyncEngine mEngine;
+    private final AdaptiveSyncScheduler mScheduler;
+    private final ForecastCircuitBreaker mCircuit;
+
+    // Times the sync in progress.  Syncs started outside of onPerformSync (e.g. from tests)
+    // record into one that is never stored.
+    private volatile SyncMetrics.Recorder mRecorder = new SyncMetrics.Recorder();
+
     public SunshineSyncAdapter(Context context, boolean autoInitialize) {
         super(context, autoInitialize);
+        mValidators = new ForecastValidatorStore(context);
+        mFetcher = new ForecastFetcher(mValidators);
+        mWriter = new ForecastWriter(context, mValidators);
+        mEngine = new LocationSyncEngine();
+        mScheduler = new AdaptiveSyncScheduler(context);
+        mCircuit = new ForecastCircuitBreaker(context);
     }
 
     @Override
     public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
         Log.d(LOG_TAG, "Starting sync");
-
+        mRecorder = new SyncMetrics.Recorder();
+        long wireBytesBefore = ForecastHttpClient.getInstance().getStats().bytesOnWire;
 
         // We no longer need just the location String, but also potentially the latitude and
         // longitude, in case we are syncing based on a new Place Picker API result.
         Context context = getContext();
         String locationQuery = Utility.getPreferredLocation(context);
-        String locationLatitude = String.valueOf(Utility.getLocationLatitude(context));
-        String locationLongitude = String.valueOf(Utility.getLocationLongitude(context));
-
-        googleApiClient = new GoogleApiClient.Builder(context)
-                .addConnectionCallbacks(this)
-                .addOnConnectionFailedListener(this)
-                .addApi(Wearable.API)
-                .build();
-
-        if (googleApiClient != null) {
-            if (!googleApiClient.isConnecting() && !googleApiClient.isConnected()) {
-                googleApiClient.connect();
+
+        // Instead of always building the query based off of the location string, we want to
+        // potentially build a query using a lat/lon value. This will be the case when we are
+        // syncing based off of a new location from the Place Picker API. So we need to check
+        // if we have a lat/lon to work with, and use those when we do. Otherwise, the weather
+        // service may not understand the location address provided by the Place Picker API
+        // and the user could end up with no weather! The horror!
+        URL url = Utility.isLocationLatLonAvailable(context)
+                ? buildForecastUrl(null, String.valueOf(Utility.getLocationLatitude(context)),
+                        String.valueOf(Utility.getLocationLongitude(context)))
+                : buildForecastUrl(locationQuery, null, null);
+        if (url == null) {
+            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
+            SyncRequestCoalescer.getInstance(context).onSyncFinished(locationQuery, false);
+            recordSync("no_url");
+            return;
+        }
+
+        // While the server is failing, stay away until the breaker's delay is up, and tell the
+        // sync manager to hold back every other sync until then too.
+        if (!mCircuit.allowSync()) {
+            Log.d(LOG_TAG, "Skipping sync, forecast server circuit open: " + mCircuit);
+            syncResult.delayUntil = mCircuit.getRetryAt() / 1000;
+            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
+            SyncRequestCoalescer.getInstance(context).onSyncFinished(locationQuery, false);
+            recordSync("circuit_open");
+            return;
+        }
+        boolean probe = mCircuit.getState() == ForecastCircuitBreaker.STATE_HALF_OPEN;
+
+        // The preferred location comes first, then the other locations the user has had
+        // forecasts for, all fetched side by side.  A probe of a server that was down only
+        // asks for the preferred one.
+        Map<String, URL> urls = new LinkedHashMap<String, URL>();
+        urls.put(locationQuery, url);
+        if (!probe) {
+            addSavedLocationUrls(urls);
+        }
+        mRecorder.setLocations(urls.size());
+
+        List<LocationSyncEngine.Outcome> outcomes = mEngine.syncAll(urls,
+                new LocationSyncEngine.LocationSyncer() {
+                    @Override
+                    public LocationSyncEngine.Outcome sync(URL url, String locationSetting) {
+                        return syncLocation(url, locationSetting);
+                    }
+                });
+
+        boolean synced = false;
+        boolean preferredSynced = false;
+        boolean preferredChanged = false;
+        boolean serverAnswered = false;
+        boolean serverFailed = false;
+        String result = "cancelled";
+        for (LocationSyncEngine.Outcome outcome : outcomes) {
+            mRecorder.addLocation(outcome.getLatencyMillis() * 1000000L);
+            if (locationQuery.equals(outcome.getLocationSetting())) {
+                onPreferredLocationSynced(context, locationQuery, outcome, mRecorder);
+                preferredSynced = true;
+                synced = outcome.status == LOCATION_STATUS_OK;
+                preferredChanged = outcome.changed;
+                result = getLocationStatusName(outcome.status);
+            }
+            // A location the server doesn't know is still the server working.
+            serverAnswered |= outcome.status == LOCATION_STATUS_OK
+                    || outcome.status == LOCATION_STATUS_INVALID;
+            serverFailed |= outcome.status == LOCATION_STATUS_SERVER_DOWN
+                    || outcome.status == LOCATION_STATUS_SERVER_INVALID;
+        }
+        if (serverAnswered) {
+            mCircuit.onSuccess();
+        } else if (serverFailed) {
+            mCircuit.onFailure();
+            if (mCircuit.getState() == ForecastCircuitBreaker.STATE_OPEN) {
+                Log.d(LOG_TAG, "Forecast server circuit opened: " + mCircuit);
+                syncResult.delayUntil = mCircuit.getRetryAt() / 1000;
             }
         }
+        if (!preferredSynced) {
+            // Cancelled before the preferred location got its turn.
+            SyncRequestCoalescer.getInstance(context).onSyncFinished(locationQuery, false);
+        }
+        ForecastHttpClient.Stats networkStats = ForecastHttpClient.getInstance().getStats();
+        Log.d(LOG_TAG, "Network: " + networkStats);
+        // Process wide, so a fetch made outside of this sync meanwhile would be counted too.
+        mRecorder.addBytes(networkStats.bytesOnWire - wireBytesBefore, 0);
+
+        // Only the periodic syncs teach the scheduler anything; a manual refresh says more about
+        // the user than about the weather.  It learns from the preferred location alone: with
+        // several saved locations one of them changes nearly every time, which would keep the
+        // interval from ever stretching.
+        if (synced && !extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, false)) {
+            if (mScheduler.onSyncFinished(preferredChanged,
+                    AdaptiveSyncScheduler.readDeviceState(context))) {
+                configurePeriodicSync(context, mScheduler.getInterval(), mScheduler.getFlex());
+            }
+            Log.d(LOG_TAG, "Schedule: " + mScheduler.getStats());
+        }
+        recordSync(result);
+    }
 
-        // These two need to be declared outside the try/catch
-        // so that they can be closed in the finally block.
-        HttpURLConnection urlConnection = null;
-        BufferedReader reader = null;
+    /**
+     * Stores the metrics of the sync that is ending.
+     */
+    private void recordSync(String result) {
+        SyncMetrics.Record record = mRecorder.finish(SyncMetrics.KIND_SYNC, result);
+        SyncMetricsStore.getInstance(getContext()).add(record);
+        Log.d(LOG_TAG, "Metrics: " + record);
+    }
 
-        // Will contain the raw JSON response as a string.
-        String forecastJsonStr = null;
+    private static String getLocationStatusName(@LocationStatus int status) {
+        switch (status) {
+            case LOCATION_STATUS_OK:
+                return "ok";
+            case LOCATION_STATUS_SERVER_DOWN:
+                return "server_down";
+            case LOCATION_STATUS_SERVER_INVALID:
+                return "server_invalid";
+            case LOCATION_STATUS_INVALID:
+                return "invalid";
+            default:
+                return "unknown";
+        }
+    }
 
+    /**
+     * Builds the OpenWeatherMap forecast URL for a location, by its location setting or, if
+     * that is null, by its coordinates.
+     *
+     * @return the URL, or null if one couldn't be built
+     */
+    static URL buildForecastUrl(String locationSetting, String lat, String lon) {
         String format = "json";
         String units = "metric";
         int numDays = 14;
@@ -159,17 +258,11 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
 
             Uri.Builder uriBuilder = Uri.parse(FORECAST_BASE_URL).buildUpon();
 
-            // Instead of always building the query based off of the location string, we want to
-            // potentially build a query using a lat/lon value. This will be the case when we are
-            // syncing based off of a new location from the Place Picker API. So we need to check
-            // if we have a lat/lon to work with, and use those when we do. Otherwise, the weather
-            // service may not understand the location address provided by the Place Picker API
-            // and the user could end up with no weather! The horror!
-            if (Utility.isLocationLatLonAvailable(context)) {
-                uriBuilder.appendQueryParameter(LAT_PARAM, locationLatitude)
-                        .appendQueryParameter(LON_PARAM, locationLongitude);
+            if (locationSetting == null) {
+                uriBuilder.appendQueryParameter(LAT_PARAM, lat)
+                        .appendQueryParameter(LON_PARAM, lon);
             } else {
-                uriBuilder.appendQueryParameter(QUERY_PARAM, locationQuery);
+                uriBuilder.appendQueryParameter(QUERY_PARAM, locationSetting);
             }
 
             Uri builtUri = uriBuilder.appendQueryParameter(FORMAT_PARAM, format)
@@ -178,465 +271,165 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
                     .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
                     .build();
 
-            URL url = new URL(builtUri.toString());
-
-            // Create the request to OpenWeatherMap, and open the connection
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.connect();
-
-            // Read the input stream into a String
-            InputStream inputStream = urlConnection.getInputStream();
-            StringBuffer buffer = new StringBuffer();
-            if (inputStream == null) {
-                // Nothing to do.
-                return;
-            }
-            reader = new BufferedReader(new InputStreamReader(inputStream));
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Since it's JSON, adding a newline isn't necessary (it won't affect parsing)
-                // But it does make debugging a *lot* easier if you print out the completed
-                // buffer for debugging.
-                buffer.append(line + "\n");
-            }
+            return new URL(builtUri.toString());
+        } catch (MalformedURLException e) {
+            Log.e(SunshineSyncAdapter.class.getSimpleName(), "Error ", e);
+            return null;
+        }
+    }
 
-            if (buffer.length() == 0) {
-                // Stream was empty.  No point in parsing.
-                setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                return;
-            }
-            forecastJsonStr = buffer.toString();
-            getWeatherDataFromJson(forecastJsonStr, locationQuery);
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "Error ", e);
-            // If the code didn't successfully get the weather data, there's no point in attempting
-            // to parse it.
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
-        } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (final IOException e) {
-                    Log.e(LOG_TAG, "Error closing stream", e);
+    /**
+     * Adds the forecast URL of every location the user saved, newest location row first, up
+     * to MAX_SYNCED_LOCATIONS in all.  Only locations the location table has a row for can be
+     * synced this way, which a saved location always has from when it was the preferred one.
+     * These are requested by the coordinates OpenWeatherMap returned for them, which works
+     * whatever the location setting looks like.
+     */
+    private void addSavedLocationUrls(Map<String, URL> urls) {
+        Set<String> saved = Utility.getSavedLocations(getContext());
+        saved.removeAll(urls.keySet());
+        if (saved.isEmpty()) {
+            return;
+        }
+        StringBuilder selection = new StringBuilder(
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " IN (");
+        for (int i = 0; i < saved.size(); i++) {
+            selection.append(i == 0 ? "?" : ", ?");
+        }
+        selection.append(')');
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                SAVED_LOCATION_PROJECTION,
+                selection.toString(),
+                saved.toArray(new String[saved.size()]),
+                WeatherContract.LocationEntry._ID + " DESC");
+        if (cursor == null) {
+            return;
+        }
+        try {
+            while (urls.size() < MAX_SYNCED_LOCATIONS && cursor.moveToNext()) {
+                String locationSetting = cursor.getString(INDEX_SAVED_LOCATION_SETTING);
+                if (urls.containsKey(locationSetting)) {
+                    continue;
+                }
+                URL url = buildForecastUrl(null,
+                        String.valueOf(cursor.getDouble(INDEX_SAVED_COORD_LAT)),
+                        String.valueOf(cursor.getDouble(INDEX_SAVED_COORD_LONG)));
+                if (url != null) {
+                    urls.put(locationSetting, url);
                 }
             }
+        } finally {
+            cursor.close();
         }
-        return;
     }
 
-    private void onStop() {
-        if (googleApiClient != null && googleApiClient.isConnected())
-            googleApiClient.disconnect();
+    /**
+     * Fetches the forecast at {@code url} and stores it for {@code locationSetting}.  The request
+     * is conditional on what was fetched last time, and nothing is written or broadcast if the
+     * forecast turns out to be unchanged.
+     */
+    void syncForecast(URL url, String locationSetting) {
+        onPreferredLocationSynced(getContext(), locationSetting,
+                syncLocation(url, locationSetting), mRecorder);
     }
 
     /**
-     * Take the String representing the complete forecast in JSON Format and
-     * pull out the data we need to construct the Strings needed for the wireframes.
-     * <p>
-     * Fortunately parsing is easy:  constructor takes the JSON string and converts it
-     * into an Object hierarchy for us.
+     * Records the location status of the preferred location and, if its forecast changed, lets
+     * everything that shows it know.  Used by syncs and by ForecastPrefetcher alike.
+     *
+     * @param recorder what the time each update takes is added to
      */
-    private void getWeatherDataFromJson(String forecastJsonStr,
-                                        String locationSetting)
-            throws JSONException {
-
-        // Now we have a String representing the complete forecast in JSON Format.
-        // Fortunately parsing is easy:  constructor takes the JSON string and converts it
-        // into an Object hierarchy for us.
-
-        // These are the names of the JSON objects that need to be extracted.
-
-        // Location information
-        final String OWM_CITY = "city";
-        final String OWM_CITY_NAME = "name";
-        final String OWM_COORD = "coord";
-
-        // Location coordinate
-        final String OWM_LATITUDE = "lat";
-        final String OWM_LONGITUDE = "lon";
-
-        // Weather information.  Each day's forecast info is an element of the "list" array.
-        final String OWM_LIST = "list";
-
-        final String OWM_PRESSURE = "pressure";
-        final String OWM_HUMIDITY = "humidity";
-        final String OWM_WINDSPEED = "speed";
-        final String OWM_WIND_DIRECTION = "deg";
-
-        // All temperatures are children of the "temp" object.
-        final String OWM_TEMPERATURE = "temp";
-        final String OWM_MAX = "max";
-        final String OWM_MIN = "min";
-
-        final String OWM_WEATHER = "weather";
-        final String OWM_DESCRIPTION = "main";
-        final String OWM_WEATHER_ID = "id";
-
-        final String OWM_MESSAGE_CODE = "cod";
+    static void onPreferredLocationSynced(Context context, String locationSetting,
+                                          LocationSyncEngine.Outcome outcome,
+                                          SyncMetrics.Recorder recorder) {
+        SyncRequestCoalescer.getInstance(context).onSyncFinished(locationSetting,
+                outcome.status == LOCATION_STATUS_OK);
+        setLocationStatus(context, outcome.status);
+        if (outcome.changed) {
+            ForecastChangeNotifier.getInstance(context).onPreferredForecastChanged(recorder);
+        }
+    }
 
+    /**
+     * Fetches the forecast at {@code url} and stores it for {@code locationSetting}, without
+     * touching the location status or anything outside the database, so that several locations
+     * can be synced at once.
+     */
+    LocationSyncEngine.Outcome syncLocation(URL url, String locationSetting) {
+        ForecastFetcher.Response response = null;
         try {
-            JSONObject forecastJson = new JSONObject(forecastJsonStr);
-            Context context = getContext();
-
-            // do we have an error?
-            if (forecastJson.has(OWM_MESSAGE_CODE)) {
-                int errorCode = forecastJson.getInt(OWM_MESSAGE_CODE);
-
-                switch (errorCode) {
-                    case HttpURLConnection.HTTP_OK:
-                        break;
-                    case HttpURLConnection.HTTP_NOT_FOUND:
-                        setLocationStatus(getContext(), LOCATION_STATUS_INVALID);
-                        return;
-                    default:
-                        setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                        return;
-                }
-            }
-
-            JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
-
-            JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
-            String cityName = cityJson.getString(OWM_CITY_NAME);
-
-            JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
-            double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
-            double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
-
-            long locationId = addLocation(locationSetting, cityName, cityLatitude, cityLongitude);
-
-            // Insert the new weather information into the database
-            Vector<ContentValues> cVVector = new Vector<ContentValues>(weatherArray.length());
-
-            // OWM returns daily forecasts based upon the local time of the city that is being
-            // asked for, which means that we need to know the GMT offset to translate this data
-            // properly.
-
-            // Since this data is also sent in-order and the first day is always the
-            // current day, we're going to take advantage of that to get a nice
-            // normalized UTC date for all of our weather.
-
-            Time dayTime = new Time();
-            dayTime.setToNow();
-
-            // we start at the day returned by local time. Otherwise this is a mess.
-            int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
-
-            // now we work exclusively in UTC
-            dayTime = new Time();
-
-            for (int i = 0; i < weatherArray.length(); i++) {
-                // These are the values that will be collected.
-                long dateTime;
-                double pressure;
-                int humidity;
-                double windSpeed;
-                double windDirection;
-
-                double high;
-                double low;
-
-                String description;
-                int weatherId;
-
-                // Get the JSON object representing the day
-                JSONObject dayForecast = weatherArray.getJSONObject(i);
-
-                // Cheating to convert this to UTC time, which is what we want anyhow
-                dateTime = dayTime.setJulianDay(julianStartDay + i);
-
-                pressure = dayForecast.getDouble(OWM_PRESSURE);
-                humidity = dayForecast.getInt(OWM_HUMIDITY);
-                windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
-                windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
-
-                // Description is in a child array called "weather", which is 1 element long.
-                // That element also contains a weather code.
-                JSONObject weatherObject =
-                        dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
-                description = weatherObject.getString(OWM_DESCRIPTION);
-                weatherId = weatherObject.getInt(OWM_WEATHER_ID);
-
-                // Temperatures are in a child object called "temp".  Try not to name variables
-                // "temp" when working with temperature.  It confuses everybody.
-                JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
-                high = temperatureObject.getDouble(OWM_MAX);
-                low = temperatureObject.getDouble(OWM_MIN);
-
-                ContentValues weatherValues = new ContentValues();
-
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, description);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
-
-                cVVector.add(weatherValues);
+            response = mFetcher.fetch(url, locationSetting, mRecorder);
+
+            if (response.isNotModified() && !mWriter.hasCurrentForecast(locationSetting)) {
+                // The server agrees with validators for data we no longer have, so forget them
+                // and ask again for the full forecast.
+                Log.d(LOG_TAG, "Not modified, but no forecast stored; fetching again");
+                response.close();
+                mValidators.clear(locationSetting);
+                response = mFetcher.fetch(url, locationSetting, mRecorder);
             }
 
-            int inserted = 0;
-            // add to database
-            if (cVVector.size() > 0) {
-                ContentValues[] cvArray = new ContentValues[cVVector.size()];
-                cVVector.toArray(cvArray);
-                getContext().getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, cvArray);
-
-                // delete old data so we don't build up an endless history
-                getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
-                        WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
-                        new String[]{Long.toString(dayTime.setJulianDay(julianStartDay - 1))});
-
-                updateWidgets();
-                updateMuzei();
-                notifyWeather();
-                updateWatchface();
+            if (response.isNotModified()) {
+                Log.d(LOG_TAG, "Sync Complete. Forecast not modified");
+                return new LocationSyncEngine.Outcome(LOCATION_STATUS_OK, false);
             }
-            Log.d(LOG_TAG, "Sync Complete. " + cVVector.size() + " Inserted");
-            setLocationStatus(getContext(), LOCATION_STATUS_OK);
 
+            // Parse the forecast as it comes off the wire rather than reading it into a String.
+            // An empty body surfaces as an EOFException and is treated as the server being down.
+            return mWriter.write(response, locationSetting, mRecorder);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error ", e);
+            // If the code didn't successfully get the weather data, there's no point in attempting
+            // to parse it.
+            return new LocationSyncEngine.Outcome(LOCATION_STATUS_SERVER_DOWN, false);
         } catch (JSONException e) {
             Log.e(LOG_TAG, e.getMessage(), e);
             e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
-        }
-    }
-
-    private void updateWidgets() {
-        Context context = getContext();
-        // Setting the package ensures that only components in our app will receive the broadcast
-        Intent dataUpdatedIntent = new Intent(ACTION_DATA_UPDATED)
-                .setPackage(context.getPackageName());
-        context.sendBroadcast(dataUpdatedIntent);
-    }
-
-    private void updateMuzei() {
-        // Muzei is only compatible with Jelly Bean MR1+ devices, so there's no need to update the
-        // Muzei background on lower API level devices
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
-            Context context = getContext();
-            context.startService(new Intent(ACTION_DATA_UPDATED)
-                    .setClass(context, WeatherMuzeiSource.class));
-        }
-    }
-
-    private void notifyWeather() {
-        Context context = getContext();
-        //checking the last update and notify if it' the first of the day
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        String displayNotificationsKey = context.getString(R.string.pref_enable_notifications_key);
-        boolean displayNotifications = prefs.getBoolean(displayNotificationsKey,
-                Boolean.parseBoolean(context.getString(R.string.pref_enable_notifications_default)));
-
-        if (displayNotifications) {
-
-            String lastNotificationKey = context.getString(R.string.pref_last_notification);
-            long lastSync = prefs.getLong(lastNotificationKey, 0);
-
-            if (System.currentTimeMillis() - lastSync >= DAY_IN_MILLIS) {
-                // Last sync was more than 1 day ago, let's send a notification with the weather.
-                String locationQuery = Utility.getPreferredLocation(context);
-
-                Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
-
-                // we'll query our contentProvider, as always
-                Cursor cursor = context.getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
-
-                if (cursor.moveToFirst()) {
-                    int weatherId = cursor.getInt(INDEX_WEATHER_ID);
-                    double high = cursor.getDouble(INDEX_MAX_TEMP);
-                    double low = cursor.getDouble(INDEX_MIN_TEMP);
-                    String desc = cursor.getString(INDEX_SHORT_DESC);
-
-                    int iconId = Utility.getIconResourceForWeatherCondition(weatherId);
-                    Resources resources = context.getResources();
-                    int artResourceId = Utility.getArtResourceForWeatherCondition(weatherId);
-                    String artUrl = Utility.getArtUrlForWeatherCondition(context, weatherId);
-
-                    // On Honeycomb and higher devices, we can retrieve the size of the large icon
-                    // Prior to that, we use a fixed size
-                    @SuppressLint("InlinedApi")
-                    int largeIconWidth = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
-                            ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width)
-                            : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
-                    @SuppressLint("InlinedApi")
-                    int largeIconHeight = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
-                            ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height)
-                            : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
-
-                    // Retrieve the large icon
-                    Bitmap largeIcon;
-                    try {
-                        largeIcon = Glide.with(context)
-                                .load(artUrl)
-                                .asBitmap()
-                                .error(artResourceId)
-                                .fitCenter()
-                                .into(largeIconWidth, largeIconHeight).get();
-                    } catch (InterruptedException | ExecutionException e) {
-                        Log.e(LOG_TAG, "Error retrieving large icon from " + artUrl, e);
-                        largeIcon = BitmapFactory.decodeResource(resources, artResourceId);
-                    }
-                    String title = context.getString(R.string.app_name);
-
-                    // Define the text of the forecast.
-                    String contentText = String.format(context.getString(R.string.format_notification),
-                            desc,
-                            Utility.formatTemperature(context, high),
-                            Utility.formatTemperature(context, low));
-
-                    // NotificationCompatBuilder is a very convenient way to build backward-compatible
-                    // notifications.  Just throw in some data.
-                    NotificationCompat.Builder mBuilder =
-                            new NotificationCompat.Builder(getContext())
-                                    .setColor(resources.getColor(R.color.primary_light))
-                                    .setSmallIcon(iconId)
-                                    .setLargeIcon(largeIcon)
-                                    .setContentTitle(title)
-                                    .setContentText(contentText);
-
-                    // Make something interesting happen when the user clicks on the notification.
-                    // In this case, opening the app is sufficient.
-                    Intent resultIntent = new Intent(context, MainActivity.class);
-
-                    // The stack builder object will contain an artificial back stack for the
-                    // started Activity.
-                    // This ensures that navigating backward from the Activity leads out of
-                    // your application to the Home screen.
-                    TaskStackBuilder stackBuilder = TaskStackBuilder.create(context);
-                    stackBuilder.addNextIntent(resultIntent);
-                    PendingIntent resultPendingIntent =
-                            stackBuilder.getPendingIntent(
-                                    0,
-                                    PendingIntent.FLAG_UPDATE_CURRENT
-                            );
-                    mBuilder.setContentIntent(resultPendingIntent);
-
-                    NotificationManager mNotificationManager =
-                            (NotificationManager) getContext().getSystemService(Context.NOTIFICATION_SERVICE);
-                    // WEATHER_NOTIFICATION_ID allows you to update the notification later on.
-                    mNotificationManager.notify(WEATHER_NOTIFICATION_ID, mBuilder.build());
-
-                    //refreshing last sync
-                    SharedPreferences.Editor editor = prefs.edit();
-                    editor.putLong(lastNotificationKey, System.currentTimeMillis());
-                    editor.commit();
-                }
-                cursor.close();
+            return new LocationSyncEngine.Outcome(LOCATION_STATUS_SERVER_INVALID, false);
+        } finally {
+            if (response != null) {
+                response.close();
             }
         }
     }
 
-    private void updateWatchface() {
-        Context context = getContext();
-        String locationQuery = Utility.getPreferredLocation(context);
-
-        PutDataMapRequest putDataMapReq =
-                PutDataMapRequest.create(SIMPLE_WATCH_PATH).setUrgent();
-
-        Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
-
-        // we'll query our contentProvider, as always
-        Cursor cursor = context.getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
-
-        if (cursor.moveToFirst()) {
-            int weatherId = cursor.getInt(INDEX_WEATHER_ID);
-            double high = cursor.getDouble(INDEX_MAX_TEMP);
-            double low = cursor.getDouble(INDEX_MIN_TEMP);
-
-            String highTempString = Utility.formatTemperature(context, high);
-            String lowTempString = Utility.formatTemperature(context, low);
-
-            putDataMapReq.getDataMap().putString(HIGH_TEMP, highTempString);
-            putDataMapReq.getDataMap().putString(LOW_TEMP, lowTempString);
-            putDataMapReq.getDataMap().putInt(WEATHER_ID, weatherId);
-            Log.d(LOG_TAG, "updateWatchface " + highTempString + " " +
-                    lowTempString + " " + weatherId);
-        }
-        cursor.close();
-
-        PutDataRequest putDataReq = putDataMapReq.asPutDataRequest().setUrgent();
-        Wearable.DataApi.putDataItem(googleApiClient, putDataReq);
-    }
-
-    @Override
-    public void onConnected(Bundle bundle) {
-        Log.d(LOG_TAG, "onConnected");
-    }
-
-    @Override
-    public void onConnectionSuspended(int i) {
-        Log.e(LOG_TAG, "onConnectionSuspended");
-    }
-
-    @Override
-    public void onConnectionFailed(ConnectionResult connectionResult) {
-        Log.e(LOG_TAG, "onConnectionFailed");
-    }
-
-
     /**
-     * Helper method to handle insertion of a new location in the weather database.
+     * Builds the operations that store a forecast: the location, upserted so that its row ID is
+     * known without a query, then every day of the forecast pointing back at that row.  Applied
+     * as one batch they share a single transaction and a single round of change notifications.
+     * Days that have passed are left to WeatherRetentionService.
      *
      * @param locationSetting The location string used to request updates from the server.
      * @param cityName        A human-readable city name, e.g "Mountain View"
      * @param lat             the latitude of the city
      * @param lon             the longitude of the city
-     * @return the row ID of the added location.
+     * @param days            the forecast, without the location key
      */
-
-    long addLocation(String locationSetting, String cityName, double lat, double lon) {
-        long locationId;
-
-        // First, check if the location with this city name exists in the db
-        Cursor locationCursor = getContext().getContentResolver().query(
-                WeatherContract.LocationEntry.CONTENT_URI,
-                new String[]{WeatherContract.LocationEntry._ID},
-                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
-                new String[]{locationSetting},
-                null);
-
-        if (locationCursor.moveToFirst()) {
-            int locationIdIndex = locationCursor.getColumnIndex(WeatherContract.LocationEntry._ID);
-            locationId = locationCursor.getLong(locationIdIndex);
-        } else {
-            // Now that the content provider is set up, inserting rows of data is pretty simple.
-            // First create a ContentValues object to hold the data you want to insert.
-            ContentValues locationValues = new ContentValues();
-
-            // Then add the data, along with the corresponding name of the data type,
-            // so the content provider knows what kind of value is being inserted.
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
-
-            // Finally, insert location data into the database.
-            Uri insertedUri = getContext().getContentResolver().insert(
-                    WeatherContract.LocationEntry.CONTENT_URI,
-                    locationValues
-            );
-
-            // The resulting URI contains the ID for the row.  Extract the locationId from the Uri.
-            locationId = ContentUris.parseId(insertedUri);
+    static ArrayList<ContentProviderOperation> buildForecastOperations(
+            String locationSetting, String cityName, double lat, double lon,
+            List<ContentValues> days) {
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>(days.size() + 1);
+
+        ContentValues locationValues = new ContentValues();
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
+        final int locationOperation = operations.size();
+        operations.add(ContentProviderOperation.newInsert(WeatherContract.LocationEntry.CONTENT_URI)
+                .withValues(locationValues)
+                .build());
+
+        for (ContentValues weatherValues : days) {
+            operations.add(ContentProviderOperation.newInsert(WeatherContract.WeatherEntry.CONTENT_URI)
+                    .withValues(weatherValues)
+                    .withValueBackReference(WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+                            locationOperation)
+                    .build());
         }
-
-        locationCursor.close();
-        // Wait, that worked?  Yes!
-        return locationId;
+        return operations;
     }
 
     /**
@@ -659,16 +452,30 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
     }
 
     /**
-     * Helper method to have the sync adapter sync immediately
+     * Helper method to have the sync adapter sync immediately.  Requests made in quick
+     * succession, or while the preferred location is being synced or was just synced, are
+     * merged by SyncRequestCoalescer, so callers needn't worry about asking too often.
      *
      * @param context The context used to access the account service
      */
     public static void syncImmediately(Context context) {
-        Bundle bundle = new Bundle();
-        bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
-        bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
-        ContentResolver.requestSync(getSyncAccount(context),
-                context.getString(R.string.content_authority), bundle);
+        SyncRequestCoalescer.getInstance(context).trigger(Utility.getPreferredLocation(context));
+    }
+
+    /**
+     * Counts a forecast that was written without a sync, such as a delta pushed over GCM, as a
+     * fresh sync of its location.  If that is the preferred location, everything that shows its
+     * forecast is updated just as after a sync; the forecasts of other locations aren't shown
+     * anywhere, so nothing else happens for them.  Don't call this from the UI thread.
+     */
+    public static void onForecastPushed(Context context, String locationSetting) {
+        if (locationSetting.equals(Utility.getPreferredLocation(context))) {
+            onPreferredLocationSynced(context, locationSetting,
+                    new LocationSyncEngine.Outcome(LOCATION_STATUS_OK, true),
+                    new SyncMetrics.Recorder());
+        } else {
+            SyncRequestCoalescer.getInstance(context).onSyncFinished(locationSetting, true);
+        }
     }
 
     /**
@@ -712,9 +519,12 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
 
     private static void onAccountCreated(Account newAccount, Context context) {
         /*
-         * Since we've created an account
+         * Since we've created an account, start from whatever interval the scheduler has
+         * settled on; SYNC_INTERVAL unless it has learned otherwise.
          */
-        SunshineSyncAdapter.configurePeriodicSync(context, SYNC_INTERVAL, SYNC_FLEXTIME);
+        AdaptiveSyncScheduler scheduler = new AdaptiveSyncScheduler(context);
+        SunshineSyncAdapter.configurePeriodicSync(context, scheduler.getInterval(),
+                scheduler.getFlex());
 
         /*
          * Without calling setSyncAutomatically, our periodic sync will not be enabled.
@@ -729,6 +539,8 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
 
     public static void initializeSyncAdapter(Context context) {
         getSyncAccount(context);
+        // Old days are deleted on a schedule of their own, not by every sync.
+        WeatherRetentionService.schedule(context);
     }
 
     /**
@@ -0,0 +1,240 @@
+package com.example.android.sunshine.app.sync;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Times the stages of a sync and counts what went through them.  A {@link Recorder} is filled in
+ * while the sync runs, from however many threads it uses, and turned into a {@link Record} for
+ * SyncMetricsStore when it ends.
+ */
+public class SyncMetrics {
+
+    // Stages, in the order a sync goes through them.  Download is the time spent waiting for
+    // the body, parse the rest of the time spent reading it.
+    public static final int STAGE_CONNECT = 0;
+    public static final int STAGE_TTFB = 1;
+    public static final int STAGE_DOWNLOAD = 2;
+    public static final int STAGE_PARSE = 3;
+    public static final int STAGE_DB_WRITE = 4;
+    public static final int STAGE_RETENTION = 5;
+    public static final int STAGE_WIDGETS = 6;
+    public static final int STAGE_MUZEI = 7;
+    public static final int STAGE_WEAR = 8;
+    public static final int STAGE_NOTIFICATION = 9;
+    // The whole of each location's sync, from connect to db_write, waiting for a connection to
+    // its host included.
+    public static final int STAGE_LOCATION = 10;
+    static final int STAGE_COUNT = 11;
+
+    static final String[] STAGE_NAMES = {"connect", "ttfb", "download", "parse", "db_write",
+            "retention", "widgets", "muzei", "wear", "notification", "location"};
+
+    public static final String KIND_SYNC = "sync";
+    public static final String KIND_RETENTION = "retention";
+
+    private SyncMetrics() {
+    }
+
+    /**
+     * What one sync, or retention run, took.  Stage times are in microseconds, summed over the
+     * locations synced, so with several locations in parallel they can add up to more than the
+     * total.  A stage that didn't run is 0.  The slowest location is what a refresh of all of
+     * them waits for.
+     */
+    public static class Record {
+        public final long timestamp;
+        public final String kind;
+        public final String result;
+        public final int locations;
+        public final long totalMicros;
+        final long[] stageMicros;
+        public final long wireBytes;
+        public final long decodedBytes;
+        public final long rows;
+        public final long slowestLocationMicros;
+
+        Record(long timestamp, String kind, String result, int locations, long totalMicros,
+               long[] stageMicros, long wireBytes, long decodedBytes, long rows,
+               long slowestLocationMicros) {
+            this.timestamp = timestamp;
+            this.kind = kind;
+            this.result = result;
+            this.locations = locations;
+            this.totalMicros = totalMicros;
+            this.stageMicros = stageMicros;
+            this.wireBytes = wireBytes;
+            this.decodedBytes = decodedBytes;
+            this.rows = rows;
+            this.slowestLocationMicros = slowestLocationMicros;
+        }
+
+        public long getStageMicros(int stage) {
+            return stageMicros[stage];
+        }
+
+        static String getCsvHeader() {
+            StringBuilder header = new StringBuilder(
+                    "timestamp,kind,result,locations,total_us");
+            for (String name : STAGE_NAMES) {
+                header.append(',').append(name).append("_us");
+            }
+            return header.append(",wire_bytes,decoded_bytes,rows,slowest_location_us").toString();
+        }
+
+        String toCsv() {
+            StringBuilder line = new StringBuilder(128)
+                    .append(timestamp).append(',')
+                    .append(kind).append(',')
+                    .append(result).append(',')
+                    .append(locations).append(',')
+                    .append(totalMicros);
+            for (long micros : stageMicros) {
+                line.append(',').append(micros);
+            }
+            return line.append(',').append(wireBytes)
+                    .append(',').append(decodedBytes)
+                    .append(',').append(rows)
+                    .append(',').append(slowestLocationMicros).toString();
+        }
+
+        /**
+         * @return the record written by {@link #toCsv}, or null if {@code line} isn't one.
+         */
+        static Record fromCsv(String line) {
+            String[] fields = line.split(",");
+            if (fields.length != 5 + STAGE_COUNT + 4) {
+                return null;
+            }
+            try {
+                long[] stages = new long[STAGE_COUNT];
+                for (int i = 0; i < STAGE_COUNT; i++) {
+                    stages[i] = Long.parseLong(fields[5 + i]);
+                }
+                int next = 5 + STAGE_COUNT;
+                return new Record(Long.parseLong(fields[0]), fields[1], fields[2],
+                        Integer.parseInt(fields[3]), Long.parseLong(fields[4]), stages,
+                        Long.parseLong(fields[next]), Long.parseLong(fields[next + 1]),
+                        Long.parseLong(fields[next + 2]), Long.parseLong(fields[next + 3]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder(String.format(Locale.US,
+                    "%s %s: %d locations in %.1f ms", kind, result, locations,
+                    totalMicros / 1000f));
+            for (int i = 0; i < STAGE_COUNT; i++) {
+                if (stageMicros[i] > 0) {
+                    text.append(String.format(Locale.US, ", %s %.1f", STAGE_NAMES[i],
+                            stageMicros[i] / 1000f));
+                }
+            }
+            if (locations > 1) {
+                text.append(String.format(Locale.US, ", slowest location %.1f",
+                        slowestLocationMicros / 1000f));
+            }
+            return text.append(String.format(Locale.US, "; %d bytes (%d decoded), %d rows",
+                    wireBytes, decodedBytes, rows)).toString();
+        }
+    }
+
+    /**
+     * Collects the stage times and counts of a sync in progress.  Thread safe.
+     */
+    public static class Recorder {
+        private final long mStartNanos = System.nanoTime();
+        private final long mTimestamp = System.currentTimeMillis();
+        private final long[] mStageNanos = new long[STAGE_COUNT];
+        private long mWireBytes;
+        private long mDecodedBytes;
+        private long mRows;
+        private int mLocations;
+        private long mSlowestLocationNanos;
+
+        /**
+         * Adds {@code nanos} to the time of {@code stage}.
+         */
+        public synchronized void addStage(int stage, long nanos) {
+            mStageNanos[stage] += nanos;
+        }
+
+        /**
+         * Adds the time from {@code startNanos}, a System.nanoTime() reading, to now to the time
+         * of {@code stage}.
+         */
+        public void endStage(int stage, long startNanos) {
+            addStage(stage, System.nanoTime() - startNanos);
+        }
+
+        public synchronized void addBytes(long wireBytes, long decodedBytes) {
+            mWireBytes += wireBytes;
+            mDecodedBytes += decodedBytes;
+        }
+
+        public synchronized void addRows(long rows) {
+            mRows += rows;
+        }
+
+        public synchronized void setLocations(int locations) {
+            mLocations = locations;
+        }
+
+        /**
+         * Records how long the sync of one location took, all of its stages together.
+         */
+        public synchronized void addLocation(long nanos) {
+            mStageNanos[STAGE_LOCATION] += nanos;
+            mSlowestLocationNanos = Math.max(mSlowestLocationNanos, nanos);
+        }
+
+        public synchronized Record finish(String kind, String result) {
+            long[] stageMicros = new long[STAGE_COUNT];
+            for (int i = 0; i < STAGE_COUNT; i++) {
+                stageMicros[i] = mStageNanos[i] / 1000;
+            }
+            return new Record(mTimestamp, kind, result, mLocations,
+                    (System.nanoTime() - mStartNanos) / 1000, stageMicros, mWireBytes,
+                    mDecodedBytes, mRows, mSlowestLocationNanos / 1000);
+        }
+    }
+
+    /**
+     * The median and 95th percentile of a stage, over the records it ran in.
+     */
+    public static class Percentiles {
+        public final int samples;
+        public final long p50Micros;
+        public final long p95Micros;
+
+        Percentiles(int samples, long p50Micros, long p95Micros) {
+            this.samples = samples;
+            this.p50Micros = p50Micros;
+            this.p95Micros = p95Micros;
+        }
+
+        /**
+         * @param values the stage times, in any order; sorted in place
+         */
+        static Percentiles of(long[] values, int count) {
+            if (count == 0) {
+                return new Percentiles(0, 0, 0);
+            }
+            Arrays.sort(values, 0, count);
+            return new Percentiles(count, values[rank(50, count)], values[rank(95, count)]);
+        }
+
+        // Nearest rank, so every percentile is a time that was actually measured.
+        private static int rank(int percentile, int count) {
+            return Math.max(0, (percentile * count + 99) / 100 - 1);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "p50 %.1f ms, p95 %.1f ms (%d)", p50Micros / 1000f,
+                    p95Micros / 1000f, samples);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the metrics of the last CAPACITY syncs in a ring buffer, the oldest making way for the
+ * newest, for the debug screen to summarize and export.  The buffer is kept in a CSV file in the
+ * app's private storage, in the same format {@link #writeCsv} exports, and rewritten after each
+ * sync; a few hundred short lines are cheap to write next to a network round trip.
+ */
+public class SyncMetricsStore {
+
+    private static final String LOG_TAG = SyncMetricsStore.class.getSimpleName();
+
+    private static final String FILE_NAME = "sync_metrics.csv";
+
+    static final int CAPACITY = 256;
+
+    private static SyncMetricsStore sInstance;
+
+    private final AtomicFile mFile;
+    private final SyncMetrics.Record[] mRecords = new SyncMetrics.Record[CAPACITY];
+    // Index of the oldest record, and how many there are.
+    private int mHead;
+    private int mSize;
+    private boolean mLoaded;
+
+    public static synchronized SyncMetricsStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SyncMetricsStore(
+                    new File(context.getApplicationContext().getFilesDir(), FILE_NAME));
+        }
+        return sInstance;
+    }
+
+    SyncMetricsStore(File file) {
+        mFile = new AtomicFile(file);
+    }
+
+    /**
+     * Adds a record, dropping the oldest if the buffer is full, and saves the buffer.  Does file
+     * I/O, so don't call this from the UI thread.
+     */
+    public synchronized void add(SyncMetrics.Record record) {
+        load();
+        append(record);
+        save();
+    }
+
+    /**
+     * @return the records, oldest first.
+     */
+    public synchronized List<SyncMetrics.Record> getRecords() {
+        load();
+        List<SyncMetrics.Record> records = new ArrayList<SyncMetrics.Record>(mSize);
+        for (int i = 0; i < mSize; i++) {
+            records.add(mRecords[(mHead + i) % CAPACITY]);
+        }
+        return records;
+    }
+
+    /**
+     * @return the percentiles of each stage, indexed by stage, over the records of {@code kind}
+     * in which the stage ran.
+     */
+    public synchronized SyncMetrics.Percentiles[] getPercentiles(String kind) {
+        load();
+        SyncMetrics.Percentiles[] percentiles =
+                new SyncMetrics.Percentiles[SyncMetrics.STAGE_COUNT];
+        long[] values = new long[mSize];
+        for (int stage = 0; stage < SyncMetrics.STAGE_COUNT; stage++) {
+            int count = 0;
+            for (int i = 0; i < mSize; i++) {
+                SyncMetrics.Record record = mRecords[(mHead + i) % CAPACITY];
+                if (record.kind.equals(kind) && record.getStageMicros(stage) > 0) {
+                    values[count++] = record.getStageMicros(stage);
+                }
+            }
+            percentiles[stage] = SyncMetrics.Percentiles.of(values, count);
+        }
+        return percentiles;
+    }
+
+    /**
+     * Writes the records, oldest first, as CSV with a header line.
+     */
+    public synchronized void writeCsv(Writer writer) throws IOException {
+        load();
+        writer.write(SyncMetrics.Record.getCsvHeader());
+        writer.write('\n');
+        for (int i = 0; i < mSize; i++) {
+            writer.write(mRecords[(mHead + i) % CAPACITY].toCsv());
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    public synchronized void clear() {
+        mHead = 0;
+        mSize = 0;
+        mLoaded = true;
+        mFile.delete();
+    }
+
+    private void append(SyncMetrics.Record record) {
+        if (mSize < CAPACITY) {
+            mRecords[(mHead + mSize) % CAPACITY] = record;
+            mSize++;
+        } else {
+            mRecords[mHead] = record;
+            mHead = (mHead + 1) % CAPACITY;
+        }
+    }
+
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        FileInputStream in;
+        try {
+            in = mFile.openRead();
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // Skips the header too.
+                SyncMetrics.Record record = SyncMetrics.Record.fromCsv(line);
+                if (record != null) {
+                    append(record);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error reading sync metrics", e);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Nothing left to do with it.
+            }
+        }
+    }
+
+    private void save() {
+        FileOutputStream out = null;
+        try {
+            out = mFile.startWrite();
+            writeCsv(new OutputStreamWriter(out, "UTF-8"));
+            mFile.finishWrite(out);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error saving sync metrics", e);
+            if (out != null) {
+                mFile.failWrite(out);
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.example.android.sunshine.app.sync;
+
+import android.accounts.Account;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Turns the app's requests for an immediate sync into as few syncs as will do.  Requests that
+ * arrive close together are merged into one, requests for a location that is already being
+ * synced or was synced moments ago are dropped, and a periodic sync that is queued but not yet
+ * running is replaced by the immediate one instead of running as well.
+ */
+public class SyncRequestCoalescer {
+
+    private static final String LOG_TAG = SyncRequestCoalescer.class.getSimpleName();
+
+    // How long a request waits for others to merge with it.
+    static final long DEBOUNCE_MILLIS = 500;
+
+    // How long a synced location's forecast counts as fresh.
+    static final long FRESHNESS_MILLIS = 60 * 1000;
+
+    // How long a requested sync may take to finish before it's assumed it never will, for
+    // example because the sync manager is waiting for a network.
+    static final long IN_FLIGHT_TIMEOUT_MILLIS = 5 * 60 * 1000;
+
+    /**
+     * Starts a sync.  Called on the coalescer's looper.
+     */
+    interface SyncRequester {
+        void requestSync();
+    }
+
+    /**
+     * How many requests came in and what became of them.
+     */
+    public static class Stats {
+        public final long triggers;
+        public final long merged;
+        public final long dropped;
+        public final long requested;
+
+        Stats(long triggers, long merged, long dropped, long requested) {
+            this.triggers = triggers;
+            this.merged = merged;
+            this.dropped = dropped;
+            this.requested = requested;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d triggers: %d merged, %d dropped, %d requested",
+                    triggers, merged, dropped, requested);
+        }
+    }
+
+    private static SyncRequestCoalescer sInstance;
+
+    private final Handler mHandler;
+    private SyncRequester mRequester;
+
+    // All guarded by this.
+    private boolean mPending;
+    private String mPendingLocation;
+    private String mInFlightLocation;
+    private long mInFlightSince;
+    private final Map<String, Long> mLastSynced = new HashMap<String, Long>();
+    private long mTriggers;
+    private long mMerged;
+    private long mDropped;
+    private long mRequested;
+
+    private final Runnable mFire = new Runnable() {
+        @Override
+        public void run() {
+            SyncRequester requester;
+            synchronized (SyncRequestCoalescer.this) {
+                mPending = false;
+                // The location may have been brought up to date while the request waited, for
+                // example from a prefetched forecast.
+                if (isFresh(mPendingLocation, SystemClock.elapsedRealtime())) {
+                    mDropped++;
+                    return;
+                }
+                mInFlightLocation = mPendingLocation;
+                mInFlightSince = SystemClock.elapsedRealtime();
+                mRequested++;
+                requester = mRequester;
+            }
+            requester.requestSync();
+        }
+    };
+
+    public static synchronized SyncRequestCoalescer getInstance(Context context) {
+        if (sInstance == null) {
+            final Context appContext = context.getApplicationContext();
+            sInstance = new SyncRequestCoalescer(Looper.getMainLooper(), new SyncRequester() {
+                @Override
+                public void requestSync() {
+                    requestExpeditedSync(appContext);
+                }
+            });
+        }
+        return sInstance;
+    }
+
+    SyncRequestCoalescer(Looper looper, SyncRequester requester) {
+        mHandler = new Handler(looper);
+        mRequester = requester;
+    }
+
+    /**
+     * Asks for the forecast of {@code locationSetting}, the preferred location, to be synced
+     * soon.  Safe to call from any thread.
+     */
+    public synchronized void trigger(String locationSetting) {
+        mTriggers++;
+        long now = SystemClock.elapsedRealtime();
+        if (mPending) {
+            // The sync reads the preferred location when it runs, so the latest request wins.
+            mPendingLocation = locationSetting;
+            mMerged++;
+            return;
+        }
+        if (mInFlightLocation != null && now - mInFlightSince >= IN_FLIGHT_TIMEOUT_MILLIS) {
+            mInFlightLocation = null;
+        }
+        if (locationSetting.equals(mInFlightLocation)) {
+            mDropped++;
+            return;
+        }
+        if (isFresh(locationSetting, now)) {
+            mDropped++;
+            return;
+        }
+        mPending = true;
+        mPendingLocation = locationSetting;
+        mHandler.postDelayed(mFire, DEBOUNCE_MILLIS);
+    }
+
+    /**
+     * Called by the sync adapter whenever a sync of the preferred location ends, whoever asked
+     * for it.
+     *
+     * @param synced whether the forecast was brought up to date
+     */
+    public synchronized void onSyncFinished(String locationSetting, boolean synced) {
+        if (locationSetting.equals(mInFlightLocation)) {
+            mInFlightLocation = null;
+        }
+        if (synced) {
+            mLastSynced.put(locationSetting, SystemClock.elapsedRealtime());
+        }
+    }
+
+    // Called holding the lock.
+    private boolean isFresh(String locationSetting, long now) {
+        Long lastSynced = mLastSynced.get(locationSetting);
+        return lastSynced != null && now - lastSynced < FRESHNESS_MILLIS;
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(mTriggers, mMerged, mDropped, mRequested);
+    }
+
+    synchronized SyncRequester getRequester() {
+        return mRequester;
+    }
+
+    synchronized void setRequester(SyncRequester requester) {
+        mRequester = requester;
+    }
+
+    /**
+     * Forgets pending requests, syncs in flight and fresh locations.
+     */
+    synchronized void reset() {
+        mHandler.removeCallbacks(mFire);
+        mPending = false;
+        mPendingLocation = null;
+        mInFlightLocation = null;
+        mLastSynced.clear();
+        mTriggers = mMerged = mDropped = mRequested = 0;
+    }
+
+    private static void requestExpeditedSync(Context context) {
+        Account account = SunshineSyncAdapter.getSyncAccount(context);
+        String authority = context.getString(R.string.content_authority);
+        if (ContentResolver.isSyncPending(account, authority)
+                && !ContentResolver.isSyncActive(account, authority)) {
+            // A periodic sync is queued, waiting for its window or for a network.  Run it now,
+            // as the expedited sync, rather than running both.
+            Log.d(LOG_TAG, "Replacing queued sync with an expedited one");
+            ContentResolver.cancelSync(account, authority);
+        }
+        Bundle bundle = new Bundle();
+        bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
+        bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+        ContentResolver.requestSync(account, authority, bundle);
+    }
+}
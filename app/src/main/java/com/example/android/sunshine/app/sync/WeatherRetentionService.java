@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+/**
+ * IntentService which applies the weather retention policy, on an alarm of its own rather than
+ * at the end of every sync.  Yesterday's forecast being deleted a few hours late costs nothing.
+ * The policy itself is the provider's, run through WeatherContract.METHOD_APPLY_RETENTION; this
+ * only decides when, and records how long it took with the sync metrics.
+ */
+public class WeatherRetentionService extends IntentService {
+
+    private static final String LOG_TAG = WeatherRetentionService.class.getSimpleName();
+
+    // The alarm isn't a wakeup alarm, so this is at least how often retention runs: the first
+    // time the device is awake after each interval has passed.
+    private static final long RETENTION_INTERVAL = AlarmManager.INTERVAL_HALF_DAY;
+
+    public WeatherRetentionService() {
+        super("WeatherRetentionService");
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        SyncMetrics.Recorder recorder = new SyncMetrics.Recorder();
+        long start = System.nanoTime();
+        Bundle result = getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_APPLY_RETENTION, null, null);
+        recorder.endStage(SyncMetrics.STAGE_RETENTION, start);
+        if (result != null) {
+            recorder.addRows(result.getInt(WeatherContract.RESULT_ROWS_DELETED));
+        }
+        // Kept with the sync metrics, since retention used to be a stage of every sync.
+        SyncMetrics.Record record = recorder.finish(SyncMetrics.KIND_RETENTION, "ok");
+        SyncMetricsStore.getInstance(this).add(record);
+        Log.d(LOG_TAG, "Retention applied: " + record);
+    }
+
+    /**
+     * Schedules the retention alarm, unless it's already scheduled.  Alarms don't survive a
+     * reboot, so this is called whenever the app starts; replacing a scheduled alarm each time
+     * would keep pushing retention back for as long as the app is opened twice a day.
+     */
+    public static void schedule(Context context) {
+        Intent intent = new Intent(context, WeatherRetentionService.class);
+        if (PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_NO_CREATE) != null) {
+            return;
+        }
+        PendingIntent pendingIntent = PendingIntent.getService(context, 0, intent, 0);
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + RETENTION_INTERVAL, RETENTION_INTERVAL,
+                pendingIntent);
+    }
+}
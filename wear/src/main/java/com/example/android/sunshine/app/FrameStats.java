@@ -0,0 +1,149 @@
+package com.example.android.sunshine.app;
+
+import com.google.android.gms.wearable.DataMap;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Counts what the watch face draws and why: a histogram of how long frames take, in interactive
+ * and in ambient mode, how often the timer fires late, and what asked for each frame.  Cheap
+ * enough to always be on; recording allocates nothing.  Dumped by {@code adb shell dumpsys
+ * activity service SunshineWatchFaceService}, and in debug builds sent to the phone as a DataItem.
+ * <p>
+ * Not thread safe; the watch face uses it from its UI thread only.
+ */
+public class FrameStats {
+
+    public static final String PATH = "/watch_face_stats";
+
+    // What asked for a frame.
+    public static final int CAUSE_TIMER = 0;
+    public static final int CAUSE_TIME_TICK = 1;
+    public static final int CAUSE_DATA_CHANGE = 2;
+    public static final int CAUSE_AMBIENT_CHANGE = 3;
+    public static final int CAUSE_INTERRUPTION_FILTER = 4;
+    private static final int CAUSE_COUNT = 5;
+
+    private static final String[] CAUSE_NAMES = {"timer", "time_tick", "data_change",
+            "ambient_change", "interruption_filter"};
+
+    // Upper bounds of the histogram's buckets, in microseconds; the last bucket is everything
+    // slower.  A frame at 60 fps has about 16 ms.
+    private static final long[] BUCKET_BOUNDS_MICROS = {1000, 2000, 4000, 8000, 16000, 33000};
+
+    // How late a timer message may be before it counts as late.
+    static final long LATE_TICK_MILLIS = 20;
+
+    private static final int MODE_INTERACTIVE = 0;
+    private static final int MODE_AMBIENT = 1;
+
+    private final long[][] mFrames = new long[2][BUCKET_BOUNDS_MICROS.length + 1];
+    private final long[] mFrameMicros = new long[2];
+    private final long[] mMaxFrameMicros = new long[2];
+    private final long[] mInvalidations = new long[CAUSE_COUNT];
+    private long mTicks;
+    private long mLateTicks;
+    private long mMaxLatenessMillis;
+    private long mSince = System.currentTimeMillis();
+
+    public void recordFrame(long nanos, boolean ambient) {
+        int mode = ambient ? MODE_AMBIENT : MODE_INTERACTIVE;
+        long micros = nanos / 1000;
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS_MICROS.length && micros > BUCKET_BOUNDS_MICROS[bucket]) {
+            bucket++;
+        }
+        mFrames[mode][bucket]++;
+        mFrameMicros[mode] += micros;
+        mMaxFrameMicros[mode] = Math.max(mMaxFrameMicros[mode], micros);
+    }
+
+    /**
+     * Records a timer message handled {@code latenessMillis} after it was due.
+     */
+    public void recordTick(long latenessMillis) {
+        mTicks++;
+        if (latenessMillis > LATE_TICK_MILLIS) {
+            mLateTicks++;
+        }
+        mMaxLatenessMillis = Math.max(mMaxLatenessMillis, latenessMillis);
+    }
+
+    public void recordInvalidation(int cause) {
+        mInvalidations[cause]++;
+    }
+
+    public void reset() {
+        for (long[] frames : mFrames) {
+            Arrays.fill(frames, 0);
+        }
+        Arrays.fill(mFrameMicros, 0);
+        Arrays.fill(mMaxFrameMicros, 0);
+        Arrays.fill(mInvalidations, 0);
+        mTicks = 0;
+        mLateTicks = 0;
+        mMaxLatenessMillis = 0;
+        mSince = System.currentTimeMillis();
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println("Frame stats since " + new Date(mSince) + ":");
+        String[] modes = {"interactive", "ambient"};
+        for (int mode = 0; mode < modes.length; mode++) {
+            long frames = count(mFrames[mode]);
+            writer.print(String.format(Locale.US, "  %s: %d frames, %.2f ms on average,"
+                            + " %.2f ms at most; ms:", modes[mode], frames,
+                    frames == 0 ? 0f : mFrameMicros[mode] / 1000f / frames,
+                    mMaxFrameMicros[mode] / 1000f));
+            for (int bucket = 0; bucket < mFrames[mode].length; bucket++) {
+                writer.print(' ');
+                writer.print(bucket < BUCKET_BOUNDS_MICROS.length
+                        ? "<=" + BUCKET_BOUNDS_MICROS[bucket] / 1000
+                        : ">" + BUCKET_BOUNDS_MICROS[bucket - 1] / 1000);
+                writer.print('=');
+                writer.print(mFrames[mode][bucket]);
+            }
+            writer.println();
+        }
+        writer.println(String.format(Locale.US, "  timer: %d ticks, %d later than %d ms,"
+                + " %d ms late at most", mTicks, mLateTicks, LATE_TICK_MILLIS, mMaxLatenessMillis));
+        writer.print("  invalidations:");
+        for (int cause = 0; cause < CAUSE_COUNT; cause++) {
+            writer.print(' ');
+            writer.print(CAUSE_NAMES[cause]);
+            writer.print('=');
+            writer.print(mInvalidations[cause]);
+        }
+        writer.println();
+    }
+
+    /**
+     * @return the stats as a DataMap, to send to the phone.
+     */
+    public DataMap toDataMap() {
+        DataMap map = new DataMap();
+        map.putLong("since", mSince);
+        map.putLongArray("interactive_frames", mFrames[MODE_INTERACTIVE]);
+        map.putLongArray("ambient_frames", mFrames[MODE_AMBIENT]);
+        map.putLongArray("frame_micros", mFrameMicros);
+        map.putLongArray("max_frame_micros", mMaxFrameMicros);
+        map.putLong("ticks", mTicks);
+        map.putLong("late_ticks", mLateTicks);
+        map.putLong("max_lateness_millis", mMaxLatenessMillis);
+        for (int cause = 0; cause < CAUSE_COUNT; cause++) {
+            map.putLong("invalidations_" + CAUSE_NAMES[cause], mInvalidations[cause]);
+        }
+        return map;
+    }
+
+    private static long count(long[] frames) {
+        long count = 0;
+        for (long bucket : frames) {
+            count += bucket;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.android.sunshine.app;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+/**
+ * A few characters rendered once, side by side, into a bitmap, so that text made of them can be
+ * drawn by copying pixels instead of laying it out and rasterizing it again.  What the paint looks
+ * like when the strip is made, its size, typeface, color and antialiasing, is what the text looks
+ * like; make another strip when it changes.
+ * <p>
+ * Not thread safe; the watch face uses it from its UI thread only.
+ */
+public class GlyphStrip {
+
+    private final String mGlyphs;
+    private final Bitmap mBitmap;
+    // Where each glyph's cell starts in the bitmap, and how far the glyph moves the pen.
+    private final int[] mOffsets;
+    private final float[] mAdvances;
+    private final float mAscent;
+    // Room on both sides of each glyph in its cell, for the bits that stick out of its advance.
+    private final int mPadding;
+
+    private final Rect mSrc = new Rect();
+    private final RectF mDst = new RectF();
+
+    public GlyphStrip(Paint paint, String glyphs) {
+        mGlyphs = glyphs;
+        mOffsets = new int[glyphs.length() + 1];
+        mAdvances = new float[glyphs.length()];
+        paint.getTextWidths(glyphs, mAdvances);
+        mPadding = (int) Math.ceil(paint.getTextSize() / 10);
+        for (int i = 0; i < glyphs.length(); i++) {
+            mOffsets[i + 1] = mOffsets[i] + (int) Math.ceil(mAdvances[i]) + 2 * mPadding;
+        }
+        mAscent = paint.ascent();
+        int height = (int) Math.ceil(paint.descent() - mAscent);
+        mBitmap = Bitmap.createBitmap(Math.max(1, mOffsets[glyphs.length()]), Math.max(1, height),
+                Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(mBitmap);
+        for (int i = 0; i < glyphs.length(); i++) {
+            canvas.drawText(glyphs, i, i + 1, mOffsets[i] + mPadding, -mAscent, paint);
+        }
+    }
+
+    /**
+     * Draws {@code text}, all of whose characters must be in the strip, with its baseline at
+     * {@code y}.
+     *
+     * @return the x after the text.
+     */
+    public float drawText(Canvas canvas, String text, float x, float y) {
+        for (int i = 0; i < text.length(); i++) {
+            int glyph = mGlyphs.indexOf(text.charAt(i));
+            mSrc.set(mOffsets[glyph], 0, mOffsets[glyph + 1], mBitmap.getHeight());
+            float left = x - mPadding;
+            mDst.set(left, y + mAscent, left + mSrc.width(), y + mAscent + mSrc.height());
+            canvas.drawBitmap(mBitmap, mSrc, mDst, null);
+            x += mAdvances[glyph];
+        }
+        return x;
+    }
+
+    public void release() {
+        mBitmap.recycle();
+    }
+}
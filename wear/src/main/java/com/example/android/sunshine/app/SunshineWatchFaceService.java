@@ -6,14 +6,15 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.Typeface;
 import android.os.Bundle;
+import android.os.Debug;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.support.v4.content.ContextCompat;
 import android.support.wearable.watchface.CanvasWatchFaceService;
 import android.support.wearable.watchface.WatchFaceService;
@@ -35,8 +36,11 @@ import com.google.android.gms.wearable.DataItem;
 import com.google.android.gms.wearable.DataItemBuffer;
 import com.google.android.gms.wearable.DataMap;
 import com.google.android.gms.wearable.DataMapItem;
+import com.google.android.gms.wearable.PutDataMapRequest;
 import com.google.android.gms.wearable.Wearable;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.TimeZone;
@@ -54,6 +58,25 @@ public class SunshineWatchFaceService extends CanvasWatchFaceService {
     private static final Typeface NORMAL_TYPEFACE =
             Typeface.create(Typeface.SANS_SERIF, Typeface.NORMAL);
 
+    // "00" to "59", so that drawing the time doesn't format it.
+    private static final String[] TWO_DIGITS = new String[60];
+
+    static {
+        for (int i = 0; i < TWO_DIGITS.length; i++) {
+            TWO_DIGITS[i] = (i < 10 ? "0" : "") + i;
+        }
+    }
+
+    private static final String DIGITS = "0123456789";
+
+    // Where ambient mode moves the watch face on screens prone to burn-in, in units of
+    // R.dimen.burn_in_shift, one pair a minute, round and round.
+    private static final int[] BURN_IN_OFFSETS = {
+            0, 0, 1, 0, 1, 1, 0, 1, -1, 1, -1, 0, -1, -1, 0, -1, 1, -1};
+
+    // Shared by the engines, for the watch face and its previews.
+    private final FrameStats mFrameStats = new FrameStats();
+
     @Override
     public Engine onCreateEngine() {
         return new WatchFaceEngine();
@@ -70,6 +93,8 @@ public class SunshineWatchFaceService extends CanvasWatchFaceService {
         private static final int MSG_UPDATE_TIME_ID = 42;
         private static final long DEFAULT_UPDATE_RATE_MS = 1000;
         private long mUpdateRateMs = 1000;
+        // When the next timer message is due, in uptime.
+        private long mTickDueAt;
 
         private Time mDisplayTime;
 
@@ -106,7 +131,52 @@ public class SunshineWatchFaceService extends CanvasWatchFaceService {
         private String lowTemp;
         private int weatherIconRes = -1;
 
+        private WeatherIconCache mIconCache;
+        private int mIconHeight;
+
         private boolean lowBitAmbient;
+        private boolean mBurnInProtection;
+        private float mBurnInShift;
+
+        // The time in ambient mode, drawn from glyphs rendered on the first ambient frame so that
+        // the frames after it, once a minute, don't lay out or rasterize any text at all.
+        private GlyphStrip mHourGlyphs;
+        private GlyphStrip mMinuteGlyphs;
+
+        // What draw() measured, kept until the hour, the day or the text changes.
+        private final Rect mTextBounds = new Rect();
+        private int mMeasuredHour = -1;
+        private float mHourWidth;
+        private float mTimeHeight;
+        private int mMeasuredDay = -1;
+        private String mDateString;
+        private float mDateHeight;
+        private int mMeasureCount;
+        private float mDateAscent;
+        private float mDateDescent;
+        private float mItemDescent;
+
+        // The date, and the weather icon and temperatures, only change a few times a day, so
+        // they're rendered once and copied to each frame; only the time is drawn every frame.
+        private final WatchFaceLayer mDateLayer = new WatchFaceLayer("date") {
+            @Override
+            protected void onRender(Canvas canvas) {
+                canvas.drawText(mDateString, mXOffset, -mDateAscent, datePaint);
+            }
+        };
+        private final WatchFaceLayer mWeatherLayer = new WatchFaceLayer("weather") {
+            @Override
+            protected void onRender(Canvas canvas) {
+                drawWeather(canvas);
+            }
+        };
+
+        // Counts the allocations of each frame once the first few, which measure the text, are
+        // drawn, and logs any.  Turned on by setting the log level of LOG_TAG to VERBOSE before
+        // the watch face starts.
+        private static final int ALLOCATION_CHECK_WARM_UP_FRAMES = 3;
+        private boolean mCheckAllocations;
+        private int mFramesDrawn;
 
         private static final int MUTE_ALPHA = 100;
 
@@ -118,6 +188,7 @@ public class SunshineWatchFaceService extends CanvasWatchFaceService {
                 calendar.setTimeZone(TimeZone.getDefault());
                 mDisplayTime.clear(intent.getStringExtra(KEY_TIMEZONE));
                 mDisplayTime.setToNow();
+                invalidateLayout();
             }
         };
 
@@ -126,10 +197,12 @@ public class SunshineWatchFaceService extends CanvasWatchFaceService {
             public void handleMessage(Message msg) {
                 switch (msg.what) {
                     case MSG_UPDATE_TIME_ID: {
-                        invalidate();
+                        mFrameStats.recordTick(SystemClock.uptimeMillis() - mTickDueAt);
+                        invalidate(FrameStats.CAUSE_TIMER);
                         if (isVisible() && !isInAmbientMode()) {
                             long currentTimeMillis = System.currentTimeMillis();
                             long delay = mUpdateRateMs - (currentTimeMillis % mUpdateRateMs);
+                            mTickDueAt = SystemClock.uptimeMillis() + delay;
                             mTimeHandler.sendEmptyMessageDelayed(MSG_UPDATE_TIME_ID, delay);
                         }
                         break;
@@ -157,6 +230,7 @@ public class SunshineWatchFaceService extends CanvasWatchFaceService {
             Context context = SunshineWatchFaceService.this;
 
             mYOffset = resources.getDimension(R.dimen.digital_y_offset);
+            mBurnInShift = resources.getDimension(R.dimen.burn_in_shift);
             backgroundColorAmbient = ContextCompat.getColor(context, R.color.black);
             backgroundColorInteractive = ContextCompat.getColor(context, R.color.light_blue);
             textColor = ContextCompat.getColor(context, R.color.white);
@@ -172,6 +246,9 @@ public class SunshineWatchFaceService extends CanvasWatchFaceService {
             highTempPaint = createTextPaint(textColor);
             lowTempPaint = createTextPaint(textColor);
 
+            mIconCache = new WeatherIconCache(resources);
+            mIconHeight = (int) resources.getDimension(R.dimen.digital_item_text_size);
+
             googleApiClient = new GoogleApiClient.Builder(SunshineWatchFaceService.this)
                     .addApi(Wearable.API)
                     .addConnectionCallbacks(this)
@@ -184,12 +261,18 @@ public class SunshineWatchFaceService extends CanvasWatchFaceService {
 
             calendar = Calendar.getInstance();
             date = new Date();
+
+            mCheckAllocations = Log.isLoggable(LOG_TAG, Log.VERBOSE);
         }
 
         @Override
         public void onDestroy() {
             mTimeHandler.removeMessages(MSG_UPDATE_TIME_ID);
             releaseGoogleApiClient();
+            mIconCache.clear();
+            mDateLayer.release();
+            mWeatherLayer.release();
+            releaseGlyphs();
             super.onDestroy();
         }
 
@@ -221,6 +304,10 @@ public class SunshineWatchFaceService extends CanvasWatchFaceService {
                 mDisplayTime.setToNow();
                 googleApiClient.connect();
             } else {
+                if (Log.isLoggable(LOG_TAG, Log.DEBUG)) {
+                    Log.d(LOG_TAG, mDateLayer.toString());
+                    Log.d(LOG_TAG, mWeatherLayer.toString());
+                }
                 if (mHasTimeZoneReceiverBeenRegistered) {
                     SunshineWatchFaceService.this.unregisterReceiver(mTimeZoneBroadcastReceiver);
                     mHasTimeZoneReceiverBeenRegistered = false;
@@ -243,6 +330,14 @@ public class SunshineWatchFaceService extends CanvasWatchFaceService {
             Log.d(LOG_TAG, "connected GoogleAPI");
             Wearable.DataApi.addListener(googleApiClient, onDataChangedListener);
             Wearable.DataApi.getDataItems(googleApiClient).setResultCallback(onConnectedResultCallback);
+
+            // What the last time the watch face was visible was like, for comparing builds.
+            if (BuildConfig.DEBUG) {
+                PutDataMapRequest request = PutDataMapRequest.create(FrameStats.PATH);
+                request.getDataMap().putAll(mFrameStats.toDataMap());
+                request.getDataMap().putLong("sent", System.currentTimeMillis());
+                Wearable.DataApi.putDataItem(googleApiClient, request.asPutDataRequest());
+            }
         }
 
 
@@ -282,6 +377,7 @@ public class SunshineWatchFaceService extends CanvasWatchFaceService {
                             weatherId);
                     Log.d(LOG_TAG, "weather id is " + weatherId);
                 }
+                mWeatherLayer.invalidate();
             }
         }
 
@@ -330,7 +426,7 @@ public class SunshineWatchFaceService extends CanvasWatchFaceService {
 
         private void invalidateIfNecessary() {
             if (isVisible() && !isInAmbientMode()) {
-                invalidate();
+                invalidate(FrameStats.CAUSE_DATA_CHANGE);
             }
         }
 
@@ -366,6 +462,20 @@ public class SunshineWatchFaceService extends CanvasWatchFaceService {
             datePaint.setTextSize(itemTextSize);
             highTempPaint.setTextSize(itemTextSize);
             lowTempPaint.setTextSize(itemTextSize);
+            mDateAscent = datePaint.ascent();
+            mDateDescent = datePaint.descent();
+            mItemDescent = highTempPaint.descent();
+
+            // The icons are as tall as a line of items.
+            mIconHeight = (int) itemTextSize;
+            mIconCache.clear();
+            invalidateLayout();
+        }
+
+        @Override
+        public void onSurfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+            super.onSurfaceChanged(holder, format, width, height);
+            mIconCache.clear();
         }
 
         @Override
@@ -374,6 +484,8 @@ public class SunshineWatchFaceService extends CanvasWatchFaceService {
 
             boolean burnInProtection = properties.getBoolean(PROPERTY_BURN_IN_PROTECTION, false);
             hourPaint.setTypeface(burnInProtection ? NORMAL_TYPEFACE : BOLD_TYPEFACE);
+            mBurnInProtection = burnInProtection;
+            invalidateLayout();
 
             lowBitAmbient = properties.getBoolean(PROPERTY_LOW_BIT_AMBIENT, false);
 
@@ -391,7 +503,7 @@ public class SunshineWatchFaceService extends CanvasWatchFaceService {
         public void onTimeTick() {
             super.onTimeTick();
 
-            invalidate();
+            invalidate(FrameStats.CAUSE_TIME_TICK);
         }
 
         @Override
@@ -419,8 +531,9 @@ public class SunshineWatchFaceService extends CanvasWatchFaceService {
                 highTempPaint.setAntiAlias(antiAlias);
                 lowTempPaint.setAntiAlias(antiAlias);
             }
+            invalidateLayers();
 
-            invalidate();
+            invalidate(FrameStats.CAUSE_AMBIENT_CHANGE);
             updateTimer();
         }
 
@@ -444,7 +557,8 @@ public class SunshineWatchFaceService extends CanvasWatchFaceService {
                 colonPaint.setAlpha(alpha);
                 highTempPaint.setAlpha(alpha);
                 lowTempPaint.setAlpha(alpha);
-                invalidate();
+                invalidateLayers();
+                invalidate(FrameStats.CAUSE_INTERRUPTION_FILTER);
             }
             updateTimer();
         }
@@ -453,63 +567,140 @@ public class SunshineWatchFaceService extends CanvasWatchFaceService {
         public void onDraw(Canvas canvas, Rect bounds) {
             super.onDraw(canvas, bounds);
 
+            long start = System.nanoTime();
+            if (mCheckAllocations) {
+                Debug.resetThreadAllocCount();
+                Debug.startAllocCounting();
+            }
+            int measureCount = mMeasureCount;
+            int renders = mDateLayer.getRenders() + mWeatherLayer.getRenders();
+
             long now = System.currentTimeMillis();
             calendar.setTimeInMillis(now);
             date.setTime(now);
 
-            mDisplayTime.setToNow();
-
             canvas.drawRect(0, 0, bounds.width(), bounds.height(), backgroundPaint);
 
-            draw(canvas);
+            // Moving the whole face keeps the layout as it is.
+            boolean shift = mBurnInProtection && isInAmbientMode();
+            if (shift) {
+                int offset = (int) ((now / TimeUnit.MINUTES.toMillis(1))
+                        % (BURN_IN_OFFSETS.length / 2)) * 2;
+                canvas.save();
+                canvas.translate(BURN_IN_OFFSETS[offset] * mBurnInShift,
+                        BURN_IN_OFFSETS[offset + 1] * mBurnInShift);
+            }
+            draw(canvas, bounds.width());
+            if (shift) {
+                canvas.restore();
+            }
+
+            if (mCheckAllocations) {
+                Debug.stopAllocCounting();
+                int allocations = Debug.getThreadAllocCount();
+                mFramesDrawn++;
+                // A frame that measured or rendered something new is allowed to allocate.
+                if (mFramesDrawn > ALLOCATION_CHECK_WARM_UP_FRAMES
+                        && measureCount == mMeasureCount
+                        && renders == mDateLayer.getRenders() + mWeatherLayer.getRenders()
+                        && allocations > 0) {
+                    Log.e(LOG_TAG, "Frame " + mFramesDrawn + " allocated " + allocations
+                            + " objects");
+                }
+            }
+            mFrameStats.recordFrame(System.nanoTime() - start, isInAmbientMode());
+        }
+
+        private void invalidate(int cause) {
+            mFrameStats.recordInvalidation(cause);
+            invalidate();
+        }
+
+        /**
+         * Dumps the frame stats, and what the caches saved, for {@code adb shell dumpsys activity
+         * service SunshineWatchFaceService}; with {@code reset}, clears the stats afterwards.
+         */
+        @Override
+        protected void dump(String prefix, FileDescriptor fd, PrintWriter out, String[] args) {
+            super.dump(prefix, fd, out, args);
+            mFrameStats.dump(out);
+            out.println("  " + mDateLayer);
+            out.println("  " + mWeatherLayer);
+            out.println("  icons: " + mIconCache.getDecodes() + " decodes, "
+                    + mIconCache.getHits() + " hits");
+            if (args != null && args.length > 0 && "reset".equals(args[0])) {
+                mFrameStats.reset();
+                mDateLayer.resetCounters();
+                mWeatherLayer.resetCounters();
+                out.println("  reset");
+            }
         }
 
         private void updateTimer() {
             mTimeHandler.removeMessages(MSG_UPDATE_TIME_ID);
             if (isVisible() && !isInAmbientMode()) {
+                mTickDueAt = SystemClock.uptimeMillis();
                 mTimeHandler.sendEmptyMessage(MSG_UPDATE_TIME_ID);
             }
         }
 
-        private void draw(Canvas canvas) {
+        private void draw(Canvas canvas, int width) {
             float x = mXOffset;
             float y = mYOffset;
 
-            String hourString = formatTwoDigitNumber(calendar.get(Calendar.HOUR_OF_DAY));
-            canvas.drawText(hourString, x, mYOffset, hourPaint);
-            x += hourPaint.measureText(hourString);
+            int hour = calendar.get(Calendar.HOUR_OF_DAY);
+            if (hour != mMeasuredHour) {
+                measureHour(hour);
+            }
+            int day = calendar.get(Calendar.YEAR) * 1000 + calendar.get(Calendar.DAY_OF_YEAR);
+            if (day != mMeasuredDay) {
+                measureDate(day);
+            }
 
-            canvas.drawText(COLON_STRING, x, mYOffset, colonPaint);
-            x += colonWidth;
+            int minute = calendar.get(Calendar.MINUTE);
+            if (isInAmbientMode()) {
+                if (mHourGlyphs == null) {
+                    mHourGlyphs = new GlyphStrip(hourPaint, DIGITS);
+                    // The colon looks the same as the minutes.
+                    mMinuteGlyphs = new GlyphStrip(minutePaint, DIGITS + COLON_STRING);
+                    mMeasureCount++;
+                }
+                x = mHourGlyphs.drawText(canvas, TWO_DIGITS[hour], x, mYOffset);
+                x = mMinuteGlyphs.drawText(canvas, COLON_STRING, x, mYOffset);
+                mMinuteGlyphs.drawText(canvas, TWO_DIGITS[minute], x, mYOffset);
+            } else {
+                canvas.drawText(TWO_DIGITS[hour], x, mYOffset, hourPaint);
+                x += mHourWidth;
 
-            String minuteString = formatTwoDigitNumber(calendar.get(Calendar.MINUTE));
-            canvas.drawText(minuteString, x, mYOffset, minutePaint);
+                canvas.drawText(COLON_STRING, x, mYOffset, colonPaint);
+                x += colonWidth;
 
-            String date = String.valueOf(DateFormat.format("EEE, MMM d yyyy", calendar.getTime()));
+                canvas.drawText(TWO_DIGITS[minute], x, mYOffset, minutePaint);
+            }
 
-            Rect timeBounds = new Rect();
-            hourPaint.getTextBounds(hourString, 0, hourString.length(), timeBounds);
-            y += timeBounds.height();
-            x = mXOffset;
-            canvas.drawText(date, x, y, datePaint);
+            // The date's baseline, then the top of the weather icon.
+            y += mTimeHeight;
+            mDateLayer.setSize(width, (int) Math.ceil(mDateDescent - mDateAscent));
+            mDateLayer.draw(canvas, 0, y + mDateAscent);
+            y += mDateHeight;
 
-            Rect dateBound = new Rect();
-            datePaint.getTextBounds(date, 0, date.length(), dateBound);
-            y += dateBound.height();
-            float scaleFactor = getResources().getDimension(R.dimen.digital_item_text_size);
+            mWeatherLayer.setSize(width, mIconHeight + (int) Math.ceil(mItemDescent));
+            mWeatherLayer.draw(canvas, 0, y);
+        }
 
-            if (weatherIconRes != -1) {
-                Log.d(LOG_TAG, "weather icon update");
-                Bitmap origBitmap = BitmapFactory.decodeResource(getResources(), weatherIconRes);
-                float scale = scaleFactor / (float) origBitmap.getHeight();
-                Bitmap scaledBitmap = Bitmap.createScaledBitmap
-                        (origBitmap, (int) (origBitmap.getWidth() * scale),
-                                (int) (origBitmap.getHeight() * scale), true);
-                canvas.drawBitmap(scaledBitmap, mXOffset, y, null);
+        // Draws the icon and the temperatures, with the top of the icon at 0.
+        private void drawWeather(Canvas canvas) {
+            // Ambient mode leaves the icon out where it could burn in.
+            if (weatherIconRes != -1 && !(mBurnInProtection && isInAmbientMode())) {
+                int variant = !isInAmbientMode() ? WeatherIconCache.VARIANT_INTERACTIVE
+                        : lowBitAmbient ? WeatherIconCache.VARIANT_LOW_BIT
+                        : WeatherIconCache.VARIANT_AMBIENT;
+                Bitmap icon = mIconCache.get(weatherIconRes, mIconHeight, variant);
+                canvas.drawBitmap(icon, mXOffset, 0, null);
             }
 
-            x = mXOffset + getResources().getDimension(R.dimen.digital_item_text_size);
-            y += getResources().getDimension(R.dimen.digital_item_text_size);
+            float x = mXOffset + mIconHeight;
+            float y = mIconHeight;
 
             if (!TextUtils.isEmpty(highTemp)) {
                 canvas.drawText(highTemp, x, y, highTempPaint);
@@ -521,8 +712,49 @@ public class SunshineWatchFaceService extends CanvasWatchFaceService {
             }
         }
 
-        private String formatTwoDigitNumber(int hour) {
-            return String.format("%02d", hour);
+        private void measureHour(int hour) {
+            String hourString = TWO_DIGITS[hour];
+            mHourWidth = hourPaint.measureText(hourString);
+            hourPaint.getTextBounds(hourString, 0, hourString.length(), mTextBounds);
+            mTimeHeight = mTextBounds.height();
+            mMeasuredHour = hour;
+            mMeasureCount++;
+        }
+
+        private void measureDate(int day) {
+            mDateString = DateFormat.format("EEE, MMM d yyyy", calendar).toString();
+            datePaint.getTextBounds(mDateString, 0, mDateString.length(), mTextBounds);
+            mDateHeight = mTextBounds.height();
+            mMeasuredDay = day;
+            mMeasureCount++;
+            mDateLayer.invalidate();
+        }
+
+        /**
+         * Has the next frame measure the time and date again, for when their text changed.
+         */
+        private void invalidateLayout() {
+            mMeasuredHour = -1;
+            mMeasuredDay = -1;
+            invalidateLayers();
+        }
+
+        /**
+         * Has the next frame render the date and weather again, for when how they look changed.
+         */
+        private void invalidateLayers() {
+            mDateLayer.invalidate();
+            mWeatherLayer.invalidate();
+            releaseGlyphs();
+        }
+
+        private void releaseGlyphs() {
+            if (mHourGlyphs != null) {
+                mHourGlyphs.release();
+                mMinuteGlyphs.release();
+                mHourGlyphs = null;
+                mMinuteGlyphs = null;
+            }
         }
     }
 }
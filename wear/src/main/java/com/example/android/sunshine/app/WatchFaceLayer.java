@@ -0,0 +1,115 @@
+package com.example.android.sunshine.app;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.PorterDuff;
+
+import java.util.Locale;
+
+/**
+ * Part of the watch face that changes rarely, kept rendered in a bitmap of its own and only
+ * drawn again, by {@link #onRender}, after {@link #invalidate}.  Every other frame just copies the
+ * bitmap.  Keeps count of both, and of the time spent rendering, to see what it saves.
+ * <p>
+ * Not thread safe; the watch face uses it from its UI thread only.
+ */
+public abstract class WatchFaceLayer {
+
+    private final String mName;
+    private Bitmap mBitmap;
+    private Canvas mCanvas;
+    private boolean mDirty = true;
+
+    private int mRenders;
+    private int mComposites;
+    private long mRenderNanos;
+    private long mMaxRenderNanos;
+
+    public WatchFaceLayer(String name) {
+        mName = name;
+    }
+
+    /**
+     * Draws what the layer shows, at the top left of {@code canvas}, which is transparent.
+     */
+    protected abstract void onRender(Canvas canvas);
+
+    /**
+     * Has the next frame render the layer again, for when what it shows changed.
+     */
+    public void invalidate() {
+        mDirty = true;
+    }
+
+    /**
+     * Sizes the layer's bitmap, allocating another one only if the size changed.
+     */
+    public void setSize(int width, int height) {
+        width = Math.max(1, width);
+        height = Math.max(1, height);
+        if (mBitmap != null && mBitmap.getWidth() == width && mBitmap.getHeight() == height) {
+            return;
+        }
+        release();
+        mBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        mCanvas = new Canvas(mBitmap);
+        mDirty = true;
+    }
+
+    /**
+     * Renders the layer if it changed, then draws it on {@code canvas} with its top left at
+     * {@code left}, {@code top}.
+     */
+    public void draw(Canvas canvas, float left, float top) {
+        if (mBitmap == null) {
+            return;
+        }
+        if (mDirty) {
+            long start = System.nanoTime();
+            mCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+            onRender(mCanvas);
+            long nanos = System.nanoTime() - start;
+            mRenderNanos += nanos;
+            mMaxRenderNanos = Math.max(mMaxRenderNanos, nanos);
+            mRenders++;
+            mDirty = false;
+        }
+        canvas.drawBitmap(mBitmap, left, top, null);
+        mComposites++;
+    }
+
+    public void release() {
+        if (mBitmap != null) {
+            mBitmap.recycle();
+            mBitmap = null;
+            mCanvas = null;
+        }
+    }
+
+    public int getRenders() {
+        return mRenders;
+    }
+
+    public int getComposites() {
+        return mComposites;
+    }
+
+    public long getRenderNanos() {
+        return mRenderNanos;
+    }
+
+    public void resetCounters() {
+        mRenders = 0;
+        mComposites = 0;
+        mRenderNanos = 0;
+        mMaxRenderNanos = 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s: rendered %d times in %d frames, %.2f ms on average,"
+                        + " %.2f ms at most", mName, mRenders, mComposites,
+                mRenders == 0 ? 0f : mRenderNanos / 1e6f / mRenders, mMaxRenderNanos / 1e6f);
+    }
+}
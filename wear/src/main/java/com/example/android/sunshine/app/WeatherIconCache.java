@@ -0,0 +1,141 @@
+package com.example.android.sunshine.app;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.ColorMatrix;
+import android.graphics.ColorMatrixColorFilter;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Weather icons decoded and scaled for the watch face once, rather than on every frame.  An icon
+ * is kept per resource, height and variant, the least recently drawn making way, and recycled,
+ * once MAX_ENTRIES are kept.  Call {@link #clear} when the layout changes; the icons of the old
+ * size won't be drawn again.
+ * <p>
+ * Not thread safe; the watch face uses it from its UI thread only.
+ */
+public class WeatherIconCache {
+
+    private static final String LOG_TAG = "WeatherIconCache";
+
+    // The icon in color, for interactive mode.
+    public static final int VARIANT_INTERACTIVE = 0;
+    // In grays, for ambient mode.
+    public static final int VARIANT_AMBIENT = 1;
+    // In black and white only, for ambient mode on low-bit screens.
+    public static final int VARIANT_LOW_BIT = 2;
+
+    // Every variant of the icon shown, and a few more for when the forecast changes.
+    private static final int MAX_ENTRIES = 6;
+
+    private final Resources mResources;
+
+    // Least recently used first.
+    private final LinkedHashMap<Long, Bitmap> mIcons =
+            new LinkedHashMap<Long, Bitmap>(MAX_ENTRIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Bitmap> eldest) {
+                    if (size() > MAX_ENTRIES) {
+                        eldest.getValue().recycle();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+
+    // The icon returned last, so that drawing it again doesn't box a key.
+    private long mLastKey = -1;
+    private Bitmap mLastIcon;
+
+    private int mHits;
+    private int mDecodes;
+
+    public WeatherIconCache(Resources resources) {
+        mResources = resources;
+    }
+
+    /**
+     * @return the icon of {@code resId} scaled to {@code height} pixels, keeping its aspect ratio,
+     * in {@code variant}; only good until the next call, or {@link #clear}.
+     */
+    public Bitmap get(int resId, int height, int variant) {
+        // Resource ids use all 32 bits; heights and variants are small.
+        long key = ((long) resId << 32) | ((long) height << 2) | variant;
+        if (key == mLastKey) {
+            mHits++;
+            return mLastIcon;
+        }
+        Bitmap icon = mIcons.get(key);
+        if (icon != null) {
+            mHits++;
+            mLastKey = key;
+            mLastIcon = icon;
+            return icon;
+        }
+        icon = decode(resId, height, variant);
+        mIcons.put(key, icon);
+        mLastKey = key;
+        mLastIcon = icon;
+        mDecodes++;
+        if (Log.isLoggable(LOG_TAG, Log.DEBUG)) {
+            Log.d(LOG_TAG, "Decoded icon " + resId + " at " + icon.getWidth() + "x" + height
+                    + ", variant " + variant + "; " + mDecodes + " decodes, " + mHits + " hits");
+        }
+        return icon;
+    }
+
+    /**
+     * Recycles every icon.
+     */
+    public void clear() {
+        for (Bitmap icon : mIcons.values()) {
+            icon.recycle();
+        }
+        mIcons.clear();
+        mLastKey = -1;
+        mLastIcon = null;
+    }
+
+    public int getHits() {
+        return mHits;
+    }
+
+    public int getDecodes() {
+        return mDecodes;
+    }
+
+    private Bitmap decode(int resId, int height, int variant) {
+        Bitmap original = BitmapFactory.decodeResource(mResources, resId);
+        int width = Math.max(1, Math.round(original.getWidth() * height
+                / (float) original.getHeight()));
+        Bitmap icon = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+
+        // Scaled and recolored in one pass.
+        Paint paint = new Paint();
+        paint.setFilterBitmap(variant != VARIANT_LOW_BIT);
+        if (variant != VARIANT_INTERACTIVE) {
+            ColorMatrix matrix = new ColorMatrix();
+            matrix.setSaturation(0);
+            if (variant == VARIANT_LOW_BIT) {
+                // Pushes every gray to black or white, around the middle, and every pixel to
+                // transparent or opaque.
+                matrix.postConcat(new ColorMatrix(new float[] {
+                        255, 0, 0, 0, -128 * 255,
+                        0, 255, 0, 0, -128 * 255,
+                        0, 0, 255, 0, -128 * 255,
+                        0, 0, 0, 255, -128 * 255}));
+            }
+            paint.setColorFilter(new ColorMatrixColorFilter(matrix));
+        }
+        new Canvas(icon).drawBitmap(original, null, new Rect(0, 0, width, height), paint);
+        original.recycle();
+        return icon;
+    }
+}